@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.Collection;
+
+/**
+ * Service interface for installing addons as batches.
+ * <p>
+ * This service is published by the component publishing {@link AddonAdmin}.
+ *
+ * @author Stamina Framework developers
+ */
+@ProviderType
+public interface AddonBatchAdmin {
+    /**
+     * Install addons as a batch.
+     * Addons are fetched and resolved concurrently, then started
+     * in the given order. Bundles are refreshed once, when all addons are started.
+     * Addons which are already installed are skipped.
+     *
+     * @param locations addon locations
+     * @return installation progress, updated until this batch is done
+     */
+    AddonProgress install(Collection<String> locations);
+
+    /**
+     * Get installation progress of the last batch of addons.
+     * Addons configured for startup are installed in the background
+     * as a batch: when this batch is done, an {@link AddonsReady} service is published.
+     * Addons installed with {@link AddonAdmin#install(String)} are not part of any batch.
+     *
+     * @return installation progress, <code>null</code> if no batch was installed
+     */
+    AddonProgress getProgress();
+}
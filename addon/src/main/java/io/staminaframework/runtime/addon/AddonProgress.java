@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.List;
+
+/**
+ * Installation progress of a batch of addons.
+ *
+ * @author Stamina Framework developers
+ */
+@ProviderType
+public interface AddonProgress {
+    /**
+     * Get the number of addons in this batch.
+     *
+     * @return number of addons
+     */
+    int getTotal();
+
+    /**
+     * Get locations of addons successfully installed and started.
+     *
+     * @return addon locations
+     */
+    List<String> getInstalled();
+
+    /**
+     * Get locations of addons which could not be installed or started.
+     *
+     * @return addon locations
+     */
+    List<String> getFailed();
+
+    /**
+     * Check whether this batch is done.
+     *
+     * @return <code>true</code> if every addon from this batch was processed
+     */
+    boolean isDone();
+}
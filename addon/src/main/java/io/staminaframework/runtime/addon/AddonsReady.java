@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Service published when addons configured for startup were processed.
+ * <p>
+ * Components depending on addons may reference this service in order
+ * to be activated once addons are installed.
+ * Failed addons do not prevent this service from being published:
+ * check {@link #getProgress()} for details.
+ *
+ * @author Stamina Framework developers
+ */
+@ProviderType
+public interface AddonsReady {
+    /**
+     * Get installation progress of addons configured for startup.
+     *
+     * @return installation progress
+     */
+    AddonProgress getProgress();
+}
@@ -17,10 +17,21 @@
 package io.staminaframework.runtime.addon.internal;
 
 import io.staminaframework.runtime.addon.AddonAdmin;
+import io.staminaframework.runtime.addon.AddonBatchAdmin;
+import io.staminaframework.runtime.addon.AddonProgress;
+import io.staminaframework.runtime.addon.AddonsReady;
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
+import io.staminaframework.runtime.subsystem.SubsystemIndex;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Resource;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
@@ -31,24 +42,54 @@ import org.osgi.service.subsystem.SubsystemConstants;
 import org.osgi.service.url.URLConstants;
 import org.osgi.service.url.URLStreamHandlerService;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This component installs addons on startup.
+ * <p>
+ * Addons configured for startup are installed in the background,
+ * as a single batch: component activation does not wait for addons.
+ * Addons from a batch are fetched and resolved concurrently,
+ * then started in configuration order. When a batch is done, bundles
+ * are refreshed once, only if new addons are wired to bundles pending removal.
  *
  * @author Stamina Framework developers
  */
-@Component(service = AddonAdmin.class, immediate = true,
+@Component(service = {AddonAdmin.class, AddonBatchAdmin.class}, immediate = true,
         configurationPid = "io.staminaframework.runtime.addon")
-public class AddonAdminImpl implements AddonAdmin {
+public class AddonAdminImpl implements AddonAdmin, AddonBatchAdmin {
+    private static final int MAX_INSTALL_THREADS = 4;
+    private static final long REFRESH_TIMEOUT = 60;
     @Reference
     private LogService logService;
     @Reference(target = "(" + SubsystemConstants.SUBSYSTEM_ID_PROPERTY + "=0)")
     private Subsystem root;
+    @Reference
+    private SubsystemIndex subsystemIndex;
+    @Reference
+    private SubsystemDeployer subsystemDeployer;
 
     // Force URL handler "addon" initialization.
     @Reference(target = "(" + URLConstants.URL_HANDLER_PROTOCOL + "=addon)")
     private URLStreamHandlerService addonUrlHandler;
 
     private BundleContext bundleContext;
+    private ExecutorService batchExecutor;
+    private ExecutorService installExecutor;
+    private volatile AddonProgressImpl progress;
+    private volatile ServiceRegistration<AddonsReady> readyReg;
 
     /**
      * Component configuration.
@@ -65,56 +106,169 @@ public class AddonAdminImpl implements AddonAdmin {
     @Activate
     void activate(BundleContext bundleContext, Config config) {
         this.bundleContext = bundleContext;
+        batchExecutor = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "Stamina Addon Batch Thread");
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicInteger threadCount = new AtomicInteger();
+        installExecutor = Executors.newFixedThreadPool(MAX_INSTALL_THREADS, r -> {
+            final Thread t = new Thread(r, "Stamina Addon Installer Thread #" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        final List<String> addons = new ArrayList<>(4);
         if (config.addons() != null) {
             for (final String addon : config.addons()) {
                 final String addonTrimmed = addon.trim();
                 if (addonTrimmed.length() != 0) {
-                    install(addonTrimmed);
+                    addons.add(addonTrimmed);
                 }
             }
         }
+        final AddonProgressImpl startupProgress = submit(addons);
+        batchExecutor.submit(() -> {
+            // Published once startup addons were processed.
+            readyReg = bundleContext.registerService(AddonsReady.class, startupProgress, null);
+        });
     }
 
     @Deactivate
-    void deactivate() {
+    void deactivate() throws InterruptedException {
+        batchExecutor.shutdownNow();
+        batchExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        installExecutor.shutdownNow();
+        if (readyReg != null) {
+            readyReg.unregister();
+            readyReg = null;
+        }
         this.bundleContext = null;
     }
 
     @Override
     public void install(String location) {
+        // Single addons are not batches: last batch progress is kept.
+        final AddonProgressImpl p = new AddonProgressImpl(1);
+        installBatch(Collections.singletonList(location), p);
+        if (!p.getFailed().isEmpty()) {
+            throw new RuntimeException("Failed to install addon: " + location, p.getFailureCause(location));
+        }
+    }
+
+    @Override
+    public AddonProgress install(Collection<String> locations) {
+        return submit(new ArrayList<>(locations));
+    }
+
+    @Override
+    public AddonProgress getProgress() {
+        return progress;
+    }
+
+    private AddonProgressImpl submit(List<String> locations) {
+        final AddonProgressImpl p = new AddonProgressImpl(locations.size());
+        progress = p;
+        batchExecutor.submit(() -> installBatch(locations, p));
+        return p;
+    }
+
+    private void installBatch(List<String> locations, AddonProgressImpl p) {
         try {
-            doInstallAddon(location);
+            doInstallBatch(locations, p);
         } catch (Exception e) {
-            throw new RuntimeException("Failed to install addon: " + location, e);
+            logService.log(LogService.LOG_ERROR, "Failed to install addons", e);
+        } finally {
+            p.done();
         }
     }
 
-    private void doInstallAddon(String location) {
-        if (isSubsystemInstalled(location, root)) {
-            logService.log(LogService.LOG_DEBUG, "Addon is already installed: " + location);
-            return;
+    private void doInstallBatch(List<String> locations, AddonProgressImpl p) throws Exception {
+        // Addons are fetched and resolved concurrently:
+        // the subsystem implementation serializes installations when required.
+        final List<String> pendingLocations = new ArrayList<>(locations.size());
+        final List<Future<Subsystem>> futures = new ArrayList<>(locations.size());
+        for (final String location : locations) {
+            if (subsystemIndex.getByLocation(location) != null) {
+                logService.log(LogService.LOG_DEBUG, "Addon is already installed: " + location);
+                p.installed(location);
+                continue;
+            }
+            logService.log(LogService.LOG_INFO, "Installing addon: " + location);
+            pendingLocations.add(location);
+            futures.add(installExecutor.submit(() -> subsystemDeployer.install(root, location, null)));
         }
 
-        logService.log(LogService.LOG_INFO, "Installing addon: " + location);
-        final Subsystem subsystem = root.install(location);
-
-        logService.log(LogService.LOG_INFO, "Starting addon: " + location);
-        subsystem.start();
-
-        // Refresh bundles, in case the new subsystem brings major package updates.
-        final Bundle sysBundle = bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
-        sysBundle.adapt(FrameworkWiring.class).refreshBundles(null);
+        final List<Subsystem> started = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); ++i) {
+            final String location = pendingLocations.get(i);
+            try {
+                final Subsystem subsystem = futures.get(i).get();
+                logService.log(LogService.LOG_INFO, "Starting addon: " + location);
+                subsystem.start();
+                started.add(subsystem);
+                p.installed(location);
+            } catch (ExecutionException e) {
+                logService.log(LogService.LOG_ERROR, "Failed to install addon: " + location, e.getCause());
+                p.failed(location, e.getCause());
+            } catch (Exception e) {
+                logService.log(LogService.LOG_ERROR, "Failed to start addon: " + location, e);
+                p.failed(location, e);
+            }
+        }
+        if (!started.isEmpty()) {
+            refresh(started);
+        }
     }
 
-    private boolean isSubsystemInstalled(String location, Subsystem parent) {
-        if (location.equalsIgnoreCase(parent.getLocation())) {
-            return true;
+    /**
+     * Refresh bundles pending removal which new addons are wired to,
+     * in case new addons bring major package updates.
+     * <p>
+     * Other bundles pending removal are left untouched on purpose: they were
+     * left by unrelated updates, and refreshing them would restart bundles
+     * which new addons do not depend on. Bundles depending on refreshed bundles
+     * are still refreshed, since the framework refreshes the dependency closure
+     * of the given bundles.
+     */
+    private void refresh(List<Subsystem> subsystems) throws InterruptedException {
+        final Bundle sysBundle = bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
+        final FrameworkWiring fwkWiring = sysBundle.adapt(FrameworkWiring.class);
+        final Collection<Bundle> removalPending = fwkWiring.getRemovalPendingBundles();
+        if (removalPending.isEmpty()) {
+            return;
         }
-        for (final Subsystem child : parent.getChildren()) {
-            if (isSubsystemInstalled(location, child)) {
-                return true;
+        final Set<Bundle> affected = new LinkedHashSet<>(4);
+        for (final Subsystem subsystem : subsystems) {
+            for (final Resource res : subsystem.getConstituents()) {
+                if (!(res instanceof BundleRevision)) {
+                    continue;
+                }
+                final BundleWiring wiring = ((BundleRevision) res).getBundle().adapt(BundleWiring.class);
+                if (wiring == null) {
+                    continue;
+                }
+                for (final BundleWire wire : wiring.getRequiredWires(null)) {
+                    final Bundle provider = wire.getProvider().getBundle();
+                    if (removalPending.contains(provider)) {
+                        affected.add(provider);
+                    }
+                }
+            }
+        }
+        if (affected.isEmpty()) {
+            return;
+        }
+
+        logService.log(LogService.LOG_INFO, "Refreshing " + affected.size() + " bundle(s) after addon installation");
+        final CountDownLatch latch = new CountDownLatch(1);
+        fwkWiring.refreshBundles(affected, event -> {
+            if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED || event.getType() == FrameworkEvent.ERROR) {
+                latch.countDown();
             }
+        });
+        if (!latch.await(REFRESH_TIMEOUT, TimeUnit.SECONDS)) {
+            logService.log(LogService.LOG_WARNING, "Timeout while refreshing bundles after addon installation");
         }
-        return false;
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon.internal;
+
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.repository.Repository;
+import org.osgi.service.repository.RepositoryContent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory index of addons available from repositories.
+ * <p>
+ * For each repository, addon versions are indexed by symbolic name.
+ * When an addon is not indexed yet, every repository is queried concurrently,
+ * and all versions of this addon are indexed.
+ * Indexed addons are queried again once their entries have expired, so that
+ * repository updates are eventually seen.
+ * Misses are cached for a short time, in order to avoid querying
+ * repositories again and again for missing addons.
+ * When a repository is added, addons already indexed are queried
+ * from this repository; when a repository is removed, its entries
+ * are dropped.
+ *
+ * @author Stamina Framework developers
+ */
+class AddonIndex {
+    private final ExecutorService executor;
+    private final long entryTtl;
+    private final long missTtl;
+    private final Map<Repository, Map<String, NavigableMap<Version, Resource>>> entriesByRepository =
+            new ConcurrentHashMap<>(4);
+    private final Map<String, Long> expiries = new ConcurrentHashMap<>(16);
+    private final Map<String, Long> misses = new ConcurrentHashMap<>(16);
+
+    /**
+     * Create a new instance.
+     *
+     * @param executor executor used to query repositories
+     * @param entryTtl time (in milliseconds) an indexed addon is used before repositories are queried again
+     * @param missTtl  time (in milliseconds) a missing addon is remembered
+     */
+    public AddonIndex(final ExecutorService executor, final long entryTtl, final long missTtl) {
+        this.executor = executor;
+        this.entryTtl = entryTtl;
+        this.missTtl = missTtl;
+    }
+
+    public void addRepository(Repository repo) {
+        final Map<String, NavigableMap<Version, Resource>> entries = new ConcurrentHashMap<>(16);
+        entriesByRepository.put(repo, entries);
+        // This repository may provide missing addons.
+        misses.clear();
+
+        // Index addons which are already known, in case this repository provides newer versions.
+        final List<String> symbolicNames = new ArrayList<>(getSymbolicNames());
+        if (!symbolicNames.isEmpty()) {
+            executor.submit(() -> {
+                for (final String symbolicName : symbolicNames) {
+                    index(repo, entries, symbolicName);
+                }
+                return null;
+            });
+        }
+    }
+
+    public void removeRepository(Repository repo) {
+        entriesByRepository.remove(repo);
+    }
+
+    /**
+     * Find an addon.
+     *
+     * @param symbolicName addon symbolic name
+     * @param version      addon version, <code>null</code> to get the highest version
+     * @return addon resource, <code>null</code> if none was found
+     * @throws IOException if addon version is invalid, or if repositories could not be queried
+     */
+    public Resource find(String symbolicName, String version) throws IOException {
+        final Version v;
+        try {
+            v = version == null ? null : Version.parseVersion(version);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid version for addon " + symbolicName + ": " + version, e);
+        }
+        final Long expiry = expiries.get(symbolicName);
+        Resource res = lookup(symbolicName, v);
+        if (res != null && expiry != null && expiry > System.currentTimeMillis()) {
+            return res;
+        }
+
+        final String missKey = version == null ? symbolicName : symbolicName + "/" + v;
+        final Long missExpiry = misses.get(missKey);
+        if (res == null && missExpiry != null) {
+            if (missExpiry > System.currentTimeMillis()) {
+                return null;
+            }
+            misses.remove(missKey, missExpiry);
+        }
+
+        // Query all repositories at once.
+        final List<Callable<Void>> queries = new ArrayList<>(entriesByRepository.size());
+        for (final Map.Entry<Repository, Map<String, NavigableMap<Version, Resource>>> e : entriesByRepository.entrySet()) {
+            queries.add(() -> {
+                index(e.getKey(), e.getValue(), symbolicName);
+                return null;
+            });
+        }
+        try {
+            for (final Future<Void> f : executor.invokeAll(queries)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while looking for addon: " + symbolicName, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to query repositories for addon: " + symbolicName, e.getCause());
+        }
+        expiries.put(symbolicName, System.currentTimeMillis() + entryTtl);
+
+        res = lookup(symbolicName, v);
+        if (res == null) {
+            misses.put(missKey, System.currentTimeMillis() + missTtl);
+        }
+        return res;
+    }
+
+    private Resource lookup(String symbolicName, Version version) {
+        Resource res = null;
+        Version resVersion = null;
+        for (final Map<String, NavigableMap<Version, Resource>> entries : entriesByRepository.values()) {
+            final NavigableMap<Version, Resource> versions = entries.get(symbolicName);
+            if (versions == null || versions.isEmpty()) {
+                continue;
+            }
+            if (version != null) {
+                final Resource candidate = versions.get(version);
+                if (candidate != null) {
+                    return candidate;
+                }
+            } else {
+                final Map.Entry<Version, Resource> highest = versions.lastEntry();
+                if (highest != null && (resVersion == null || highest.getKey().compareTo(resVersion) > 0)) {
+                    resVersion = highest.getKey();
+                    res = highest.getValue();
+                }
+            }
+        }
+        return res;
+    }
+
+    private Collection<String> getSymbolicNames() {
+        final Set<String> symbolicNames = new HashSet<>(16);
+        for (final Map<String, NavigableMap<Version, Resource>> entries : entriesByRepository.values()) {
+            symbolicNames.addAll(entries.keySet());
+        }
+        return symbolicNames;
+    }
+
+    private static void index(Repository repo, Map<String, NavigableMap<Version, Resource>> entries,
+                              String symbolicName) {
+        final Requirement req = new AddonRequirement(symbolicName, null);
+        final Collection<Capability> caps = repo.findProviders(Collections.singleton(req)).get(req);
+        final NavigableMap<Version, Resource> versions = new ConcurrentSkipListMap<>();
+        if (caps != null) {
+            for (final Capability cap : caps) {
+                if (!(cap.getResource() instanceof RepositoryContent)) {
+                    continue;
+                }
+                final Object candidateVersion = cap.getAttributes().get("version");
+                versions.putIfAbsent(candidateVersion instanceof Version ? (Version) candidateVersion
+                        : Version.emptyVersion, cap.getResource());
+            }
+        }
+        entries.put(symbolicName, versions);
+    }
+}
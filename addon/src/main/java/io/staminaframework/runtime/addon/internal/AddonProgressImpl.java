@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon.internal;
+
+import io.staminaframework.runtime.addon.AddonProgress;
+import io.staminaframework.runtime.addon.AddonsReady;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * {@link AddonProgress} implementation, updated while a batch is installed.
+ *
+ * @author Stamina Framework developers
+ */
+class AddonProgressImpl implements AddonProgress, AddonsReady {
+    private final int total;
+    private final List<String> installed = new CopyOnWriteArrayList<>();
+    private final List<String> failed = new CopyOnWriteArrayList<>();
+    private final Map<String, Throwable> failureCauses = new ConcurrentHashMap<>(4);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    public AddonProgressImpl(final int total) {
+        this.total = total;
+    }
+
+    void installed(String location) {
+        installed.add(location);
+    }
+
+    void failed(String location, Throwable cause) {
+        failed.add(location);
+        if (cause != null) {
+            failureCauses.put(location, cause);
+        }
+    }
+
+    /**
+     * Get the error which made an addon installation fail.
+     *
+     * @return failure cause, <code>null</code> if unknown
+     */
+    Throwable getFailureCause(String location) {
+        return failureCauses.get(location);
+    }
+
+    void done() {
+        done.countDown();
+    }
+
+    @Override
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public List<String> getInstalled() {
+        return new ArrayList<>(installed);
+    }
+
+    @Override
+    public List<String> getFailed() {
+        return new ArrayList<>(failed);
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public AddonProgress getProgress() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "AddonProgress[total=" + total + ", installed=" + installed.size()
+                + ", failed=" + failed.size() + ", done=" + isDone() + "]";
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.runtime.addon.internal;
+
+import io.staminaframework.runtime.addon.AddonBatchAdmin;
+import io.staminaframework.runtime.addon.AddonProgress;
+import io.staminaframework.runtime.command.Command;
+import io.staminaframework.runtime.command.CommandConstants;
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Descriptor;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import java.io.PrintStream;
+
+/**
+ * Command for displaying addon installation progress.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = Command.class,
+        property = {
+                CommandConstants.COMMAND + "=addon:status",
+                CommandProcessor.COMMAND_SCOPE + "=addon",
+                CommandProcessor.COMMAND_FUNCTION + "=status",
+        })
+public class AddonStatusCommand implements Command {
+    @Reference
+    private AddonBatchAdmin addonBatchAdmin;
+
+    @Override
+    public void help(PrintStream out) {
+        out.println("Display installation progress of the last batch of addons,");
+        out.println("such as addons installed on startup.");
+        out.println("Usage: addon:status");
+    }
+
+    @Override
+    public boolean execute(Context context) throws Exception {
+        if (context.arguments().length != 0) {
+            help(context.out());
+            return false;
+        }
+        printStatus(context.out());
+        return false;
+    }
+
+    @Descriptor("Display addon installation progress")
+    public void status(CommandSession session) {
+        printStatus(session.getConsole());
+    }
+
+    private void printStatus(PrintStream out) {
+        final AddonProgress progress = addonBatchAdmin.getProgress();
+        if (progress == null) {
+            out.println("No addon installed");
+            return;
+        }
+        out.println("Addons: " + progress.getTotal()
+                + " (installed: " + progress.getInstalled().size()
+                + ", failed: " + progress.getFailed().size() + ")");
+        for (final String location : progress.getFailed()) {
+            out.println("Failed: " + location);
+        }
+        out.println(progress.isDone() ? "Done" : "In progress");
+    }
+}
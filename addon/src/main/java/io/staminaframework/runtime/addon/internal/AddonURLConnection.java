@@ -16,19 +16,41 @@
 
 package io.staminaframework.runtime.addon.internal;
 
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Resource;
+import org.osgi.service.log.LogService;
+import org.osgi.service.repository.ContentNamespace;
 import org.osgi.service.repository.RepositoryContent;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Path;
 
+/**
+ * {@link URLConnection} implementation reading addon content through an {@link ArtifactCache}.
+ * <p>
+ * Addon content is stored in this cache under its actual hash.
+ * When a repository advertises a stale hash for an addon, a warning is logged
+ * and downloaded content is used anyway: since this content is not found in
+ * the cache under the advertised hash, it is downloaded again the next time
+ * this addon is requested, until the repository index is fixed.
+ *
+ * @author Stamina Framework developers
+ */
 class AddonURLConnection extends URLConnection {
-    private final RepositoryContent repositoryContent;
+    private final Resource resource;
+    private final ArtifactCache artifactCache;
+    private final LogService logService;
 
-    public AddonURLConnection(final URL url, final RepositoryContent repositoryContent) {
+    public AddonURLConnection(final URL url, final Resource resource,
+                              final ArtifactCache artifactCache, final LogService logService) {
         super(url);
-        this.repositoryContent = repositoryContent;
+        this.resource = resource;
+        this.artifactCache = artifactCache;
+        this.logService = logService;
     }
 
     @Override
@@ -42,7 +64,40 @@ class AddonURLConnection extends URLConnection {
 
     @Override
     public InputStream getInputStream() throws IOException {
-        return repositoryContent.getContent();
+        String hash = null;
+        String contentUrl = null;
+        for (final Capability cap : resource.getCapabilities(ContentNamespace.CONTENT_NAMESPACE)) {
+            final Object hashAtt = cap.getAttributes().get(ContentNamespace.CONTENT_NAMESPACE);
+            if (hashAtt != null) {
+                hash = hashAtt.toString();
+                final Object urlAtt = cap.getAttributes().get(ContentNamespace.CAPABILITY_URL_ATTRIBUTE);
+                contentUrl = urlAtt == null ? null : urlAtt.toString();
+                break;
+            }
+        }
+        // Content from the system repository is already available locally.
+        if (hash == null || (contentUrl != null && contentUrl.startsWith("system:"))) {
+            return ((RepositoryContent) resource).getContent();
+        }
+
+        // Cached artifacts are not evicted while they are read.
+        InputStream in = artifactCache.open(hash);
+        if (in == null) {
+            final Path file;
+            try (final InputStream content = ((RepositoryContent) resource).getContent()) {
+                file = artifactCache.put(null, content, null);
+            }
+            final String actualHash = file.getFileName().toString();
+            if (!actualHash.equalsIgnoreCase(hash)) {
+                logService.log(LogService.LOG_WARNING, "Checksum mismatch for addon "
+                        + url + ": repository advertises " + hash + ", got " + actualHash);
+            }
+            in = artifactCache.open(actualHash);
+            if (in == null) {
+                throw new IOException("Addon was evicted from artifact cache: " + url);
+            }
+        }
+        return in;
     }
 
     @Override
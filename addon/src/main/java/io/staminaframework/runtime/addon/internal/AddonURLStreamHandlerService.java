@@ -16,16 +16,15 @@
 
 package io.staminaframework.runtime.addon.internal;
 
-import org.osgi.framework.Version;
-import org.osgi.resource.Capability;
-import org.osgi.resource.Requirement;
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
 import org.osgi.resource.Resource;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.log.LogService;
 import org.osgi.service.repository.Repository;
-import org.osgi.service.repository.RepositoryContent;
 import org.osgi.service.url.AbstractURLStreamHandlerService;
 import org.osgi.service.url.URLConstants;
 import org.osgi.service.url.URLStreamHandlerService;
@@ -33,10 +32,15 @@ import org.osgi.service.url.URLStreamHandlerService;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This component is responsible for locating addons from URL strings.
+ * Addons are looked up in an {@link AddonIndex}, shared by all URL connections.
  *
  * @author Stamina Framework developers
  */
@@ -47,8 +51,42 @@ import java.util.*;
         })
 public class AddonURLStreamHandlerService extends AbstractURLStreamHandlerService {
     private static final int START_INDEX = "addon:".length();
+    private static final int MAX_QUERY_THREADS = 8;
+    private static final long ENTRY_TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final long MISS_TTL = TimeUnit.SECONDS.toMillis(30);
+    private final ExecutorService queryExecutor = newQueryExecutor();
+    private final AddonIndex addonIndex = new AddonIndex(queryExecutor, ENTRY_TTL, MISS_TTL);
+    @Reference
+    private ArtifactCache artifactCache;
+    @Reference
+    private LogService logService;
+
     @Reference(cardinality = ReferenceCardinality.AT_LEAST_ONE, policy = ReferencePolicy.DYNAMIC)
-    private volatile List<Repository> repositories = Collections.emptyList();
+    void bindRepository(Repository repo) {
+        addonIndex.addRepository(repo);
+    }
+
+    void unbindRepository(Repository repo) {
+        addonIndex.removeRepository(repo);
+    }
+
+    @Deactivate
+    void deactivate() {
+        queryExecutor.shutdownNow();
+    }
+
+    private static ExecutorService newQueryExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_QUERY_THREADS, MAX_QUERY_THREADS,
+                1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+            final Thread t = new Thread(r, "Stamina Addon Index Thread #" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Threads are only kept while repositories are queried.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     @Override
     public URLConnection openConnection(URL u) throws IOException {
@@ -74,37 +112,11 @@ public class AddonURLStreamHandlerService extends AbstractURLStreamHandlerServic
             throw new IOException("Malformed addon URL: " + u);
         }
 
-        final Requirement req = new AddonRequirement(symbolicName, version);
-        final List<Capability> results = new ArrayList<>();
-
-        for (final Repository repo : repositories) {
-            final Map<Requirement, Collection<Capability>> providers =
-                    repo.findProviders(Collections.singleton(req));
-            results.addAll(providers.get(req));
-        }
-
-        if (results.isEmpty()) {
-            throw new IOException("Addon not found: " + u);
-        }
-
-        Resource res = null;
-        Version resVersion = null;
-
-        for (final Capability cap : results) {
-            final Version candidateVersion = (Version) cap.getAttributes().get("version");
-            if (candidateVersion == null) {
-                continue;
-            }
-            if (resVersion == null || candidateVersion.compareTo(resVersion) == 1) {
-                resVersion = candidateVersion;
-                res = cap.getResource();
-            }
-        }
+        final Resource res = addonIndex.find(symbolicName, version);
         if (res == null) {
-            res = results.get(0).getResource();
+            throw new IOException("Addon not found: " + u);
         }
 
-        final RepositoryContent resContent = (RepositoryContent) res;
-        return new AddonURLConnection(u, resContent);
+        return new AddonURLConnection(u, res, artifactCache, logService);
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon.internal;
+
+import io.staminaframework.runtime.addon.AddonProgress;
+import io.staminaframework.runtime.addon.AddonsReady;
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
+import io.staminaframework.runtime.subsystem.SubsystemIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.log.LogService;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+
+import static io.staminaframework.runtime.addon.internal.OsgiStubs.await;
+import static io.staminaframework.runtime.addon.internal.OsgiStubs.inject;
+import static io.staminaframework.runtime.addon.internal.OsgiStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link AddonAdminImpl} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class AddonAdminImplTest {
+    private final Map<String, Subsystem> installed = new ConcurrentHashMap<>();
+    private final List<String> started = new CopyOnWriteArrayList<>();
+    private final List<Object> registeredServices = new CopyOnWriteArrayList<>();
+    private final CountDownLatch deployerLatch = new CountDownLatch(1);
+    private AddonAdminImpl addonAdmin;
+    private BundleContext bundleContext;
+
+    @Before
+    public void setUp() throws Exception {
+        final Map<String, Function<Object[], Object>> wiring = new HashMap<>(2);
+        wiring.put("getRemovalPendingBundles", args -> Collections.emptyList());
+        final FrameworkWiring fwkWiring = stub(FrameworkWiring.class, wiring);
+        final Bundle systemBundle = stub(Bundle.class, Collections.singletonMap("adapt",
+                args -> FrameworkWiring.class.equals(args[0]) ? fwkWiring : null));
+        final Map<String, Function<Object[], Object>> context = new HashMap<>(4);
+        context.put("getBundle", args -> Constants.SYSTEM_BUNDLE_LOCATION.equals(args[0]) ? systemBundle : null);
+        context.put("registerService", args -> {
+            registeredServices.add(args[1]);
+            return null;
+        });
+        bundleContext = stub(BundleContext.class, context);
+
+        final SubsystemDeployer deployer = (parent, location, content) -> {
+            try {
+                deployerLatch.await();
+            } catch (InterruptedException e) {
+                throw new SubsystemException(e);
+            }
+            if (location.contains("bad")) {
+                throw new SubsystemException("Unable to install addon: " + location);
+            }
+            final Subsystem subsystem = stub(Subsystem.class, Collections.singletonMap("start",
+                    args -> started.add(location)));
+            installed.put(location, subsystem);
+            return subsystem;
+        };
+        addonAdmin = new AddonAdminImpl();
+        inject(addonAdmin, "logService", stub(LogService.class, Collections.emptyMap()));
+        inject(addonAdmin, "root", stub(Subsystem.class, Collections.emptyMap()));
+        inject(addonAdmin, "subsystemIndex", stub(SubsystemIndex.class, Collections.singletonMap("getByLocation",
+                args -> installed.get(args[0]))));
+        inject(addonAdmin, "subsystemDeployer", deployer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deployerLatch.countDown();
+        addonAdmin.deactivate();
+    }
+
+    @Test
+    public void testStartupAddonsInstalledInBackground() throws Exception {
+        addonAdmin.activate(bundleContext, config("addon:a", " ", "addon:bad", "addon:b"));
+        // Activation does not wait for addons.
+        final AddonProgress progress = addonAdmin.getProgress();
+        assertEquals(3, progress.getTotal());
+        assertFalse(progress.isDone());
+        assertTrue(registeredServices.isEmpty());
+
+        deployerLatch.countDown();
+        await(() -> !registeredServices.isEmpty());
+        assertTrue(progress.isDone());
+        assertSame(progress, ((AddonsReady) registeredServices.get(0)).getProgress());
+        assertEquals(Arrays.asList("addon:a", "addon:b"), progress.getInstalled());
+        assertEquals(Collections.singletonList("addon:bad"), progress.getFailed());
+        // Addons are started in configuration order.
+        assertEquals(Arrays.asList("addon:a", "addon:b"), started);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        addonAdmin.activate(bundleContext, config());
+        deployerLatch.countDown();
+        await(() -> !registeredServices.isEmpty());
+
+        final AddonProgress progress = addonAdmin.install(Arrays.asList("addon:c", "addon:a"));
+        assertSame(progress, addonAdmin.getProgress());
+        await(progress::isDone);
+        assertEquals(Arrays.asList("addon:c", "addon:a"), progress.getInstalled());
+
+        // Installed addons are skipped.
+        final AddonProgress again = addonAdmin.install(Collections.singletonList("addon:a"));
+        await(again::isDone);
+        assertEquals(Collections.singletonList("addon:a"), again.getInstalled());
+        assertEquals(Arrays.asList("addon:c", "addon:a"), started);
+    }
+
+    @Test
+    public void testSingleAddon() throws Exception {
+        addonAdmin.activate(bundleContext, config());
+        deployerLatch.countDown();
+        await(() -> !registeredServices.isEmpty());
+        final AddonProgress startupProgress = addonAdmin.getProgress();
+
+        addonAdmin.install("addon:a");
+        assertEquals(Collections.singletonList("addon:a"), started);
+        try {
+            addonAdmin.install("addon:bad");
+            fail("Addon installation should fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SubsystemException);
+        }
+        // Single addons are not batches.
+        assertSame(startupProgress, addonAdmin.getProgress());
+        assertNull(installed.get("addon:bad"));
+    }
+
+    private static AddonAdminImpl.Config config(String... addons) {
+        return stub(AddonAdminImpl.Config.class, Collections.singletonMap("addons", args -> addons));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon.internal;
+
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.repository.Repository;
+import org.osgi.service.repository.RepositoryContent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.staminaframework.runtime.addon.internal.OsgiStubs.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link AddonIndex} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class AddonIndexTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFind() throws Exception {
+        final AddonIndex index = new AddonIndex(executor, HOUR, HOUR);
+        final TestRepository repo1 = new TestRepository();
+        repo1.add("foo", "1.0.0");
+        repo1.add("foo", "2.0.0");
+        final TestRepository repo2 = new TestRepository();
+        repo2.add("foo", "1.5.0");
+        index.addRepository(repo1);
+        index.addRepository(repo2);
+
+        assertEquals(new Version("2.0.0"), getVersion(index.find("foo", null)));
+        assertEquals(new Version("1.5.0"), getVersion(index.find("foo", "1.5")));
+        // Each repository is queried once for all versions.
+        assertEquals(1, repo1.queries.get());
+        assertEquals(1, repo2.queries.get());
+
+        // Repositories are queried again for a missing version, which may have been published since.
+        assertNull(index.find("foo", "3.0.0"));
+        assertNull(index.find("foo", "3.0.0"));
+        assertEquals(2, repo1.queries.get());
+    }
+
+    @Test
+    public void testEntryExpiry() throws Exception {
+        final TestRepository repo = new TestRepository();
+        repo.add("foo", "1.0.0");
+
+        final AddonIndex cached = new AddonIndex(executor, HOUR, HOUR);
+        cached.addRepository(repo);
+        cached.find("foo", null);
+        repo.add("foo", "2.0.0");
+        assertEquals(new Version("1.0.0"), getVersion(cached.find("foo", null)));
+        assertEquals(1, repo.queries.get());
+
+        // Expired entries are queried again: repository updates are seen.
+        final AddonIndex expired = new AddonIndex(executor, 0, HOUR);
+        expired.addRepository(repo);
+        expired.find("foo", null);
+        assertEquals(new Version("2.0.0"), getVersion(expired.find("foo", null)));
+        assertEquals(3, repo.queries.get());
+    }
+
+    @Test
+    public void testMissCached() throws Exception {
+        final TestRepository repo = new TestRepository();
+        final AddonIndex index = new AddonIndex(executor, HOUR, HOUR);
+        index.addRepository(repo);
+        assertNull(index.find("foo", null));
+        assertNull(index.find("foo", null));
+        assertEquals(1, repo.queries.get());
+
+        repo.add("foo", "1.0.0");
+        assertNull(index.find("foo", null));
+        assertEquals(1, repo.queries.get());
+
+        // A missing version is cached on its own.
+        assertEquals(new Version("1.0.0"), getVersion(index.find("foo", "1.0.0")));
+        assertEquals(2, repo.queries.get());
+
+        // Misses are forgotten when a repository is added.
+        assertNull(index.find("bar", null));
+        repo.add("bar", "1.0.0");
+        assertNull(index.find("bar", null));
+        final TestRepository other = new TestRepository();
+        index.addRepository(other);
+        await(() -> other.queries.get() == 2);
+        assertEquals(new Version("1.0.0"), getVersion(index.find("bar", null)));
+    }
+
+    @Test
+    public void testMissExpiry() throws Exception {
+        final TestRepository repo = new TestRepository();
+        final AddonIndex index = new AddonIndex(executor, HOUR, 0);
+        index.addRepository(repo);
+        assertNull(index.find("foo", null));
+        repo.add("foo", "1.0.0");
+        assertEquals(new Version("1.0.0"), getVersion(index.find("foo", null)));
+        assertEquals(2, repo.queries.get());
+    }
+
+    @Test
+    public void testRemoveRepository() throws Exception {
+        final TestRepository repo = new TestRepository();
+        repo.add("foo", "1.0.0");
+        final AddonIndex index = new AddonIndex(executor, HOUR, HOUR);
+        index.addRepository(repo);
+        index.find("foo", null);
+        index.removeRepository(repo);
+        assertNull(index.find("foo", null));
+    }
+
+    @Test
+    public void testInvalidVersion() throws Exception {
+        final AddonIndex index = new AddonIndex(executor, HOUR, HOUR);
+        try {
+            index.find("foo", "not-a-version");
+            fail("Invalid version should be rejected");
+        } catch (IOException e) {
+            assertEquals("Invalid version for addon foo: not-a-version", e.getMessage());
+        }
+    }
+
+    private static Version getVersion(Resource res) {
+        return (Version) res.getCapabilities("osgi.identity").get(0).getAttributes().get("version");
+    }
+
+    /**
+     * Repository providing addons, counting queries.
+     */
+    private static final class TestRepository implements Repository {
+        final List<Resource> resources = new CopyOnWriteArrayList<>();
+        final AtomicInteger queries = new AtomicInteger();
+
+        void add(String symbolicName, String version) {
+            final Map<String, Object> atts = new HashMap<>(4);
+            atts.put("osgi.identity", symbolicName);
+            atts.put("type", "osgi.subsystem.feature");
+            atts.put("version", new Version(version));
+            resources.add(new AddonResource(atts));
+        }
+
+        @Override
+        public Map<Requirement, Collection<Capability>> findProviders(Collection<? extends Requirement> requirements) {
+            queries.incrementAndGet();
+            final Map<Requirement, Collection<Capability>> providers = new HashMap<>(requirements.size());
+            for (final Requirement req : requirements) {
+                final Filter filter;
+                try {
+                    filter = FrameworkUtil.createFilter(req.getDirectives().get("filter"));
+                } catch (InvalidSyntaxException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                final List<Capability> caps = new ArrayList<>(2);
+                for (final Resource res : resources) {
+                    for (final Capability cap : res.getCapabilities(req.getNamespace())) {
+                        if (filter.matches(cap.getAttributes())) {
+                            caps.add(cap);
+                        }
+                    }
+                }
+                providers.put(req, caps);
+            }
+            return providers;
+        }
+    }
+
+    private static final class AddonResource implements Resource, RepositoryContent {
+        private final Capability identity;
+
+        AddonResource(final Map<String, Object> attributes) {
+            final Resource resource = this;
+            identity = new Capability() {
+                @Override
+                public String getNamespace() {
+                    return "osgi.identity";
+                }
+
+                @Override
+                public Map<String, String> getDirectives() {
+                    return Collections.emptyMap();
+                }
+
+                @Override
+                public Map<String, Object> getAttributes() {
+                    return attributes;
+                }
+
+                @Override
+                public Resource getResource() {
+                    return resource;
+                }
+            };
+        }
+
+        @Override
+        public List<Capability> getCapabilities(String namespace) {
+            return namespace == null || "osgi.identity".equals(namespace)
+                    ? Collections.singletonList(identity) : Collections.emptyList();
+        }
+
+        @Override
+        public List<Requirement> getRequirements(String namespace) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+}
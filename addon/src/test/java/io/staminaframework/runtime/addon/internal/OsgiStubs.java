@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.addon.internal;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Minimal OSGi stubs for testing addon components without a framework.
+ *
+ * @author Stamina Framework developers
+ */
+final class OsgiStubs {
+    private OsgiStubs() {
+    }
+
+    /**
+     * Create a stub implementing an interface.
+     * Methods without any behavior return a default value.
+     *
+     * @param type     interface to implement
+     * @param behavior method implementations, by method name
+     * @return stub instance
+     */
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> behavior) {
+        return type.cast(Proxy.newProxyInstance(OsgiStubs.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    final Function<Object[], Object> impl = behavior.get(method.getName());
+                    if (impl != null) {
+                        final Object result = impl.apply(args == null ? new Object[0] : args);
+                        return method.getReturnType() == void.class ? null : result;
+                    }
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            if (method.getReturnType() == boolean.class) {
+                                return false;
+                            }
+                            if (method.getReturnType() == long.class) {
+                                return 0L;
+                            }
+                            if (method.getReturnType() == int.class) {
+                                return 0;
+                            }
+                            return null;
+                    }
+                }));
+    }
+
+    /**
+     * Set a field on a component instance, as the component runtime would do.
+     */
+    static void inject(Object component, String fieldName, Object value) throws ReflectiveOperationException {
+        final Field field = component.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(component, value);
+    }
+
+    /**
+     * Wait until a condition is met.
+     */
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timeout while waiting for condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.artifactcache;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Service interface for a local artifact cache.
+ * <p>
+ * Artifacts are stored by content: an artifact is identified by
+ * the SHA-256 hash of its content (as a lowercase hexadecimal string).
+ * An artifact may also be bound to a key (such as an immutable URL),
+ * in order to find this artifact before its content is known.
+ * <p>
+ * Cache size is bounded: least recently used artifacts are evicted first.
+ * A file returned by this cache is complete, but it may be evicted at any
+ * time: use {@link #open(String)} to read an artifact, since an artifact
+ * is never evicted while it is read.
+ *
+ * @author Stamina Framework developers
+ */
+@ProviderType
+public interface ArtifactCache {
+    /**
+     * Get an artifact from its content hash.
+     *
+     * @param hash artifact content hash
+     * @return artifact file, <code>null</code> if this artifact is not cached
+     */
+    Path get(String hash);
+
+    /**
+     * Open an artifact from its content hash.
+     * This artifact is not evicted until the returned stream is closed.
+     *
+     * @param hash artifact content hash
+     * @return artifact content, <code>null</code> if this artifact is not cached
+     * @throws IOException if this artifact could not be opened
+     */
+    InputStream open(String hash) throws IOException;
+
+    /**
+     * Get an artifact from a key.
+     *
+     * @param key artifact key
+     * @return artifact file, <code>null</code> if no artifact is bound to this key
+     */
+    Path getByKey(String key);
+
+    /**
+     * Store an artifact. Artifact content is only visible in this cache once
+     * it was fully written (and checked, if a hash is expected).
+     *
+     * @param key          artifact key, <code>null</code> if none
+     * @param in           artifact content, which is not closed by this method
+     * @param expectedHash expected content hash, <code>null</code> if unknown
+     * @return artifact file
+     * @throws IOException if this artifact could not be stored, or if content does not match expected hash
+     */
+    Path put(String key, InputStream in, String expectedHash) throws IOException;
+
+    /**
+     * Unbind an artifact from a key. Artifact content is kept.
+     *
+     * @param key artifact key
+     */
+    void invalidate(String key);
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.artifactcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utility methods for SHA-256 checksums, used to identify artifact content.
+ *
+ * @author Stamina Framework developers
+ */
+public final class Checksums {
+    private static final int BUFFER_SIZE = 65536;
+
+    private Checksums() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every Java platform.
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * Update a digest with file content.
+     *
+     * @param file   file to read
+     * @param digest digest to update
+     * @throws IOException if file could not be read
+     */
+    public static void update(Path file, MessageDigest digest) throws IOException {
+        final byte[] buf = new byte[BUFFER_SIZE];
+        try (final InputStream in = Files.newInputStream(file)) {
+            for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                digest.update(buf, 0, bytesRead);
+            }
+        }
+    }
+
+    /**
+     * Compute the checksum of a stream, which is read until its end.
+     *
+     * @param in stream to read, which is not closed by this method
+     * @return checksum as a lowercase hexadecimal string
+     * @throws IOException if stream could not be read
+     */
+    public static String sha256(InputStream in) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+            digest.update(buf, 0, bytesRead);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String sha256(Path file) throws IOException {
+        final MessageDigest digest = newDigest();
+        update(file, digest);
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] hash) {
+        final StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (final byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Check whether a string is a valid SHA-256 checksum.
+     */
+    public static boolean isValid(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); ++i) {
+            if (Character.digit(hash.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
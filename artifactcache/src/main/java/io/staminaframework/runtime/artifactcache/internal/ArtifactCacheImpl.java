@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.artifactcache.internal;
+
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import io.staminaframework.runtime.artifactcache.Checksums;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.log.LogService;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@link ArtifactCache} implementation, storing artifacts under the platform data directory.
+ * <p>
+ * Artifact files are named after their content hash.
+ * New artifacts are written to a temporary file, which is atomically moved
+ * to its final location once content is checked.
+ * Access order is kept in memory, and file modification dates are updated on access
+ * so that this order survives restarts.
+ * Artifacts opened with {@link #open(String)} are pinned until their stream is closed:
+ * pinned artifacts are never evicted.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = ArtifactCache.class)
+public class ArtifactCacheImpl implements ArtifactCache {
+    private static final long DEFAULT_MAX_SIZE_MB = 1024;
+    private static final String KEYS_FILE = "keys.properties";
+    @Reference
+    private LogService logService;
+    private Path cacheDir;
+    private Path tmpDir;
+    private long maxSize;
+    private long size;
+    // Artifact sizes, least recently used first.
+    private final LinkedHashMap<String, Long> artifacts = new LinkedHashMap<>(64, 0.75f, true);
+    private final Properties keys = new Properties();
+    // Number of open streams for each artifact.
+    private final Map<String, Integer> pinned = new HashMap<>(16);
+
+    @Activate
+    void activate(BundleContext bundleContext) throws IOException {
+        final String dataProp = bundleContext.getProperty("stamina.data");
+        cacheDir = dataProp == null ? bundleContext.getDataFile("artifacts").toPath()
+                : FileSystems.getDefault().getPath(dataProp, "cache", "artifacts");
+        tmpDir = cacheDir.resolve("tmp");
+        maxSize = getLongProperty(bundleContext, "stamina.artifact.cache.size", DEFAULT_MAX_SIZE_MB) * 1024 * 1024;
+        Files.createDirectories(tmpDir);
+
+        // Remove incomplete artifacts.
+        try (final Stream<Path> files = Files.list(tmpDir)) {
+            for (final Path p : files.collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        }
+        final List<Path> files;
+        try (final Stream<Path> paths = Files.walk(cacheDir, 2)) {
+            files = paths.filter(p -> Files.isRegularFile(p) && Checksums.isValid(p.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+        files.sort(Comparator.comparing(ArtifactCacheImpl::getLastModified));
+        synchronized (this) {
+            for (final Path p : files) {
+                final long fileSize = Files.size(p);
+                artifacts.put(p.getFileName().toString(), fileSize);
+                size += fileSize;
+            }
+            final Path keysFile = cacheDir.resolve(KEYS_FILE);
+            if (Files.exists(keysFile)) {
+                try (final InputStream in = Files.newInputStream(keysFile)) {
+                    keys.load(in);
+                }
+                keys.values().removeIf(hash -> !artifacts.containsKey(hash));
+            }
+        }
+    }
+
+    @Override
+    public Path get(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        final String h = hash.toLowerCase();
+        synchronized (this) {
+            if (artifacts.get(h) == null) {
+                return null;
+            }
+        }
+        final Path file = getArtifactFile(h);
+        if (!Files.exists(file)) {
+            forget(h);
+            return null;
+        }
+        touch(file);
+        return file;
+    }
+
+    @Override
+    public InputStream open(String hash) throws IOException {
+        if (hash == null) {
+            return null;
+        }
+        final String h = hash.toLowerCase();
+        final Path file = getArtifactFile(h);
+        final InputStream in;
+        // Artifacts are evicted with this instance locked:
+        // this artifact is pinned before it can be evicted.
+        synchronized (this) {
+            if (artifacts.get(h) == null) {
+                return null;
+            }
+            try {
+                in = Files.newInputStream(file);
+            } catch (NoSuchFileException e) {
+                forget(h);
+                return null;
+            }
+            pinned.merge(h, 1, Integer::sum);
+        }
+        touch(file);
+        return new FilterInputStream(in) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        unpin(h);
+                    }
+                }
+            }
+        };
+    }
+
+    private synchronized void unpin(String hash) {
+        pinned.computeIfPresent(hash, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    private synchronized void forget(String hash) {
+        final Long fileSize = artifacts.remove(hash);
+        if (fileSize != null) {
+            size -= fileSize;
+        }
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignore) {
+        }
+    }
+
+    @Override
+    public Path getByKey(String key) {
+        final String hash;
+        synchronized (this) {
+            hash = keys.getProperty(key);
+        }
+        return get(hash);
+    }
+
+    @Override
+    public Path put(String key, InputStream in, String expectedHash) throws IOException {
+        final Path tmp = Files.createTempFile(tmpDir, "artifact-", ".part");
+        try {
+            final MessageDigest md = Checksums.newDigest();
+            long fileSize = 0;
+            try (final OutputStream out = Files.newOutputStream(tmp)) {
+                final byte[] buf = new byte[65536];
+                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                    md.update(buf, 0, bytesRead);
+                    out.write(buf, 0, bytesRead);
+                    fileSize += bytesRead;
+                }
+            }
+            final String hash = Checksums.toHex(md.digest());
+            if (expectedHash != null && !expectedHash.equalsIgnoreCase(hash)) {
+                throw new IOException("Checksum mismatch: expected " + expectedHash + ", got " + hash);
+            }
+
+            final Path file = getArtifactFile(hash);
+            Files.createDirectories(file.getParent());
+            synchronized (this) {
+                if (artifacts.containsKey(hash) && Files.exists(file)) {
+                    // Same content was stored meanwhile.
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                } else {
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    final Long oldSize = artifacts.put(hash, fileSize);
+                    size += fileSize - (oldSize == null ? 0 : oldSize);
+                }
+                if (key != null && !hash.equals(keys.put(key, hash))) {
+                    saveKeys();
+                }
+                evict(hash);
+            }
+            return file;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(String key) {
+        if (keys.remove(key) != null) {
+            try {
+                saveKeys();
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to save artifact cache keys", e);
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used artifacts, until cache size is below its limit.
+     * Pinned artifacts are skipped.
+     * Called with this instance locked.
+     */
+    private void evict(String keptHash) throws IOException {
+        boolean keysUpdated = false;
+        for (final Iterator<Map.Entry<String, Long>> i = artifacts.entrySet().iterator();
+             size > maxSize && i.hasNext(); ) {
+            final Map.Entry<String, Long> e = i.next();
+            if (e.getKey().equals(keptHash) || pinned.containsKey(e.getKey())) {
+                continue;
+            }
+            i.remove();
+            size -= e.getValue();
+            Files.deleteIfExists(getArtifactFile(e.getKey()));
+            keysUpdated |= keys.values().removeIf(hash -> hash.equals(e.getKey()));
+            logService.log(LogService.LOG_DEBUG, "Evicted artifact from cache: " + e.getKey());
+        }
+        if (keysUpdated) {
+            saveKeys();
+        }
+    }
+
+    private void saveKeys() throws IOException {
+        final Path tmp = Files.createTempFile(tmpDir, "keys-", ".part");
+        try {
+            try (final OutputStream out = Files.newOutputStream(tmp)) {
+                keys.store(out, null);
+            }
+            Files.move(tmp, cacheDir.resolve(KEYS_FILE), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path getArtifactFile(String hash) {
+        return cacheDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static long getLongProperty(BundleContext context, String key, long defaultValue) {
+        final String value = context.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer value for framework property " + key + ": " + value, e);
+        }
+    }
+
+    private static FileTime getLastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.util.Hashtable;
 import static io.staminaframework.runtime.starter.it.OsgiHelper.createSubsystemFeature;
 import static io.staminaframework.runtime.starter.it.OsgiHelper.lookupSubsystem;
 import static io.staminaframework.runtime.starter.it.StaminaOptions.staminaDistribution;
+import static org.ops4j.pax.exam.CoreOptions.frameworkProperty;
 import static org.ops4j.pax.exam.CoreOptions.options;
 
 /**
@@ -44,6 +45,10 @@ import static org.ops4j.pax.exam.CoreOptions.options;
  */
 @RunWith(PaxExam.class)
 public class SubsystemIT {
+    /**
+     * Subsystems dropped at the same time are installed as a batch, after this delay.
+     */
+    private static final long BATCH_DELAY = 500;
     @Inject
     private BundleContext bundleContext;
     @Inject
@@ -54,7 +59,8 @@ public class SubsystemIT {
     @Configuration
     public Option[] config() throws IOException {
         return options(
-                staminaDistribution()
+                staminaDistribution(),
+                frameworkProperty("stamina.subsystem.batch.delay").value(String.valueOf(BATCH_DELAY))
         );
     }
 
@@ -77,6 +83,6 @@ public class SubsystemIT {
     @Test
     public void testDeploySubsystem() throws IOException, InterruptedException {
         setupAddons();
-        lookupSubsystem(bundleContext, "it.myaddon", 2000);
+        lookupSubsystem(bundleContext, "it.myaddon", 2000 + BATCH_DELAY);
     }
 }
@@ -17,6 +17,7 @@
 package io.staminaframework.runtime.launcher;
 
 import io.staminaframework.runtime.launcher.internal.ConsoleLogger;
+import io.staminaframework.runtime.manifestcache.ManifestCache;
 import org.apache.felix.framework.util.FelixConstants;
 import org.osgi.framework.*;
 import org.osgi.framework.launch.Framework;
@@ -194,7 +195,7 @@ public class Main {
         final BundleContext sysCtx = fmk.getBundleContext();
         final Dictionary<String, Object> systemUrlProps = new Hashtable<>(1);
         systemUrlProps.put(URLConstants.URL_HANDLER_PROTOCOL, "system");
-        sysCtx.registerService(URLStreamHandlerService.class, new SystemURLStreamHandlerService(homeDir.resolve("sys"), logger), systemUrlProps);
+        sysCtx.registerService(URLStreamHandlerService.class, new SystemURLStreamHandlerService(homeDir.resolve("sys"), new ManifestCache(1024), logger), systemUrlProps);
 
         logger.debug(() -> "Loading bundle start levels");
         final Path initFile = confDir.resolve("init.properties");
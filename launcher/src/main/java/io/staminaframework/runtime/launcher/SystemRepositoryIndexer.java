@@ -22,11 +22,13 @@ import org.osgi.framework.Constants;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
@@ -34,15 +36,21 @@ import java.util.Set;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 /**
  * This component is responsible for generating an OBR index file,
  * based on system repository content.
+ * <p>
+ * Every archive is read once: its content hash is computed while
+ * manifest entries are read.
  *
  * @author Stamina Framework developers
  */
 class SystemRepositoryIndexer {
+    private static final String BUNDLE_MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String SUBSYSTEM_MANIFEST = "OSGI-INF/SUBSYSTEM.MF";
+
     /**
      * Index system repository.
      *
@@ -66,25 +74,52 @@ class SystemRepositoryIndexer {
         final byte[] buf = new byte[4096];
         for (final Path resourceFile : resourceFiles) {
             final Resource rsc = new Resource();
-            try (final InputStream in = Files.newInputStream(resourceFile)) {
-                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
-                    md.update(buf, 0, bytesRead);
+            Manifest bundleManifest = null;
+            Manifest subsystemManifest = null;
+            md.reset();
+            try (final InputStream in = new DigestInputStream(
+                    new BufferedInputStream(Files.newInputStream(resourceFile)), md)) {
+                final ZipInputStream zip = new ZipInputStream(in);
+                for (ZipEntry e; (e = zip.getNextEntry()) != null; ) {
+                    if (BUNDLE_MANIFEST.equalsIgnoreCase(e.getName())) {
+                        bundleManifest = new Manifest(zip);
+                    } else if (SUBSYSTEM_MANIFEST.equals(e.getName())) {
+                        subsystemManifest = new Manifest(zip);
+                    }
+                }
+                // Remaining bytes (such as ZIP central directory) are part of the content hash.
+                while (in.read(buf) != -1) {
                 }
             }
             final byte[] hash = md.digest();
             rsc.checksum = bytesToHex(hash);
             rsc.fileSize = Files.size(resourceFile);
 
-            try (final ZipFile zip = new ZipFile(resourceFile.toFile())) {
-                ZipEntry e = zip.getEntry("META-INF/MANIFEST.MF");
-                if (e != null) {
-                    final Manifest man = new Manifest(zip.getInputStream(e));
-                    final String bsn = man.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
-                    if (bsn != null) {
-                        rsc.symbolicName = Parser.parseHeader(bsn)[0].getName();
-                        rsc.type = man.getMainAttributes().getValue(Constants.FRAGMENT_HOST) == null
-                                ? Resource.Type.BUNDLE : Resource.Type.FRAGMENT_BUNDLE;
-                        rsc.version = man.getMainAttributes().getValue(Constants.BUNDLE_VERSION);
+            Manifest man = bundleManifest;
+            if (man != null) {
+                final String bsn = man.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
+                if (bsn != null) {
+                    rsc.symbolicName = Parser.parseHeader(bsn)[0].getName();
+                    rsc.type = man.getMainAttributes().getValue(Constants.FRAGMENT_HOST) == null
+                            ? Resource.Type.BUNDLE : Resource.Type.FRAGMENT_BUNDLE;
+                    rsc.version = man.getMainAttributes().getValue(Constants.BUNDLE_VERSION);
+                    if (rsc.version == null) {
+                        rsc.version = "0.0.0";
+                    }
+                    rsc.url = "system://" + rsc.symbolicName;
+                    resources.add(rsc);
+                    continue;
+                }
+            }
+            man = subsystemManifest;
+            if (man != null) {
+                final String ssn = man.getMainAttributes().getValue("Subsystem-SymbolicName");
+                if (ssn != null) {
+                    final String stype = man.getMainAttributes().getValue("Subsystem-Type");
+                    if ("osgi.subsystem.feature".equals(stype)) {
+                        rsc.symbolicName = Parser.parseHeader(ssn)[0].getName();
+                        rsc.type = Resource.Type.FEATURE_SUBSYSTEM;
+                        rsc.version = man.getMainAttributes().getValue("Subsystem-Version");
                         if (rsc.version == null) {
                             rsc.version = "0.0.0";
                         }
@@ -93,25 +128,6 @@ class SystemRepositoryIndexer {
                         continue;
                     }
                 }
-                e = zip.getEntry("OSGI-INF/SUBSYSTEM.MF");
-                if (e != null) {
-                    final Manifest man = new Manifest(zip.getInputStream(e));
-                    final String ssn = man.getMainAttributes().getValue("Subsystem-SymbolicName");
-                    if (ssn != null) {
-                        final String stype = man.getMainAttributes().getValue("Subsystem-Type");
-                        if ("osgi.subsystem.feature".equals(stype)) {
-                            rsc.symbolicName = Parser.parseHeader(ssn)[0].getName();
-                            rsc.type = Resource.Type.FEATURE_SUBSYSTEM;
-                            rsc.version = man.getMainAttributes().getValue("Subsystem-Version");
-                            if (rsc.version == null) {
-                                rsc.version = "0.0.0";
-                            }
-                            rsc.url = "system://" + rsc.symbolicName;
-                            resources.add(rsc);
-                            continue;
-                        }
-                    }
-                }
             }
         }
 
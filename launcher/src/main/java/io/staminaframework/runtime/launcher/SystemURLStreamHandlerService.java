@@ -16,6 +16,7 @@
 
 package io.staminaframework.runtime.launcher;
 
+import io.staminaframework.runtime.manifestcache.ManifestCache;
 import org.apache.felix.utils.manifest.Clause;
 import org.apache.felix.utils.manifest.Parser;
 import org.osgi.framework.Constants;
@@ -31,26 +32,30 @@ import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * URL handler for loading bundles through the system repository.
+ * Manifests are read from a {@link ManifestCache}.
  *
  * @author Stamina Framework developers
  */
 class SystemURLStreamHandlerService extends AbstractURLStreamHandlerService {
     private final Map<String, Resource> resourcesBySymbolicName = new HashMap<>(16);
+    private final ManifestCache manifestCache;
 
-    public SystemURLStreamHandlerService(final Path systemRepoDir, final Logger logger) throws IOException {
+    public SystemURLStreamHandlerService(final Path systemRepoDir, final ManifestCache manifestCache,
+                                         final Logger logger) throws IOException {
+        this.manifestCache = manifestCache;
         final Set<Path> files = Files.walk(systemRepoDir)
                 .filter(this::isBundleOrSubsystem)
                 .collect(Collectors.toSet());
         for (final Path p : files) {
             Resource rsc = toResource(p);
+            if (rsc.symbolicName == null) {
+                continue;
+            }
             final Resource old = resourcesBySymbolicName.get(rsc.symbolicName);
             if (old != null) {
                 // We only keep the highest version of a given system resource.
@@ -80,8 +85,8 @@ class SystemURLStreamHandlerService extends AbstractURLStreamHandlerService {
         Version v = null;
         final String fileName = f.getFileName().toString().toLowerCase();
         if (fileName.endsWith(".jar")) {
-            try (final JarFile jar = new JarFile(f.toFile())) {
-                final Manifest man = jar.getManifest();
+            try {
+                final Manifest man = manifestCache.getManifest(f, ManifestCache.BUNDLE_MANIFEST);
                 if (man != null) {
                     final String rawSn = man.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
                     if (rawSn != null) {
@@ -100,10 +105,9 @@ class SystemURLStreamHandlerService extends AbstractURLStreamHandlerService {
             } catch (IOException ignore) {
             }
         } else if (fileName.endsWith(".esa")) {
-            try (final ZipFile zip = new ZipFile(f.toFile())) {
-                final ZipEntry e = zip.getEntry("OSGI-INF/SUBSYSTEM.MF");
-                if (e != null) {
-                    final Manifest man = new Manifest(zip.getInputStream(e));
+            try {
+                final Manifest man = manifestCache.getManifest(f, ManifestCache.SUBSYSTEM_MANIFEST);
+                if (man != null) {
                     final String ssn = man.getMainAttributes().getValue("Subsystem-SymbolicName");
                     if (ssn != null) {
                         sn = Parser.parseHeader(ssn)[0].getName();
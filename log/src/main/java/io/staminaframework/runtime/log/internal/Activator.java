@@ -16,10 +16,20 @@
 
 package io.staminaframework.runtime.log.internal;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.classic.joran.action.ConfigurationAction;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggerContextListener;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AsyncAppenderBase;
+import ch.qos.logback.core.BasicStatusManager;
 import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.status.StatusListener;
+import ch.qos.logback.core.status.StatusManager;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogReaderService;
@@ -30,8 +40,16 @@ import java.io.FileNotFoundException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Bundle activator.
@@ -39,6 +57,16 @@ import java.util.Hashtable;
  * @author Stamina Framework developers
  */
 public class Activator implements BundleActivator {
+    private static final Pattern RATE_LIMIT_PATTERN = Pattern.compile("([^\\s\\[]+)\\[([^\\]]*)\\]");
+    private LogDispatcher dispatcher;
+    private LogJournal journal;
+    private ScheduledExecutorService scheduler;
+    private AsyncPipeline pipeline;
+    private OsgiBridge bridge;
+    private RateLimitFilter rateLimitFilter;
+    private ResetListener resetListener;
+    private StatusManager originalStatusManager;
+
     @Override
     public void start(BundleContext context) throws Exception {
         final String confPath = context.getProperty("stamina.conf");
@@ -51,23 +79,136 @@ public class Activator implements BundleActivator {
             throw new FileNotFoundException("Missing logging configuration file: " + logFile);
         }
 
+        final String dataPath = context.getProperty("stamina.data");
         final LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
         try {
-            final JoranConfigurator joranConfigurator = new JoranConfigurator();
-            joranConfigurator.setContext(loggerContext);
             loggerContext.reset();
-            joranConfigurator.doConfigure(logFile.toFile());
+            if (dataPath != null && !"false".equalsIgnoreCase(context.getProperty("stamina.log.config.cache"))) {
+                final ConfigurationCache configurationCache = new ConfigurationCache(
+                        FileSystems.getDefault().getPath(dataPath).resolve("log").resolve("logback.cache"));
+                configurationCache.setContext(loggerContext);
+                configurationCache.configure(logFile);
+            } else {
+                final JoranConfigurator joranConfigurator = new JoranConfigurator();
+                joranConfigurator.setContext(loggerContext);
+                joranConfigurator.doConfigure(logFile.toFile());
+            }
         } catch (JoranException e) {
             throw new RuntimeException("Unable to configure logging system", e);
         }
 
-        final OsgiBridge bridge = new OsgiBridge();
+        final int bufferCapacity = getIntProperty(context, "stamina.log.buffer.size",
+                OsgiBridge.DEFAULT_BUFFER_CAPACITY);
+        dispatcher = new LogDispatcher(
+                getIntProperty(context, "stamina.log.listener.queue.size", LogDispatcher.DEFAULT_QUEUE_SIZE),
+                getIntProperty(context, "stamina.log.listener.batch.size", LogDispatcher.DEFAULT_BATCH_SIZE),
+                getOverflowPolicyProperty(context, "stamina.log.listener.overflow",
+                        LogDispatcher.OverflowPolicy.DROP_NEWEST));
+        dispatcher.start();
+        try {
+            install(context, loggerContext, dataPath, bufferCapacity);
+        } catch (Throwable e) {
+            // Components are detached from logback, and threads and files are released,
+            // since this bundle is not started.
+            try {
+                release(loggerContext);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                e.addSuppressed(ie);
+            }
+            throw e;
+        }
+    }
+
+    private void install(BundleContext context, LoggerContext loggerContext,
+                         String dataPath, int bufferCapacity) throws Exception {
+        if (dataPath != null && !"false".equalsIgnoreCase(context.getProperty("stamina.log.journal.enabled"))) {
+            final Path journalDir = FileSystems.getDefault().getPath(dataPath).resolve("log").resolve("journal");
+            journal = new LogJournal(journalDir,
+                    getIntProperty(context, "stamina.log.journal.segment.size", LogJournal.DEFAULT_SEGMENT_SIZE),
+                    getIntProperty(context, "stamina.log.journal.segments", LogJournal.DEFAULT_MAX_SEGMENTS));
+            journal.setContext(loggerContext);
+            journal.setName("JOURNAL");
+            journal.open();
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "Stamina Log Scheduler Thread");
+            t.setDaemon(true);
+            return t;
+        });
+
+        final Logger rootLogger = loggerContext.getLogger(Logger.ROOT_LOGGER_NAME);
+        final AsyncPipeline pipeline;
+        if (!"false".equalsIgnoreCase(context.getProperty("stamina.log.async.enabled"))) {
+            final String discardLevel = context.getProperty("stamina.log.async.discard.level");
+            pipeline = new AsyncPipeline(
+                    getIntProperty(context, "stamina.log.async.queue.size", AsyncPipeline.DEFAULT_QUEUE_SIZE),
+                    getIntProperty(context, "stamina.log.async.batch.size", AsyncPipeline.DEFAULT_BATCH_SIZE),
+                    getIntProperty(context, "stamina.log.async.discard.threshold", AsyncPipeline.DEFAULT_DISCARD_THRESHOLD),
+                    discardLevel == null ? Level.INFO : Level.toLevel(discardLevel.trim(), Level.INFO));
+            pipeline.setContext(loggerContext);
+            pipeline.setName("PIPELINE");
+            this.pipeline = pipeline;
+            wrapAppenders(rootLogger, pipeline);
+        } else {
+            pipeline = null;
+        }
+
+        final OsgiBridge bridge = new OsgiBridge(bufferCapacity, dispatcher);
+        this.bridge = bridge;
         bridge.setContext(loggerContext);
         bridge.setName("OSGI");
-        final Logger rootLogger = loggerContext.getLogger(Logger.ROOT_LOGGER_NAME);
         rootLogger.addAppender(bridge);
+        if (journal != null) {
+            // Journal entries are written synchronously: they never go through the async pipeline.
+            rootLogger.addAppender(journal);
+            journal.start();
+        }
+
+        LogIndex index = null;
+        if (!"false".equalsIgnoreCase(context.getProperty("stamina.log.index.enabled"))) {
+            index = new LogIndex(bridge.getBuffer());
+            dispatcher.addListener(index);
+        }
         bridge.start();
 
+        final RateLimitFilter rateLimitFilter = new RateLimitFilter();
+        this.rateLimitFilter = rateLimitFilter;
+        rateLimitFilter.setContext(loggerContext);
+        rateLimitFilter.setName("RATE_LIMIT");
+        final String limitsProp = context.getProperty("stamina.log.limits");
+        if (limitsProp != null) {
+            final Matcher m = RATE_LIMIT_PATTERN.matcher(limitsProp);
+            while (m.find()) {
+                rateLimitFilter.setLimit(RateLimit.parse(m.group(1), m.group(2)));
+            }
+        }
+        rateLimitFilter.start();
+        loggerContext.addTurboFilter(rateLimitFilter);
+
+        final String summaryIntervalKey = "stamina.log.limits.summary.interval";
+        final int summaryInterval = getIntProperty(context, summaryIntervalKey, 60);
+        if (summaryInterval < 1) {
+            throw new IllegalArgumentException("Invalid value for framework property "
+                    + summaryIntervalKey + ": " + summaryInterval);
+        }
+        final org.slf4j.Logger summaryLogger = LoggerFactory.getLogger(RateLimitFilter.class);
+        scheduler.scheduleWithFixedDelay(() -> rateLimitFilter.reportSuppressedEntries(summaryLogger),
+                summaryInterval, summaryInterval, TimeUnit.SECONDS);
+
+        // Logback configuration may be reloaded when files are updated:
+        // make sure our components are still there after a reset.
+        resetListener = new ResetListener(bridge, journal, rateLimitFilter);
+        loggerContext.addListener(resetListener);
+        if (pipeline != null) {
+            // New appenders are only created once configuration is reloaded,
+            // which happens after reset listeners are notified.
+            originalStatusManager = loggerContext.getStatusManager();
+            loggerContext.setStatusManager(new ConfigurationEndHook(
+                    originalStatusManager, rootLogger, pipeline));
+        }
+
         SLF4JBridgeHandler.removeHandlersForRootLogger();
         SLF4JBridgeHandler.install();
 
@@ -75,15 +216,223 @@ public class Activator implements BundleActivator {
 
         final Dictionary<String, Object> logCmdProps = new Hashtable<>(2);
         logCmdProps.put("osgi.command.scope", "log");
-        logCmdProps.put("osgi.command.function", new String[]{"tail", "get", "set", "clear"});
-        context.registerService(LogCommands.class, new LogCommands(bridge), logCmdProps);
+        logCmdProps.put("osgi.command.function", new String[]{"tail", "get", "set", "clear", "listeners", "query", "limit", "limits", "stats", "pipeline", "grep"});
+        context.registerService(LogCommands.class, new LogCommands(bridge, journal, rateLimitFilter, pipeline, index), logCmdProps);
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
-        SLF4JBridgeHandler.uninstall();
-
         final LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
-        loggerContext.stop();
+        try {
+            if (resetListener != null) {
+                // Stopping logging context resets it: do not install our components again.
+                loggerContext.removeListener(resetListener);
+                resetListener = null;
+            }
+            // Pending log events are delivered when the async pipeline is stopped.
+            loggerContext.stop();
+        } finally {
+            release(loggerContext);
+        }
+    }
+
+    /**
+     * Detach our components from logback, then release threads and files.
+     */
+    private void release(LoggerContext loggerContext) throws InterruptedException {
+        try {
+            SLF4JBridgeHandler.uninstall();
+            if (resetListener != null) {
+                loggerContext.removeListener(resetListener);
+                resetListener = null;
+            }
+            if (originalStatusManager != null) {
+                loggerContext.setStatusManager(originalStatusManager);
+                originalStatusManager = null;
+            }
+            if (rateLimitFilter != null) {
+                loggerContext.getTurboFilterList().remove(rateLimitFilter);
+                rateLimitFilter.stop();
+                rateLimitFilter = null;
+            }
+            final Logger rootLogger = loggerContext.getLogger(Logger.ROOT_LOGGER_NAME);
+            if (bridge != null) {
+                rootLogger.detachAppender(bridge);
+                bridge.stop();
+                bridge = null;
+            }
+            if (journal != null) {
+                rootLogger.detachAppender(journal);
+            }
+            if (pipeline != null) {
+                // Appenders are given back to root logger if logging context was not stopped.
+                if (rootLogger.detachAppender(pipeline)) {
+                    for (final Appender<ILoggingEvent> appender : pipeline.detachAppenders()) {
+                        rootLogger.addAppender(appender);
+                    }
+                }
+                pipeline = null;
+            }
+        } finally {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            try {
+                if (dispatcher != null) {
+                    dispatcher.stop();
+                    dispatcher = null;
+                }
+            } finally {
+                if (journal != null) {
+                    journal.close();
+                    journal = null;
+                }
+            }
+        }
+    }
+
+    private static int getIntProperty(BundleContext context, String key, int defaultValue) {
+        final String value = context.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer value for framework property " + key + ": " + value, e);
+        }
+    }
+
+    private static LogDispatcher.OverflowPolicy getOverflowPolicyProperty(
+            BundleContext context, String key, LogDispatcher.OverflowPolicy defaultValue) {
+        final String value = context.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return LogDispatcher.OverflowPolicy.parse(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid overflow policy for framework property " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * Move appenders attached to root logger to the async pipeline.
+     * Async appenders are replaced by the pipeline: their appenders are moved as well.
+     * The OSGi bridge and the log journal are left untouched.
+     */
+    private static void wrapAppenders(Logger rootLogger, AsyncPipeline pipeline) {
+        final List<Appender<ILoggingEvent>> appenders = new ArrayList<>(4);
+        final List<AsyncAppenderBase<ILoggingEvent>> asyncAppenders = new ArrayList<>(1);
+        for (final Iterator<Appender<ILoggingEvent>> i = rootLogger.iteratorForAppenders(); i.hasNext(); ) {
+            final Appender<ILoggingEvent> appender = i.next();
+            if (appender instanceof AsyncAppenderBase) {
+                asyncAppenders.add((AsyncAppenderBase<ILoggingEvent>) appender);
+            } else if (appender != pipeline && !(appender instanceof OsgiBridge) && !(appender instanceof LogJournal)) {
+                appenders.add(appender);
+            }
+        }
+        for (final Appender<ILoggingEvent> appender : appenders) {
+            rootLogger.detachAppender(appender);
+            pipeline.addAppender(appender);
+        }
+        for (final AsyncAppenderBase<ILoggingEvent> async : asyncAppenders) {
+            rootLogger.detachAppender(async);
+            final List<Appender<ILoggingEvent>> children = new ArrayList<>(2);
+            for (final Iterator<Appender<ILoggingEvent>> i = async.iteratorForAppenders(); i.hasNext(); ) {
+                children.add(i.next());
+            }
+            // Appenders are detached first, since stopping an async appender stops its appenders.
+            for (final Appender<ILoggingEvent> child : children) {
+                async.detachAppender(child);
+                pipeline.addAppender(child);
+            }
+            async.stop();
+        }
+        if (!rootLogger.isAttached(pipeline)) {
+            rootLogger.addAppender(pipeline);
+        }
+        pipeline.start();
+    }
+
+    /**
+     * Install our components again when logging configuration is reset.
+     */
+    private static class ResetListener implements LoggerContextListener {
+        private final OsgiBridge bridge;
+        private final LogJournal journal;
+        private final RateLimitFilter rateLimitFilter;
+
+        public ResetListener(final OsgiBridge bridge, final LogJournal journal,
+                             final RateLimitFilter rateLimitFilter) {
+            this.bridge = bridge;
+            this.journal = journal;
+            this.rateLimitFilter = rateLimitFilter;
+        }
+
+        @Override
+        public boolean isResetResistant() {
+            return true;
+        }
+
+        @Override
+        public void onStart(LoggerContext context) {
+        }
+
+        @Override
+        public void onReset(LoggerContext context) {
+            // Appenders were stopped and turbo filters were removed.
+            final Logger rootLogger = context.getLogger(Logger.ROOT_LOGGER_NAME);
+            rootLogger.addAppender(bridge);
+            bridge.start();
+            if (journal != null) {
+                rootLogger.addAppender(journal);
+                journal.start();
+            }
+            context.addTurboFilter(rateLimitFilter);
+        }
+
+        @Override
+        public void onStop(LoggerContext context) {
+        }
+
+        @Override
+        public void onLevelChange(Logger logger, Level level) {
+        }
+    }
+
+    /**
+     * Status manager moving new appenders to the async pipeline when a configuration ends.
+     * <p>
+     * Logback does not notify context listeners when configuration is reloaded:
+     * Joran reports the end of configuration as a status, from the configuring thread
+     * (while configuration lock is held). At this point, all appenders are attached.
+     */
+    private static class ConfigurationEndHook extends BasicStatusManager {
+        private static final String END_OF_CONFIGURATION = "End of configuration.";
+        private final Logger rootLogger;
+        private final AsyncPipeline pipeline;
+
+        public ConfigurationEndHook(final StatusManager statusManager,
+                                    final Logger rootLogger, final AsyncPipeline pipeline) {
+            this.rootLogger = rootLogger;
+            this.pipeline = pipeline;
+            for (final Status status : statusManager.getCopyOfStatusList()) {
+                super.add(status);
+            }
+            for (final StatusListener listener : statusManager.getCopyOfStatusListenerList()) {
+                add(listener);
+            }
+        }
+
+        @Override
+        public void add(Status status) {
+            super.add(status);
+            if (status.getOrigin() instanceof ConfigurationAction
+                    && END_OF_CONFIGURATION.equals(status.getMessage())) {
+                wrapAppenders(rootLogger, pipeline);
+            }
+        }
     }
 }
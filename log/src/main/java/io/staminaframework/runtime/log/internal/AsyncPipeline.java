@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logback appender delivering log events to other appenders from a dedicated thread.
+ * <p>
+ * Log events are pushed to a {@link BoundedQueue}: threads emitting log events
+ * never wait for I/O operations, and never block.
+ * Events are delivered in batches: output streams are flushed once per batch,
+ * instead of once per event.
+ * When the queue is almost full, events at or below the discard level are
+ * discarded. When the queue is full, events are dropped.
+ * Pending events are always delivered when this appender is stopped.
+ *
+ * @author Stamina Framework developers
+ */
+class AsyncPipeline extends UnsynchronizedAppenderBase<ILoggingEvent> {
+    /**
+     * Default queue capacity.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+    /**
+     * Default max number of events delivered at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    /**
+     * Default discard threshold, as a percentage of the queue capacity.
+     */
+    public static final int DEFAULT_DISCARD_THRESHOLD = 20;
+    private static final long IDLE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final BoundedQueue<ILoggingEvent> queue;
+    private final int batchSize;
+    private final int discardThreshold;
+    private final Level discardLevel;
+    private final List<Appender<ILoggingEvent>> appenders = new CopyOnWriteArrayList<>();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread thread;
+    private volatile boolean idle;
+
+    /**
+     * Create a new instance.
+     *
+     * @param queueSize        queue capacity
+     * @param batchSize        max number of events delivered at once
+     * @param discardThreshold when the remaining capacity is below this percentage,
+     *                         events at or below the discard level are discarded
+     * @param discardLevel     level used to discard events
+     */
+    public AsyncPipeline(final int queueSize, final int batchSize,
+                         final int discardThreshold, final Level discardLevel) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid async log batch size: " + batchSize);
+        }
+        if (discardThreshold < 0 || discardThreshold > 100) {
+            throw new IllegalArgumentException("Invalid async log discard threshold: " + discardThreshold);
+        }
+        this.queue = new BoundedQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.discardThreshold = (int) ((long) queue.capacity() * discardThreshold / 100);
+        this.discardLevel = discardLevel;
+    }
+
+    /**
+     * Add an appender, which will get events from the pipeline thread.
+     * Output streams are no longer flushed after each event.
+     *
+     * @param appender appender to add
+     */
+    public void addAppender(Appender<ILoggingEvent> appender) {
+        if (appender instanceof OutputStreamAppender) {
+            ((OutputStreamAppender<ILoggingEvent>) appender).setImmediateFlush(false);
+        }
+        appenders.add(appender);
+    }
+
+    public List<Appender<ILoggingEvent>> getAppenders() {
+        return new ArrayList<>(appenders);
+    }
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        final Thread t = new Thread(this::run, "Stamina Log Pipeline Thread");
+        t.setDaemon(true);
+        thread = t;
+        super.start();
+        t.start();
+    }
+
+    /**
+     * Stop this appender: pending events are delivered before
+     * appenders attached to this pipeline are stopped.
+     */
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        drain();
+        for (final Appender<ILoggingEvent> appender : appenders) {
+            appender.stop();
+        }
+        appenders.clear();
+    }
+
+    /**
+     * Stop this appender, without stopping appenders attached to this pipeline:
+     * pending events are delivered, then appenders are detached.
+     *
+     * @return appenders which were attached to this pipeline
+     */
+    public List<Appender<ILoggingEvent>> detachAppenders() {
+        if (isStarted()) {
+            drain();
+        }
+        final List<Appender<ILoggingEvent>> detached = new ArrayList<>(appenders);
+        appenders.clear();
+        for (final Appender<ILoggingEvent> appender : detached) {
+            if (appender instanceof OutputStreamAppender) {
+                ((OutputStreamAppender<ILoggingEvent>) appender).setImmediateFlush(true);
+            }
+        }
+        return detached;
+    }
+
+    private void drain() {
+        super.stop();
+
+        final Thread t = thread;
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                // Keep waiting: pending events must be delivered.
+                interrupted = true;
+            }
+        }
+        thread = null;
+
+        // Some events may have been pushed while this appender was stopping.
+        deliverPending(new ILoggingEvent[batchSize]);
+        flush();
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    protected void append(ILoggingEvent e) {
+        if (queue.capacity() - queue.size() <= discardThreshold
+                && discardLevel != null && e.getLevel().toInt() <= discardLevel.toInt()) {
+            discarded.incrementAndGet();
+            return;
+        }
+        // Event fields must be set from the calling thread.
+        e.prepareForDeferredProcessing();
+        if (!queue.offer(e)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        final ILoggingEvent[] batch = new ILoggingEvent[batchSize];
+        for (; ; ) {
+            if (deliverPending(batch) != 0) {
+                flush();
+                continue;
+            }
+            if (!isStarted()) {
+                break;
+            }
+            idle = true;
+            if (queue.isEmpty() && isStarted()) {
+                LockSupport.parkNanos(this, IDLE_TIMEOUT);
+            }
+            idle = false;
+        }
+    }
+
+    private int deliverPending(ILoggingEvent[] batch) {
+        int total = 0;
+        int n;
+        while ((n = queue.drain(batch)) != 0) {
+            for (int i = 0; i < n; ++i) {
+                for (final Appender<ILoggingEvent> appender : appenders) {
+                    appender.doAppend(batch[i]);
+                }
+                batch[i] = null;
+            }
+            delivered.addAndGet(n);
+            total += n;
+        }
+        return total;
+    }
+
+    private void flush() {
+        for (final Appender<ILoggingEvent> appender : appenders) {
+            if (appender instanceof OutputStreamAppender) {
+                final OutputStream out = ((OutputStreamAppender<ILoggingEvent>) appender).getOutputStream();
+                if (out != null) {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        addError("Failed to flush appender " + appender.getName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    public Level getDiscardLevel() {
+        return discardLevel;
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
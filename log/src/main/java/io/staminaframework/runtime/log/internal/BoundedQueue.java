@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free bounded queue, supporting many producers and consumers.
+ * <p>
+ * Every slot has a sequence number, telling whether this slot is ready
+ * to be written by a producer or read by a consumer. Producers and consumers
+ * only compete on a single counter: there is no lock, and no allocation
+ * is made when elements are added.
+ *
+ * @param <E> element type
+ * @author Stamina Framework developers
+ */
+final class BoundedQueue<E> {
+    /**
+     * Max queue capacity: the largest power of two which is a valid array size.
+     */
+    public static final int MAX_CAPACITY = 1 << 30;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public BoundedQueue(final int capacity) {
+        if (capacity < 2 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        // Use a power of two in order to select a slot with a simple mask.
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add an element to this queue.
+     *
+     * @param e element to add
+     * @return <code>false</code> if this queue is full
+     */
+    public boolean offer(E e) {
+        for (; ; ) {
+            final long pos = tail.get();
+            final int i = (int) (pos & mask);
+            final long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(i, e);
+                    // Publish this element to consumers.
+                    sequences.lazySet(i, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Remove an element from this queue.
+     *
+     * @return an element, or <code>null</code> if this queue is empty
+     */
+    public E poll() {
+        for (; ; ) {
+            final long pos = head.get();
+            final int i = (int) (pos & mask);
+            final long diff = sequences.get(i) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final E e = elements.get(i);
+                    elements.lazySet(i, null);
+                    // This slot is now available for the next round.
+                    sequences.lazySet(i, pos + mask + 1);
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Remove elements from this queue.
+     *
+     * @param batch array where elements are copied
+     * @return number of elements removed
+     */
+    public int drain(E[] batch) {
+        int n = 0;
+        while (n < batch.length) {
+            final E e = poll();
+            if (e == null) {
+                break;
+            }
+            batch[n++] = e;
+        }
+        return n;
+    }
+
+    /**
+     * Get the number of elements in this queue.
+     * This value is only an estimate when this queue is updated.
+     *
+     * @return number of elements
+     */
+    public int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.joran.event.BodyEvent;
+import ch.qos.logback.core.joran.event.EndEvent;
+import ch.qos.logback.core.joran.event.SaxEvent;
+import ch.qos.logback.core.joran.event.SaxEventRecorder;
+import ch.qos.logback.core.joran.event.StartEvent;
+import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.joran.util.ConfigurationWatchListUtil;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.status.StatusUtil;
+import ch.qos.logback.core.util.OptionHelper;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache for the logging configuration.
+ * <p>
+ * Logback configuration files are parsed once: SAX events from the main
+ * configuration file are recorded, with included files inlined, and stored
+ * in a file, using Java serialization. Next time, these events are played again
+ * without parsing XML files.
+ * This cache is only used if configuration files are unchanged
+ * (content hashes are compared). Otherwise, configuration files are parsed
+ * again and the cache is updated.
+ * <p>
+ * Only XML parsing is skipped: configuration files are still read in order
+ * to compute their hashes, and Joran actions still run for every event
+ * (appenders and encoders are built on every boot).
+ * <p>
+ * When a configuration cannot be cached (includes from URLs or classpath
+ * resources, unresolved variables, missing files), Joran is used as usual.
+ *
+ * @author Stamina Framework developers
+ */
+final class ConfigurationCache extends ContextAwareBase {
+    private static final int MAX_INCLUDE_DEPTH = 8;
+    private static final byte[] ABSENT = new byte[0];
+    private final Path cacheFile;
+
+    public ConfigurationCache(final Path cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Configure logging context.
+     *
+     * @param configFile main configuration file
+     * @throws JoranException if configuration failed
+     * @throws IOException    if configuration file could not be read
+     */
+    public void configure(Path configFile) throws JoranException, IOException {
+        final Path mainFile = configFile.toAbsolutePath();
+        final byte[] mainHash = hash(mainFile);
+        final JoranConfigurator configurator = new JoranConfigurator();
+        configurator.setContext(context);
+
+        final Map<Path, byte[]> includes = new LinkedHashMap<>(2);
+        List<SaxEvent> events = load(mainFile, mainHash, includes);
+        final boolean cached = events != null;
+        if (events == null) {
+            includes.clear();
+            events = compile(mainFile, includes, 0);
+            if (events == null) {
+                addInfo("Logging configuration cannot be cached: using Joran");
+                configurator.doConfigure(mainFile.toFile());
+                return;
+            }
+        } else {
+            addInfo("Using cached logging configuration from " + cacheFile);
+        }
+
+        // Included files are no longer watched by include actions:
+        // add these files to the watch list, so that configuration scanning still works.
+        ConfigurationWatchListUtil.setMainWatchURL(context, mainFile.toUri().toURL());
+        for (final Path include : includes.keySet()) {
+            try {
+                ConfigurationWatchListUtil.addToWatchList(context, include.toUri().toURL());
+            } catch (MalformedURLException ignore) {
+            }
+        }
+
+        final long threshold = System.currentTimeMillis();
+        configurator.doConfigure(events);
+        if (new StatusUtil(context).noXMLParsingErrorsOccurred(threshold)) {
+            configurator.registerSafeConfiguration(events);
+            if (!cached) {
+                store(mainFile, mainHash, includes, events);
+            }
+        }
+    }
+
+    private List<SaxEvent> compile(Path file, Map<Path, byte[]> includes, int depth) throws JoranException, IOException {
+        final SaxEventRecorder recorder = new SaxEventRecorder(context);
+        try (final BufferedInputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            recorder.recordEvents(in);
+        }
+        final List<SaxEvent> recorded = recorder.getSaxEventList();
+        final List<SaxEvent> events = new ArrayList<>(recorded.size());
+        for (int i = 0; i < recorded.size(); ++i) {
+            final SaxEvent e = recorded.get(i);
+            if (!(e instanceof StartEvent) || !"include".equalsIgnoreCase(tagName(e))) {
+                events.add(e);
+                continue;
+            }
+            final Attributes attrs = ((StartEvent) e).attributes;
+            final String fileAttr = attrs.getValue("file");
+            if (fileAttr == null || attrs.getValue("url") != null || attrs.getValue("resource") != null
+                    || depth >= MAX_INCLUDE_DEPTH) {
+                return null;
+            }
+            final String path = OptionHelper.substVars(fileAttr, context);
+            if (path.contains(CoreConstants.UNDEFINED_PROPERTY_SUFFIX)) {
+                return null;
+            }
+            // Same as IncludeAction: relative paths are resolved against current directory.
+            final Path include = file.getFileSystem().getPath(path).toAbsolutePath();
+            if (Files.exists(include)) {
+                includes.put(include, hash(include));
+                final List<SaxEvent> included = compile(include, includes, depth + 1);
+                if (included == null) {
+                    return null;
+                }
+                // Same as IncludeAction: <included> elements are removed.
+                int start = 0;
+                int end = included.size();
+                if (end != 0 && included.get(0) instanceof StartEvent && "included".equalsIgnoreCase(tagName(included.get(0)))) {
+                    ++start;
+                }
+                if (end > start && included.get(end - 1) instanceof EndEvent && "included".equalsIgnoreCase(tagName(included.get(end - 1)))) {
+                    --end;
+                }
+                events.addAll(included.subList(start, end));
+            } else if (OptionHelper.toBoolean(attrs.getValue("optional"), false)) {
+                includes.put(include, ABSENT);
+            } else {
+                // Let Joran report this error.
+                return null;
+            }
+
+            // Skip include element content.
+            int level = 1;
+            while (level != 0 && ++i < recorded.size()) {
+                final SaxEvent next = recorded.get(i);
+                if (next instanceof StartEvent) {
+                    ++level;
+                } else if (next instanceof EndEvent) {
+                    --level;
+                }
+            }
+        }
+        return events;
+    }
+
+    private List<SaxEvent> load(Path mainFile, byte[] mainHash, Map<Path, byte[]> includes) {
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+        final CachedConfiguration conf;
+        try (final ObjectInputStream in = new CacheInputStream(
+                new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            conf = (CachedConfiguration) in.readObject();
+        } catch (Exception e) {
+            addWarn("Failed to read logging configuration cache: " + cacheFile, e);
+            return null;
+        }
+        try {
+            if (!mainFile.toString().equals(conf.mainFile) || !Arrays.equals(mainHash, conf.mainHash)) {
+                return null;
+            }
+            for (final Map.Entry<String, byte[]> e : conf.includes.entrySet()) {
+                final Path include = mainFile.getFileSystem().getPath(e.getKey());
+                if (!Arrays.equals(e.getValue(), Files.exists(include) ? hash(include) : ABSENT)) {
+                    return null;
+                }
+                includes.put(include, e.getValue());
+            }
+
+            // Events are played again through a recorder, which builds element paths.
+            final SaxEventRecorder recorder = new SaxEventRecorder(context);
+            final LocatorImpl locator = new LocatorImpl();
+            recorder.setDocumentLocator(locator);
+            recorder.startDocument();
+            for (final CachedEvent e : conf.events) {
+                locator.setLineNumber(e.lineNumber);
+                locator.setColumnNumber(e.columnNumber);
+                if (e.text != null) {
+                    final char[] text = e.text.toCharArray();
+                    recorder.characters(text, 0, text.length);
+                } else if (e.attributes == null) {
+                    recorder.endElement(e.namespaceURI, e.localName, e.qName);
+                } else {
+                    final AttributesImpl attrs = new AttributesImpl();
+                    for (int i = 0; i < e.attributes.length; i += 5) {
+                        attrs.addAttribute(e.attributes[i], e.attributes[i + 1], e.attributes[i + 2],
+                                e.attributes[i + 3], e.attributes[i + 4]);
+                    }
+                    recorder.startElement(e.namespaceURI, e.localName, e.qName, attrs);
+                }
+            }
+            return recorder.getSaxEventList();
+        } catch (Exception e) {
+            addWarn("Failed to read logging configuration cache: " + cacheFile, e);
+            return null;
+        }
+    }
+
+    private void store(Path mainFile, byte[] mainHash, Map<Path, byte[]> includes, List<SaxEvent> events) {
+        final CachedConfiguration conf = new CachedConfiguration();
+        conf.mainFile = mainFile.toString();
+        conf.mainHash = mainHash;
+        conf.includes = new LinkedHashMap<>(includes.size());
+        for (final Map.Entry<Path, byte[]> e : includes.entrySet()) {
+            conf.includes.put(e.getKey().toString(), e.getValue());
+        }
+        conf.events = new ArrayList<>(events.size());
+        for (final SaxEvent e : events) {
+            conf.events.add(new CachedEvent(e));
+        }
+
+        final Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            try (final ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeObject(conf);
+            }
+            Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            addWarn("Failed to write logging configuration cache: " + cacheFile, e);
+        }
+    }
+
+    private static String tagName(SaxEvent e) {
+        return e.localName == null || e.localName.length() == 0 ? e.qName : e.localName;
+    }
+
+    private static byte[] hash(Path file) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to compute file hash", e);
+        }
+    }
+
+    /**
+     * Serialized form of a logging configuration.
+     * Logback SAX events are not serializable: event fields are copied.
+     */
+    private static final class CachedConfiguration implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String mainFile;
+        byte[] mainHash;
+        LinkedHashMap<String, byte[]> includes;
+        ArrayList<CachedEvent> events;
+    }
+
+    /**
+     * Serialized form of a SAX event.
+     */
+    private static final class CachedEvent implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int lineNumber;
+        final int columnNumber;
+        final String namespaceURI;
+        final String localName;
+        final String qName;
+        // Set for body events only.
+        final String text;
+        // Set for start events only: URI, local name, qualified name, type and value of each attribute.
+        final String[] attributes;
+
+        CachedEvent(final SaxEvent e) {
+            lineNumber = e.locator == null ? -1 : e.locator.getLineNumber();
+            columnNumber = e.locator == null ? -1 : e.locator.getColumnNumber();
+            namespaceURI = e.namespaceURI;
+            localName = e.localName;
+            qName = e.qName;
+            text = e instanceof BodyEvent ? ((BodyEvent) e).getText() : null;
+            if (e instanceof StartEvent) {
+                final Attributes attrs = ((StartEvent) e).attributes;
+                attributes = new String[attrs.getLength() * 5];
+                for (int i = 0; i < attrs.getLength(); ++i) {
+                    attributes[i * 5] = attrs.getURI(i);
+                    attributes[i * 5 + 1] = attrs.getLocalName(i);
+                    attributes[i * 5 + 2] = attrs.getQName(i);
+                    attributes[i * 5 + 3] = attrs.getType(i);
+                    attributes[i * 5 + 4] = attrs.getValue(i);
+                }
+            } else {
+                attributes = null;
+            }
+        }
+    }
+
+    /**
+     * Object stream only accepting classes from a cached configuration.
+     */
+    private static final class CacheInputStream extends ObjectInputStream {
+        CacheInputStream(final InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            final String name = desc.getName();
+            if (name.equals(CachedConfiguration.class.getName()) || name.equals(CachedEvent.class.getName())) {
+                return Class.forName(name, false, ConfigurationCache.class.getClassLoader());
+            }
+            if (name.equals("java.util.LinkedHashMap") || name.equals("java.util.HashMap")
+                    || name.equals("java.util.ArrayList") || name.equals("java.lang.String")
+                    || name.equals("[B") || name.equals("[Ljava.lang.String;")) {
+                return super.resolveClass(desc);
+            }
+            throw new InvalidClassException(name, "Unexpected class in logging configuration cache");
+        }
+    }
+}
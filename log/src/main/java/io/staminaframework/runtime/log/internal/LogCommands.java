@@ -20,18 +20,33 @@ package io.staminaframework.runtime.log.internal;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
+import io.staminaframework.runtime.asciitable.AsciiTable;
 import org.apache.felix.service.command.CommandSession;
 import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Parameter;
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogService;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Log related commands.
@@ -39,10 +54,24 @@ import java.util.List;
  * @author Stamina Framework developers
  */
 class LogCommands {
+    private static final int FOLLOW_QUEUE_SIZE = 1024;
+    private static final long FOLLOW_POLL_TIMEOUT = 500;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss,SSS");
+    private static final Pattern RELATIVE_TIME = Pattern.compile("-(\\d+)([smhd])");
     private final OsgiBridge bridge;
+    private final LogJournal journal;
+    private final RateLimitFilter rateLimitFilter;
+    private final AsyncPipeline pipeline;
+    private final LogIndex index;
 
-    public LogCommands(final OsgiBridge bridge) {
+    public LogCommands(final OsgiBridge bridge, final LogJournal journal,
+                       final RateLimitFilter rateLimitFilter, final AsyncPipeline pipeline,
+                       final LogIndex index) {
         this.bridge = bridge;
+        this.journal = journal;
+        this.rateLimitFilter = rateLimitFilter;
+        this.pipeline = pipeline;
+        this.index = index;
     }
 
     @Descriptor("Set log level for a logger")
@@ -72,19 +101,206 @@ class LogCommands {
     }
 
     @Descriptor("Display last log entries")
-    public void tail(CommandSession session) {
-        final List<LogEntry> entries = Collections.list(bridge.getLog());
-        Collections.sort(entries, LogEntryComparator.INSTANCE);
+    public void tail(CommandSession session,
+                     @Descriptor("follow new log entries") @Parameter(names = {"-f", "--follow"}, absentValue = "false", presentValue = "true") boolean follow,
+                     @Descriptor("min log level") @Parameter(names = {"-l", "--level"}, absentValue = "") String level,
+                     @Descriptor("logger name prefix") @Parameter(names = {"-p", "--logger"}, absentValue = "") String logger,
+                     @Descriptor("regular expression matching log messages") @Parameter(names = {"-r", "--regex"}, absentValue = "") String regex) {
+        final LogFilter filter = LogFilter.of(level, logger, regex);
+        final PrintStream out = session.getConsole();
+        final LogRingBuffer buffer = bridge.getBuffer();
+
+        // When following log entries, the subscription is made before reading the buffer:
+        // no entry is lost between these operations.
+        final LogFollower follower = follow ? bridge.follow(filter, FOLLOW_QUEUE_SIZE) : null;
+        try {
+            // Entries are read in sequence order: no need to sort them.
+            // Entries below head may still be written: wait for them,
+            // since the follower only prints entries from head.
+            final long head = buffer.head();
+            for (long seq = buffer.oldest(); seq < head; ++seq) {
+                final LogbackLogEntry log = buffer.await(seq);
+                if (log != null && filter.accept(log)) {
+                    print(out, log);
+                }
+            }
+            if (follower == null) {
+                return;
+            }
+
+            while (!Thread.currentThread().isInterrupted()) {
+                final LogbackLogEntry log = follower.poll(FOLLOW_POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                final long dropped = follower.resetDroppedCount();
+                if (dropped != 0) {
+                    out.println("(" + dropped + " log entries skipped)");
+                }
+                if (log != null && log.getSequence() >= head) {
+                    print(out, log);
+                }
+            }
+        } catch (InterruptedException ignore) {
+            // Command was interrupted: stop following log entries.
+        } finally {
+            if (follower != null) {
+                bridge.unfollow(follower);
+            }
+        }
+    }
+
+    @Descriptor("Search log entries stored in memory")
+    public void grep(CommandSession session,
+                     @Descriptor("max number of entries") @Parameter(names = {"-n", "--max"}, absentValue = "100") int max,
+                     @Descriptor("search terms, all of them must match (use level:<name> to match entry levels)") String... terms) {
+        if (index == null) {
+            throw new IllegalStateException("Log index is disabled");
+        }
+        if (terms == null || terms.length == 0) {
+            throw new IllegalArgumentException("Missing search terms");
+        }
+        final PrintStream out = session.getConsole();
+        final LogRingBuffer buffer = bridge.getBuffer();
+        for (final long seq : index.search(Arrays.asList(terms), max)) {
+            final LogbackLogEntry log = buffer.await(seq);
+            if (log != null) {
+                print(out, log);
+            }
+        }
+    }
+
+    private static void print(PrintStream out, LogEntry log) {
+        out.println(log.getMessage());
+
+        final Throwable error = log.getException();
+        if (error != null) {
+            error.printStackTrace(out);
+        }
+    }
 
+    @Descriptor("Display log listener dispatch statistics")
+    public void listeners(CommandSession session) {
+        final LogDispatcher dispatcher = bridge.getDispatcher();
         final PrintStream out = session.getConsole();
-        for (final LogEntry log : entries) {
-            out.println(log.getMessage());
+        out.println("Listeners: " + dispatcher.getListenerCount());
+        out.println("Overflow policy: " + dispatcher.getOverflowPolicy());
+        out.println("Queue: " + dispatcher.getQueueSize() + "/" + dispatcher.getQueueCapacity());
+        out.println("Delivered: " + dispatcher.getDeliveredCount());
+        out.println("Dropped: " + dispatcher.getDroppedCount());
+        out.println("Delayed: " + dispatcher.getDelayedCount());
+    }
+
+    @Descriptor("Display async log pipeline statistics")
+    public void pipeline(CommandSession session) {
+        if (pipeline == null) {
+            throw new IllegalStateException("Async log pipeline is disabled");
+        }
+        final PrintStream out = session.getConsole();
+        out.println("Appenders: " + pipeline.getAppenders().stream()
+                .map(a -> a.getName()).collect(Collectors.joining(", ")));
+        out.println("Queue: " + pipeline.getQueueSize() + "/" + pipeline.getQueueCapacity());
+        out.println("Delivered: " + pipeline.getDeliveredCount());
+        out.println("Discarded (" + pipeline.getDiscardLevel() + " and below): " + pipeline.getDiscardedCount());
+        out.println("Dropped: " + pipeline.getDroppedCount());
+    }
+
+    @Descriptor("Query log journal")
+    public void query(CommandSession session,
+                      @Descriptor("start time: yyyy-MM-ddTHH:mm[:ss], HH:mm[:ss] or relative time such as -15m") @Parameter(names = {"-f", "--from"}, absentValue = "") String from,
+                      @Descriptor("end time, using the same formats as start time") @Parameter(names = {"-t", "--to"}, absentValue = "") String to,
+                      @Descriptor("min log level") @Parameter(names = {"-l", "--level"}, absentValue = "") String level,
+                      @Descriptor("max number of entries: the most recent ones are displayed") @Parameter(names = {"-n", "--max"}, absentValue = "1000") int max) {
+        if (journal == null) {
+            throw new IllegalStateException("Log journal is disabled");
+        }
+        final long now = System.currentTimeMillis();
+        final long fromTime = from.length() == 0 ? Long.MIN_VALUE : parseTime(from, now);
+        final long toTime = to.length() == 0 ? Long.MAX_VALUE : parseTime(to, now);
+        final Level minLevel = level.length() == 0 ? null : Level.toLevel(level);
 
-            final Throwable error = log.getException();
-            if (error != null) {
-                error.printStackTrace(out);
+        final PrintStream out = session.getConsole();
+        journal.query(fromTime, toTime, minLevel, max, r -> {
+            final String date = DATE_FORMAT.format(
+                    LocalDateTime.ofInstant(Instant.ofEpochMilli(r.time), ZoneId.systemDefault()));
+            out.println(date + " | " + String.format("%-5s", r.level) + " | " + r.thread + " | " + r.logger + " - " + r.message);
+            if (r.throwable.length() != 0) {
+                out.print(r.throwable);
+            }
+        });
+    }
+
+    private static long parseTime(String value, long now) {
+        final Matcher m = RELATIVE_TIME.matcher(value);
+        if (m.matches()) {
+            final long amount = Long.parseLong(m.group(1));
+            switch (m.group(2)) {
+                case "s":
+                    return now - TimeUnit.SECONDS.toMillis(amount);
+                case "m":
+                    return now - TimeUnit.MINUTES.toMillis(amount);
+                case "h":
+                    return now - TimeUnit.HOURS.toMillis(amount);
+                default:
+                    return now - TimeUnit.DAYS.toMillis(amount);
             }
         }
+        final LocalDateTime time;
+        try {
+            if (value.indexOf('T') != -1) {
+                time = LocalDateTime.parse(value);
+            } else {
+                time = LocalDate.now().atTime(LocalTime.parse(value));
+            }
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + value, e);
+        }
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Descriptor("Set rate limit for a logger")
+    public void limit(@Descriptor("logger name") String logger,
+                      @Descriptor("rate limit, such as rate=100,burst=200,sample=10, or none to remove it") String limit) {
+        if ("none".equals(limit)) {
+            rateLimitFilter.removeLimit(logger);
+        } else {
+            rateLimitFilter.setLimit(RateLimit.parse(logger, limit));
+        }
+    }
+
+    @Descriptor("Display rate limits")
+    public void limits(CommandSession session) {
+        final PrintStream out = session.getConsole();
+        for (final Map.Entry<String, RateLimit> e : rateLimitFilter.getLimits().entrySet()) {
+            out.println(e.getKey() + "=" + e.getValue());
+        }
+    }
+
+    @Descriptor("Display loggers emitting the highest volume of log entries")
+    public void stats(CommandSession session,
+                      @Descriptor("max number of loggers") @Parameter(names = {"-n", "--max"}, absentValue = "10") int max,
+                      @Descriptor("sliding window in minutes (1 to 15)") @Parameter(names = {"-w", "--window"}, absentValue = "1") int window,
+                      @Descriptor("sort loggers by bytes instead of entries") @Parameter(names = {"-b", "--bytes"}, absentValue = "false", presentValue = "true") boolean byBytes) {
+        if (window < 1 || window > LoggerStats.MAX_WINDOW_MINUTES) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        final List<String> columns = new ArrayList<>(8);
+        columns.add("LOGGER");
+        columns.add("ENTRIES/" + window + "M");
+        columns.add("BYTES/" + window + "M");
+        for (final Level level : LoggerStats.levels()) {
+            columns.add(level.toString());
+        }
+        columns.add("BYTES");
+        final AsciiTable table = AsciiTable.of(columns);
+
+        for (final LoggerStats.Snapshot s : bridge.getStats().top(window, byBytes, max)) {
+            final List<String> row = new ArrayList<>(columns.size());
+            row.addAll(Arrays.asList(s.logger, String.valueOf(s.windowEntries), String.valueOf(s.windowBytes)));
+            for (final long count : s.totalEntriesByLevel) {
+                row.add(String.valueOf(count));
+            }
+            row.add(String.valueOf(s.totalBytes));
+            table.add(row);
+        }
+        table.render(session.getConsole());
     }
 
     @Descriptor("Clear log entries stored in memory")
@@ -106,23 +322,6 @@ class LogCommands {
         }
     }
 
-    private static class LogEntryComparator implements Comparator<LogEntry> {
-        public static final Comparator<LogEntry> INSTANCE = new LogEntryComparator();
-
-        @Override
-        public int compare(LogEntry o1, LogEntry o2) {
-            final long t1 = o1.getTime();
-            final long t2 = o2.getTime();
-            if (t1 < t2) {
-                return -1;
-            }
-            if (t1 > t2) {
-                return 1;
-            }
-            return 0;
-        }
-    }
-
     private static class LoggerNameComparator implements Comparator<String> {
         public static final Comparator<String> INSTANCE = new LoggerNameComparator();
 
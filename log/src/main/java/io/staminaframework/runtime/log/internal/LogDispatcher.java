@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deliver log entries to {@link LogListener} instances.
+ * <p>
+ * Log entries are pushed to a bounded queue, which is consumed
+ * by a dedicated thread: listeners are never called from threads
+ * emitting log events. Entries are delivered in batches.
+ * When the queue is full, the configured {@link OverflowPolicy} applies.
+ *
+ * @author Stamina Framework developers
+ */
+class LogDispatcher {
+    /**
+     * Default queue capacity.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    /**
+     * Default max number of entries delivered at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * What to do when an entry is pushed while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the entry being pushed.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest entry in the queue, to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Wait until the dispatcher thread makes room for the new entry.
+         * Entries are dropped once the dispatcher is stopped.
+         */
+        BLOCK;
+
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final Set<LogListener> listeners = new CopyOnWriteArraySet<>();
+    private final BlockingQueue<LogEntry> queue;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running;
+
+    public LogDispatcher(final int queueSize, final int batchSize, final OverflowPolicy overflowPolicy) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Invalid log dispatcher queue size: " + queueSize);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid log dispatcher batch size: " + batchSize);
+        }
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.thread = new Thread(this::run, "Stamina Log Dispatcher Thread");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stop the dispatcher thread.
+     * Entries still in the queue are delivered before this method returns.
+     *
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        thread.interrupt();
+        thread.join();
+    }
+
+    public void addListener(LogListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(LogListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    public int getListenerCount() {
+        return listeners.size();
+    }
+
+    /**
+     * Push a log entry to listeners.
+     *
+     * @param entry entry to deliver
+     */
+    public void dispatch(LogEntry entry) {
+        if (!running) {
+            // Entries pushed once the dispatcher is stopped would never be delivered.
+            dropped.incrementAndGet();
+            return;
+        }
+        if (queue.offer(entry)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(entry)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                break;
+            case BLOCK:
+                if (Thread.currentThread() == thread) {
+                    // A listener is logging from the dispatcher thread:
+                    // waiting for some room in the queue would never end.
+                    dropped.incrementAndGet();
+                    break;
+                }
+                delayed.incrementAndGet();
+                try {
+                    // Stop waiting if the dispatcher is stopped meanwhile.
+                    while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                        if (!running) {
+                            dropped.incrementAndGet();
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    dropped.incrementAndGet();
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case DROP_NEWEST:
+            default:
+                dropped.incrementAndGet();
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    private void run() {
+        final List<LogEntry> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            deliver(batch);
+        }
+
+        // Make sure pending entries are delivered.
+        while (queue.drainTo(batch, batchSize) != 0) {
+            deliver(batch);
+        }
+    }
+
+    private void deliver(List<LogEntry> batch) {
+        for (final LogListener listener : listeners) {
+            for (final LogEntry entry : batch) {
+                try {
+                    listener.logged(entry);
+                } catch (Exception ignore) {
+                }
+            }
+        }
+        delivered.addAndGet(batch.size());
+        batch.clear();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.regex.Pattern;
+
+/**
+ * Filter selecting log entries against level, logger name and message.
+ * Message is only formatted when a pattern is set.
+ *
+ * @author Stamina Framework developers
+ */
+final class LogFilter {
+    /**
+     * Filter accepting every log entry.
+     */
+    public static final LogFilter ALL = new LogFilter(null, null, null);
+
+    private final Level level;
+    private final String loggerPrefix;
+    private final Pattern pattern;
+
+    /**
+     * Create a new filter.
+     *
+     * @param level        min level, or <code>null</code>
+     * @param loggerPrefix logger name prefix, or <code>null</code>
+     * @param pattern      message pattern, or <code>null</code>
+     */
+    public LogFilter(final Level level, final String loggerPrefix, final Pattern pattern) {
+        this.level = level;
+        this.loggerPrefix = loggerPrefix;
+        this.pattern = pattern;
+    }
+
+    /**
+     * Create a new filter from command arguments.
+     * Empty strings are considered as missing arguments.
+     *
+     * @param level        min level
+     * @param loggerPrefix logger name prefix
+     * @param regex        regular expression matching messages
+     * @return a filter instance
+     */
+    public static LogFilter of(String level, String loggerPrefix, String regex) {
+        final boolean hasLevel = level != null && level.length() != 0;
+        final boolean hasPrefix = loggerPrefix != null && loggerPrefix.length() != 0;
+        final boolean hasRegex = regex != null && regex.length() != 0;
+        if (!hasLevel && !hasPrefix && !hasRegex) {
+            return ALL;
+        }
+        return new LogFilter(
+                hasLevel ? Level.toLevel(level) : null,
+                hasPrefix ? loggerPrefix : null,
+                hasRegex ? Pattern.compile(regex) : null);
+    }
+
+    public boolean accept(ILoggingEvent e) {
+        if (!accept(e.getLevel(), e.getLoggerName())) {
+            return false;
+        }
+        return pattern == null || pattern.matcher(e.getFormattedMessage()).find();
+    }
+
+    public boolean accept(LogbackLogEntry e) {
+        if (!accept(e.getLogbackLevel(), e.getLoggerName())) {
+            return false;
+        }
+        return pattern == null || pattern.matcher(e.getFormattedMessage()).find();
+    }
+
+    private boolean accept(Level entryLevel, String loggerName) {
+        if (level != null && !entryLevel.isGreaterOrEqual(level)) {
+            return false;
+        }
+        return loggerPrefix == null || (loggerName != null && loggerName.startsWith(loggerPrefix));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscription to new log entries, used when following logs.
+ * Entries are filtered by {@link OsgiBridge} before they are pushed
+ * to this instance. If the reader is too slow, new entries are dropped.
+ *
+ * @author Stamina Framework developers
+ */
+final class LogFollower {
+    private final LogFilter filter;
+    private final BlockingQueue<LogbackLogEntry> queue;
+    private final AtomicLong dropped = new AtomicLong();
+
+    public LogFollower(final LogFilter filter, final int capacity) {
+        this.filter = filter;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public LogFilter getFilter() {
+        return filter;
+    }
+
+    void push(LogbackLogEntry entry) {
+        if (!queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait for the next log entry.
+     *
+     * @param timeout how long to wait
+     * @param unit    timeout unit
+     * @return next entry, or <code>null</code> if timeout elapsed
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public LogbackLogEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    /**
+     * Get the number of entries dropped since last call, and reset this counter.
+     *
+     * @return number of dropped entries
+     */
+    public long resetDroppedCount() {
+        return dropped.getAndSet(0);
+    }
+}
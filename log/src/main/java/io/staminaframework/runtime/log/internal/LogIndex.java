@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted token index over log entries stored in a {@link LogRingBuffer}.
+ * <p>
+ * Entry messages, logger names and thread names are split into tokens
+ * (case insensitive). Entry levels are indexed as <code>level:&lt;name&gt;</code>
+ * tokens (such as <code>level:error</code>).
+ * For each token, a posting list stores sequence numbers
+ * of matching entries. Postings are grouped in blocks of {@value #BLOCK_SIZE}
+ * sequence numbers: a block is evicted as a whole once its entries
+ * are overwritten in the ring buffer.
+ * <p>
+ * Entries are indexed as they are appended, from the log dispatcher thread:
+ * threads emitting log events never pay for indexing.
+ * Entries dropped by the dispatcher are read from the ring buffer,
+ * when the next entry is delivered.
+ *
+ * @author Stamina Framework developers
+ */
+final class LogIndex implements LogListener {
+    private static final int BLOCK_SHIFT = 12;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int MAX_TOKENS = 64;
+    private static final int MAX_TOKEN_LENGTH = 128;
+    private static final String LEVEL_PREFIX = "level:";
+    private final LogRingBuffer buffer;
+    private final NavigableMap<Long, Block> blocks = new TreeMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long next;
+
+    public LogIndex(final LogRingBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void logged(LogEntry entry) {
+        if (entry instanceof LogbackLogEntry) {
+            update(((LogbackLogEntry) entry).getSequence() + 1);
+        }
+    }
+
+    /**
+     * Index entries appended to the ring buffer, up to a sequence number.
+     *
+     * @param head sequence number following the last entry to index
+     */
+    private void update(long head) {
+        if (head <= next) {
+            // This entry was indexed when a later entry was delivered.
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            long oldest = buffer.oldest();
+            // Evict blocks whose entries are no longer in the ring buffer.
+            while (!blocks.isEmpty() && ((blocks.firstKey() + 1) << BLOCK_SHIFT) <= oldest) {
+                blocks.pollFirstEntry();
+            }
+            for (long seq = Math.max(next, oldest); seq < head; ++seq) {
+                final LogbackLogEntry e = buffer.get(seq);
+                if (e == null) {
+                    oldest = buffer.oldest();
+                    if (seq >= oldest) {
+                        // This entry is not published yet: index it with the next entry.
+                        next = seq;
+                        return;
+                    }
+                    // This entry was overwritten.
+                    continue;
+                }
+                add(e);
+            }
+            next = head;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(LogbackLogEntry e) {
+        final Set<String> tokens = new LinkedHashSet<>(32);
+        tokenize(e.getLoggerName(), tokens);
+        tokenize(e.getThreadName(), tokens);
+        tokenize(e.getFormattedMessage(), tokens);
+        tokens.add(LEVEL_PREFIX + e.getLogbackLevel().levelStr.toLowerCase());
+
+        final long seq = e.getSequence();
+        final long blockId = seq >>> BLOCK_SHIFT;
+        final int offset = (int) (seq & (BLOCK_SIZE - 1));
+        Block block = blocks.get(blockId);
+        if (block == null) {
+            block = new Block();
+            blocks.put(blockId, block);
+        }
+        for (final String token : tokens) {
+            block.add(token, offset);
+        }
+    }
+
+    /**
+     * Find entries matching all terms.
+     *
+     * @param terms search terms
+     * @param max   max number of sequence numbers to return
+     * @return sequence numbers of most recent matching entries, in ascending order
+     */
+    public long[] search(List<String> terms, int max) {
+        final Set<String> tokens = new LinkedHashSet<>(terms.size());
+        final List<String> composites = new ArrayList<>(1);
+        for (final String term : terms) {
+            final String token = normalize(term);
+            if (token == null) {
+                continue;
+            }
+            if (token.startsWith(LEVEL_PREFIX)) {
+                tokens.add(token);
+            } else if (addToken(token, tokens)) {
+                // Parts of a composite term may appear anywhere in an entry:
+                // matching entries are checked against the whole term.
+                composites.add(token);
+            }
+        }
+        if (tokens.isEmpty() || max < 1) {
+            return new long[0];
+        }
+
+        final long oldest = buffer.oldest();
+        final List<Long> results = new ArrayList<>(Math.min(max, 64));
+        final IntList[] postings = new IntList[tokens.size()];
+        lock.readLock().lock();
+        try {
+            // Most recent blocks first, so that search stops as soon as possible.
+            for (final Map.Entry<Long, Block> e : blocks.descendingMap().entrySet()) {
+                final long base = e.getKey() << BLOCK_SHIFT;
+                if (!e.getValue().lookup(tokens, postings)) {
+                    continue;
+                }
+                // Iterate over the shortest posting list, checking other lists.
+                final IntList first = postings[0];
+                for (int i = first.size - 1; i >= 0; --i) {
+                    final int offset = first.values[i];
+                    boolean match = true;
+                    for (int j = 1; match && j < postings.length; ++j) {
+                        match = Arrays.binarySearch(postings[j].values, 0, postings[j].size, offset) >= 0;
+                    }
+                    if (!match) {
+                        continue;
+                    }
+                    final long seq = base + offset;
+                    if (seq < oldest) {
+                        break;
+                    }
+                    if (!composites.isEmpty() && !contains(buffer.get(seq), composites)) {
+                        continue;
+                    }
+                    results.add(seq);
+                    if (results.size() == max) {
+                        return toAscendingArray(results);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return toAscendingArray(results);
+    }
+
+    /**
+     * Get the number of distinct tokens in this index.
+     *
+     * @return number of tokens, counted in each block
+     */
+    public int getTokenCount() {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (final Block b : blocks.values()) {
+                count += b.postings.size();
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long[] toAscendingArray(List<Long> descending) {
+        final int n = descending.size();
+        final long[] values = new long[n];
+        for (int i = 0; i < n; ++i) {
+            values[i] = descending.get(n - 1 - i);
+        }
+        return values;
+    }
+
+    private static boolean contains(LogbackLogEntry e, List<String> composites) {
+        if (e == null) {
+            // This entry was overwritten.
+            return false;
+        }
+        for (final String composite : composites) {
+            if (!containsIgnoreCase(e.getFormattedMessage(), composite)
+                    && !containsIgnoreCase(e.getLoggerName(), composite)
+                    && !containsIgnoreCase(e.getThreadName(), composite)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsIgnoreCase(String text, String lowerCaseValue) {
+        return text != null && text.toLowerCase().contains(lowerCaseValue);
+    }
+
+    /**
+     * Split a string into tokens. A word is made of letters, digits,
+     * and <code>.-_:/</code> characters: composite words (such as
+     * bundle symbolic names, URLs or paths) are indexed as their parts.
+     */
+    private static void tokenize(String text, Set<String> tokens) {
+        if (text == null) {
+            return;
+        }
+        final int len = text.length();
+        int start = -1;
+        for (int i = 0; i <= len && tokens.size() < MAX_TOKENS; ++i) {
+            final char c = i < len ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c) || isSeparator(c)) {
+                if (start == -1) {
+                    start = i;
+                }
+            } else if (start != -1) {
+                addToken(text.substring(start, i), tokens);
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Add the parts of a word to a token set.
+     *
+     * @return <code>true</code> if this word is made of several parts
+     */
+    private static boolean addToken(String value, Set<String> tokens) {
+        final String token = normalize(value);
+        if (token == null) {
+            return false;
+        }
+        int parts = 0;
+        int start = 0;
+        for (int i = 0; i <= token.length(); ++i) {
+            if (i == token.length() || isSeparator(token.charAt(i))) {
+                if (i > start) {
+                    tokens.add(token.substring(start, i));
+                    ++parts;
+                }
+                start = i + 1;
+            }
+        }
+        return parts > 1;
+    }
+
+    private static String normalize(String value) {
+        int start = 0;
+        int end = value.length();
+        while (start < end && isSeparator(value.charAt(start))) {
+            ++start;
+        }
+        while (end > start && isSeparator(value.charAt(end - 1))) {
+            --end;
+        }
+        if (start == end || end - start > MAX_TOKEN_LENGTH) {
+            return null;
+        }
+        return value.substring(start, end).toLowerCase();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '.' || c == '-' || c == '_' || c == ':' || c == '/';
+    }
+
+    /**
+     * Posting lists for a range of {@value #BLOCK_SIZE} sequence numbers.
+     */
+    private static final class Block {
+        final Map<String, IntList> postings = new HashMap<>(256);
+
+        void add(String token, int offset) {
+            IntList list = postings.get(token);
+            if (list == null) {
+                list = new IntList();
+                postings.put(token, list);
+            }
+            list.add(offset);
+        }
+
+        /**
+         * Get posting lists for all tokens, shortest list first.
+         *
+         * @return <code>false</code> if a token is missing from this block
+         */
+        boolean lookup(Set<String> tokens, IntList[] lists) {
+            int i = 0;
+            for (final String token : tokens) {
+                final IntList list = postings.get(token);
+                if (list == null) {
+                    return false;
+                }
+                lists[i++] = list;
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            return true;
+        }
+    }
+
+    /**
+     * Sorted list of primitive values.
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            // Entries are indexed in sequence order: values are usually appended.
+            int i = size;
+            while (i > 0 && values[i - 1] > value) {
+                values[i] = values[i - 1];
+                --i;
+            }
+            values[i] = value;
+            ++size;
+        }
+    }
+}
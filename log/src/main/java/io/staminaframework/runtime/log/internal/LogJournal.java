@@ -0,0 +1,523 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Append-only binary log journal.
+ * <p>
+ * Log entries are written to memory-mapped segment files, using a compact
+ * binary form. Every {@value #INDEX_INTERVAL} entries, a sparse index entry
+ * is written to a file next to the segment, storing the time range covered
+ * by these entries: time-range queries only decode entries from matching blocks.
+ * <p>
+ * This journal is an appender attached to the root logger: entries are
+ * written from the logging thread, without going through the
+ * {@link LogDispatcher} queue. As such, no entry is ever dropped, and
+ * slow log listeners do not delay journal writes. Writes are serialized,
+ * and only involve copying bytes to a memory-mapped file.
+ * Oldest segments are deleted when there are too many of them.
+ *
+ * @author Stamina Framework developers
+ */
+final class LogJournal extends UnsynchronizedAppenderBase<ILoggingEvent> {
+    /**
+     * Default segment size, in megabytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16;
+    /**
+     * Default max number of segments.
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    private static final int INDEX_INTERVAL = 256;
+    private static final int INDEX_ENTRY_SIZE = 24;
+    private static final int MAX_STRING_LENGTH = 16384;
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final String DATA_EXT = ".dat";
+    private static final String INDEX_EXT = ".idx";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private Segment active;
+    private boolean closed;
+    private volatile boolean failed;
+
+    public LogJournal(final Path dir, final int segmentSizeMegabytes, final int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("Invalid max number of log journal segments: " + maxSegments);
+        }
+        this.dir = dir;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSizeMegabytes * 1024 * 1024);
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Open existing segments.
+     *
+     * @throws IOException if journal could not be opened
+     */
+    public void open() throws IOException {
+        Files.createDirectories(dir);
+        final SortedMap<Long, Path> files = new TreeMap<>();
+        try (final DirectoryStream<Path> paths = Files.newDirectoryStream(dir, "*" + DATA_EXT)) {
+            for (final Path p : paths) {
+                final String name = p.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(0, name.length() - DATA_EXT.length())), p);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        for (final SortedMap.Entry<Long, Path> e : files.entrySet()) {
+            segments.add(Segment.open(e.getKey(), dir, 0));
+        }
+        if (!segments.isEmpty()) {
+            active = segments.get(segments.size() - 1);
+        }
+        applyRetention();
+    }
+
+    /**
+     * Close this journal: data is flushed to disk.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (final Segment s : segments) {
+            s.close();
+        }
+        segments.clear();
+        active = null;
+    }
+
+    @Override
+    protected void append(ILoggingEvent e) {
+        if (failed) {
+            return;
+        }
+        try {
+            write(e);
+        } catch (IOException ex) {
+            // Do not try again: this error would be reported for every entry.
+            failed = true;
+            addError("Failed to write log journal: entries are no longer recorded", ex);
+        }
+    }
+
+    private synchronized void write(ILoggingEvent e) throws IOException {
+        if (closed) {
+            return;
+        }
+        final ByteBuffer record = encode(e);
+        final int recordSize = 4 + record.remaining();
+        if (active == null || !active.hasRoom(recordSize)) {
+            if (active != null) {
+                active.seal();
+            }
+            final long nextId = active == null ? 1 : active.id + 1;
+            active = Segment.open(nextId, dir, segmentSize);
+            segments.add(active);
+            applyRetention();
+        }
+        active.append(record, e.getTimeStamp());
+    }
+
+    private void applyRetention() {
+        while (segments.size() > maxSegments) {
+            final Segment oldest = segments.remove(0);
+            oldest.close();
+            oldest.delete();
+        }
+    }
+
+    /**
+     * Look for journal records.
+     * When there are more than <code>max</code> matching records,
+     * the most recent ones are selected.
+     * Records are given to the consumer from the oldest to the newest.
+     *
+     * @param from     min timestamp (inclusive)
+     * @param to       max timestamp (inclusive)
+     * @param minLevel min level, or <code>null</code>
+     * @param max      max number of records
+     * @param consumer record consumer
+     * @return number of records found
+     */
+    public int query(long from, long to, Level minLevel, int max, Consumer<Record> consumer) {
+        final int minLevelCode = minLevel == null ? Integer.MIN_VALUE : levelCode(minLevel);
+        final List<Segment> snapshot = new ArrayList<>(segments);
+        final Deque<Record> records = new ArrayDeque<>(Math.min(Math.max(max, 0), 1024));
+        // Walk segments from the newest to the oldest, until enough records are found.
+        for (int i = snapshot.size() - 1; i >= 0 && records.size() < max; --i) {
+            snapshot.get(i).query(from, to, minLevelCode, max - records.size(), records);
+        }
+        for (final Record r : records) {
+            consumer.accept(r);
+        }
+        return records.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    private ByteBuffer encode(ILoggingEvent e) {
+        final byte[] logger = utf8(e.getLoggerName());
+        final byte[] thread = utf8(e.getThreadName());
+        final byte[] message = utf8(e.getFormattedMessage());
+        final IThrowableProxy tp = e.getThrowableProxy();
+        final byte[] throwable = tp == null ? new byte[0] : utf8(ThrowableProxyUtil.asString(tp));
+
+        final int size = 8 + 1 + sizeOf(logger) + sizeOf(thread) + sizeOf(message) + sizeOf(throwable);
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+        }
+        scratch.clear();
+        scratch.putLong(e.getTimeStamp());
+        scratch.put((byte) levelCode(e.getLevel()));
+        putBytes(scratch, logger);
+        putBytes(scratch, thread);
+        putBytes(scratch, message);
+        putBytes(scratch, throwable);
+        scratch.flip();
+        return scratch;
+    }
+
+    private static int levelCode(Level level) {
+        return level.toInt() / 1000;
+    }
+
+    private static byte[] utf8(String s) {
+        if (s == null) {
+            return new byte[0];
+        }
+        if (s.length() > MAX_STRING_LENGTH) {
+            s = s.substring(0, MAX_STRING_LENGTH);
+        }
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        int size = bytes.length;
+        int len = bytes.length;
+        do {
+            ++size;
+            len >>>= 7;
+        } while (len != 0);
+        return size;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        int len = bytes.length;
+        while ((len & ~0x7F) != 0) {
+            buf.put((byte) ((len & 0x7F) | 0x80));
+            len >>>= 7;
+        }
+        buf.put((byte) len);
+        buf.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (len == 0) {
+            return "";
+        }
+        final String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    /**
+     * Log entry read from the journal.
+     */
+    static final class Record {
+        public final long time;
+        public final Level level;
+        public final String logger;
+        public final String thread;
+        public final String message;
+        public final String throwable;
+
+        Record(final long time, final Level level, final String logger, final String thread,
+               final String message, final String throwable) {
+            this.time = time;
+            this.level = level;
+            this.logger = logger;
+            this.thread = thread;
+            this.message = message;
+            this.throwable = throwable;
+        }
+    }
+
+    /**
+     * Journal segment: a data file and its sparse index.
+     */
+    private static final class Segment {
+        final long id;
+        private final Path dataFile;
+        private final Path indexFile;
+        private final FileChannel dataChannel;
+        private final FileChannel indexChannel;
+        private final MappedByteBuffer data;
+        private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        // Index blocks: min timestamp, max timestamp, start offset and end offset.
+        private final List<long[]> blocks = new ArrayList<>(64);
+        private int blockStart;
+        private int blockCount;
+        private long blockMin = Long.MAX_VALUE;
+        private long blockMax = Long.MIN_VALUE;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private volatile int position;
+
+        private Segment(final long id, final Path dataFile, final Path indexFile,
+                        final FileChannel dataChannel, final FileChannel indexChannel,
+                        final MappedByteBuffer data) {
+            this.id = id;
+            this.dataFile = dataFile;
+            this.indexFile = indexFile;
+            this.dataChannel = dataChannel;
+            this.indexChannel = indexChannel;
+            this.data = data;
+        }
+
+        static Segment open(long id, Path dir, int size) throws IOException {
+            final String name = String.format("%020d", id);
+            final Path dataFile = dir.resolve(name + DATA_EXT);
+            final Path indexFile = dir.resolve(name + INDEX_EXT);
+            final FileChannel dataChannel = FileChannel.open(dataFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final FileChannel indexChannel = FileChannel.open(indexFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                // Existing segments are mapped using their own size.
+                final long mappedSize = Math.max(size, dataChannel.size());
+                final MappedByteBuffer data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+                final Segment s = new Segment(id, dataFile, indexFile, dataChannel, indexChannel, data);
+                s.recover();
+                return s;
+            } catch (IOException e) {
+                dataChannel.close();
+                indexChannel.close();
+                throw e;
+            }
+        }
+
+        private void recover() throws IOException {
+            // Load index blocks.
+            final long indexSize = indexChannel.size() - indexChannel.size() % INDEX_ENTRY_SIZE;
+            final ByteBuffer index = ByteBuffer.allocate((int) indexSize);
+            while (index.hasRemaining() && indexChannel.read(index, index.position()) != -1) {
+            }
+            index.flip();
+            while (index.remaining() >= INDEX_ENTRY_SIZE) {
+                final long bmin = index.getLong();
+                final long bmax = index.getLong();
+                final int bstart = index.getInt();
+                final int bend = index.getInt();
+                blocks.add(new long[]{bmin, bmax, bstart, bend});
+                min = Math.min(min, bmin);
+                max = Math.max(max, bmax);
+            }
+            indexChannel.position(indexSize);
+
+            // Scan entries which are not indexed yet.
+            int pos = blocks.isEmpty() ? 0 : (int) blocks.get(blocks.size() - 1)[3];
+            blockStart = pos;
+            while (pos + 4 <= data.capacity()) {
+                final int len = data.getInt(pos);
+                if (len <= 0 || pos + 4 + len > data.capacity()) {
+                    break;
+                }
+                track(data.getLong(pos + 4));
+                pos += 4 + len;
+            }
+            position = pos;
+        }
+
+        boolean hasRoom(int recordSize) {
+            // Keep room for the end-of-data marker.
+            return position + recordSize + 4 <= data.capacity();
+        }
+
+        void append(ByteBuffer record, long timestamp) throws IOException {
+            final int pos = position;
+            final int len = record.remaining();
+            data.position(pos + 4);
+            data.put(record);
+            // Record length is written last: a partially written record is never read.
+            data.putInt(pos, len);
+            synchronized (this) {
+                track(timestamp);
+                position = pos + 4 + len;
+                if (blockCount == INDEX_INTERVAL) {
+                    closeBlock();
+                }
+            }
+        }
+
+        private void track(long timestamp) {
+            blockMin = Math.min(blockMin, timestamp);
+            blockMax = Math.max(blockMax, timestamp);
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+            ++blockCount;
+        }
+
+        private void closeBlock() throws IOException {
+            blocks.add(new long[]{blockMin, blockMax, blockStart, position});
+            indexEntry.clear();
+            indexEntry.putLong(blockMin).putLong(blockMax).putInt(blockStart).putInt(position).flip();
+            while (indexEntry.hasRemaining()) {
+                indexChannel.write(indexEntry);
+            }
+            blockStart = position;
+            blockCount = 0;
+            blockMin = Long.MAX_VALUE;
+            blockMax = Long.MIN_VALUE;
+        }
+
+        /**
+         * Index pending entries: this segment will not be written anymore.
+         */
+        synchronized void seal() throws IOException {
+            if (blockCount != 0) {
+                closeBlock();
+            }
+            data.force();
+        }
+
+        /**
+         * Add the newest matching records to the head of a deque,
+         * keeping chronological order.
+         */
+        void query(long from, long to, int minLevelCode, int maxCount, Deque<Record> records) {
+            // Get a consistent view of indexed blocks.
+            final List<long[]> ranges;
+            final int end;
+            synchronized (this) {
+                if (max < from || min > to) {
+                    return;
+                }
+                ranges = new ArrayList<>(blocks);
+                if (blockCount != 0) {
+                    ranges.add(new long[]{blockMin, blockMax, blockStart, position});
+                }
+                end = position;
+            }
+
+            final ByteBuffer view = data.duplicate();
+            int count = 0;
+            final List<Integer> matches = new ArrayList<>(INDEX_INTERVAL);
+            // Blocks are read from the newest to the oldest. Records have
+            // a variable length: matching records are located with a forward
+            // scan in a block, before being decoded from the last one.
+            for (int i = ranges.size() - 1; i >= 0 && count < maxCount; --i) {
+                final long[] r = ranges.get(i);
+                if (r[1] < from || r[0] > to) {
+                    continue;
+                }
+                matches.clear();
+                int pos = (int) r[2];
+                final int rend = (int) Math.min(r[3], end);
+                while (pos < rend) {
+                    final int len = view.getInt(pos);
+                    if (len <= 0) {
+                        break;
+                    }
+                    final long time = view.getLong(pos + 4);
+                    final int levelCode = view.get(pos + 12);
+                    if (time >= from && time <= to && levelCode >= minLevelCode) {
+                        matches.add(pos);
+                    }
+                    pos += 4 + len;
+                }
+                for (int j = matches.size() - 1; j >= 0 && count < maxCount; --j) {
+                    records.addFirst(decode(view, matches.get(j)));
+                    ++count;
+                }
+            }
+        }
+
+        private static Record decode(ByteBuffer view, int pos) {
+            final int len = view.getInt(pos);
+            final long time = view.getLong(pos + 4);
+            final int levelCode = view.get(pos + 12);
+            final byte[] bytes = new byte[len - 9];
+            view.position(pos + 13);
+            view.get(bytes);
+            final ByteBuffer buf = ByteBuffer.wrap(bytes);
+            return new Record(time, Level.toLevel(levelCode * 1000),
+                    getString(buf), getString(buf), getString(buf), getString(buf));
+        }
+
+        void close() {
+            try {
+                data.force();
+            } catch (Exception ignore) {
+            }
+            try {
+                dataChannel.close();
+            } catch (IOException ignore) {
+            }
+            try {
+                indexChannel.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(dataFile);
+                Files.deleteIfExists(indexFile);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
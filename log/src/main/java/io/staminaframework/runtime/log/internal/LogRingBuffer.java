@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free ring buffer storing recent log events.
+ * <p>
+ * Slots are allocated once: appending an event only copies its fields
+ * to a slot, layout is applied when entries are read.
+ * Since arguments may be modified by the caller once an event is logged,
+ * messages with arguments are formatted when events are appended
+ * (formatted messages are cached in events, and also used by other appenders).
+ * Many threads may append events at the same time: each event gets
+ * a unique sequence number, which is used to select a slot.
+ * When the buffer is full, oldest entries are overwritten.
+ * <p>
+ * Every slot is protected by a stamp: an odd stamp means the slot is being
+ * written, an even stamp identifies the sequence stored in the slot.
+ * Readers check this stamp before and after copying slot content,
+ * in order to get a consistent snapshot without any lock.
+ *
+ * @author Stamina Framework developers
+ */
+final class LogRingBuffer {
+    /**
+     * Max buffer capacity: the largest power of two which is a valid array size.
+     */
+    public static final int MAX_CAPACITY = 1 << 30;
+    private final Slot[] slots;
+    private final AtomicLongArray stamps;
+    private final int mask;
+    private final PatternLayout layout;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long floor;
+
+    public LogRingBuffer(final int capacity, final PatternLayout layout) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid log buffer capacity: " + capacity);
+        }
+        // Use a power of two in order to select a slot with a simple mask.
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Slot();
+        }
+        this.stamps = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.layout = layout;
+    }
+
+    /**
+     * Get buffer capacity.
+     *
+     * @return max number of entries kept in this buffer
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Get the sequence number the next appended event will get.
+     *
+     * @return next sequence number
+     */
+    public long head() {
+        return head.get();
+    }
+
+    /**
+     * Get the sequence number of the oldest entry still available.
+     *
+     * @return oldest sequence number
+     */
+    public long oldest() {
+        return Math.max(floor, head.get() - slots.length);
+    }
+
+    /**
+     * Store a log event.
+     *
+     * @param e event to store
+     * @return event sequence number
+     */
+    public long append(ILoggingEvent e) {
+        final long seq = head.getAndIncrement();
+        final int i = (int) seq & mask;
+        final long writing = (seq << 1) + 1;
+        for (; ; ) {
+            final long stamp = stamps.get(i);
+            if (stamp >= writing) {
+                // A newer event already took this slot:
+                // this one is considered as overwritten.
+                return seq;
+            }
+            if ((stamp & 1) == 1) {
+                // An older event is being written to this slot,
+                // which only happens when the buffer is too small.
+                Thread.yield();
+                continue;
+            }
+            if (stamps.compareAndSet(i, stamp, writing)) {
+                break;
+            }
+        }
+
+        final Slot slot = slots[i];
+        slot.timestamp = e.getTimeStamp();
+        slot.level = e.getLevel();
+        slot.loggerName = e.getLoggerName();
+        slot.threadName = e.getThreadName();
+        slot.message = e.getFormattedMessage();
+        slot.throwable = e.getThrowableProxy();
+        stamps.lazySet(i, writing + 1);
+        return seq;
+    }
+
+    /**
+     * Read an entry from this buffer.
+     *
+     * @param seq entry sequence number
+     * @return log entry, or <code>null</code> if this entry is no longer available
+     */
+    public LogbackLogEntry get(long seq) {
+        if (seq < floor) {
+            return null;
+        }
+        final int i = (int) seq & mask;
+        final long stamp = (seq << 1) + 2;
+        if (stamps.get(i) != stamp) {
+            return null;
+        }
+        final Slot slot = slots[i];
+        final long timestamp = slot.timestamp;
+        final Level level = slot.level;
+        final String loggerName = slot.loggerName;
+        final String threadName = slot.threadName;
+        final String message = slot.message;
+        final IThrowableProxy throwable = slot.throwable;
+
+        // This operation does not update the stamp: it is used as a memory barrier,
+        // making sure slot content was not modified while it was read.
+        if (!stamps.compareAndSet(i, stamp, stamp)) {
+            return null;
+        }
+        return new LogbackLogEntry(seq, timestamp, level, loggerName, threadName,
+                message, throwable, layout);
+    }
+
+    /**
+     * Read an entry from this buffer, waiting until this entry is published.
+     * A sequence number below {@link #head()} may be allocated to an event
+     * which is still being written: this method waits until this event is readable,
+     * or until it is overwritten.
+     *
+     * @param seq entry sequence number
+     * @return log entry, or <code>null</code> if this entry is no longer available
+     */
+    public LogbackLogEntry await(long seq) {
+        for (; ; ) {
+            final LogbackLogEntry e = get(seq);
+            if (e != null || seq < oldest() || seq >= head.get()) {
+                return e;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Discard all entries currently stored in this buffer.
+     */
+    public void clear() {
+        floor = head.get();
+    }
+
+    private static final class Slot {
+        long timestamp;
+        Level level;
+        String loggerName;
+        String threadName;
+        String message;
+        IThrowableProxy throwable;
+    }
+}
@@ -17,6 +17,10 @@
 package io.staminaframework.runtime.log.internal;
 
 import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogEntry;
@@ -25,6 +29,12 @@ import org.osgi.service.log.LogService;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * {@link LogEntry} implementation built from raw logback event fields.
+ * Layout is only applied to entry message when this message is first requested.
+ *
+ * @author Stamina Framework developers
+ */
 class LogbackLogEntry implements LogEntry {
     private static final Map<Level, Integer> LEVELS = new HashMap<>(6);
 
@@ -37,14 +47,53 @@ class LogbackLogEntry implements LogEntry {
         LEVELS.put(Level.ALL, LogService.LOG_DEBUG);
     }
 
-    private final int level;
+    private final long sequence;
     private final long time;
-    private final String message;
+    private final Level level;
+    private final String loggerName;
+    private final String threadName;
+    private final String formattedMessage;
+    private final IThrowableProxy throwable;
+    private final PatternLayout layout;
+    private String message;
+
+    public LogbackLogEntry(final long sequence, final long time, final Level level,
+                           final String loggerName, final String threadName,
+                           final String formattedMessage,
+                           final IThrowableProxy throwable, final PatternLayout layout) {
+        this.sequence = sequence;
+        this.time = time;
+        this.level = level;
+        this.loggerName = loggerName;
+        this.threadName = threadName;
+        this.formattedMessage = formattedMessage;
+        this.throwable = throwable;
+        this.layout = layout;
+    }
+
+    /**
+     * Get entry sequence number, as assigned by {@link LogRingBuffer}.
+     *
+     * @return sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Level getLogbackLevel() {
+        return level;
+    }
 
-    public LogbackLogEntry(final String message, final long timestamp, final Level level) {
-        this.time = timestamp;
-        this.level = LEVELS.getOrDefault(level, LogService.LOG_DEBUG);
-        this.message = message;
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public IThrowableProxy getThrowableProxy() {
+        return throwable;
     }
 
     @Override
@@ -59,16 +108,34 @@ class LogbackLogEntry implements LogEntry {
 
     @Override
     public int getLevel() {
-        return level;
+        return LEVELS.getOrDefault(level, LogService.LOG_DEBUG);
     }
 
     @Override
     public String getMessage() {
-        return message;
+        // No synchronization required: worst case, this message is formatted twice.
+        String msg = message;
+        if (msg == null) {
+            msg = layout.doLayout(toLoggingEvent());
+            message = msg;
+        }
+        return msg;
+    }
+
+    /**
+     * Get entry message, with arguments but without any layout.
+     *
+     * @return formatted message
+     */
+    public String getFormattedMessage() {
+        return formattedMessage;
     }
 
     @Override
     public Throwable getException() {
+        if (throwable instanceof ThrowableProxy) {
+            return ((ThrowableProxy) throwable).getThrowable();
+        }
         return null;
     }
 
@@ -76,4 +143,14 @@ class LogbackLogEntry implements LogEntry {
     public long getTime() {
         return time;
     }
+
+    private LoggingEvent toLoggingEvent() {
+        final LoggingEvent e = new LoggingEvent();
+        e.setTimeStamp(time);
+        e.setLevel(level);
+        e.setLoggerName(loggerName);
+        e.setThreadName(threadName);
+        e.setMessage(formattedMessage);
+        return e;
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log volume statistics, kept for each logger.
+ * <p>
+ * Counters are allocated when a logger emits its first entry:
+ * recording next entries does not allocate memory.
+ * Besides totals, entries and bytes are counted in time buckets,
+ * which are used to compute volume over sliding windows
+ * (up to {@link #MAX_WINDOW_MINUTES} minutes).
+ * Bytes are approximated as the number of characters in formatted messages.
+ *
+ * @author Stamina Framework developers
+ */
+final class LoggerStats {
+    /**
+     * Largest sliding window, in minutes.
+     */
+    public static final int MAX_WINDOW_MINUTES = 15;
+    private static final long BUCKET_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int BUCKETS = (int) (TimeUnit.MINUTES.toMillis(MAX_WINDOW_MINUTES) / BUCKET_MILLIS);
+    private static final Level[] LEVELS = {Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE};
+
+    private final Map<String, Counters> countersByLogger = new ConcurrentHashMap<>(64);
+
+    /**
+     * Record a log entry.
+     *
+     * @param loggerName logger name
+     * @param level      entry level
+     * @param bytes      formatted message size
+     * @param time       entry timestamp
+     */
+    public void record(String loggerName, Level level, int bytes, long time) {
+        Counters c = countersByLogger.get(loggerName);
+        if (c == null) {
+            c = countersByLogger.computeIfAbsent(loggerName, Counters::new);
+        }
+        c.record(levelIndex(level), bytes, time);
+    }
+
+    /**
+     * Get loggers emitting the highest volume.
+     *
+     * @param windowMinutes sliding window, in minutes
+     * @param byBytes       sort loggers by bytes instead of entries
+     * @param max           max number of loggers
+     * @return logger statistics, highest volume first
+     */
+    public List<Snapshot> top(int windowMinutes, boolean byBytes, int max) {
+        final int window = Math.max(1, Math.min(windowMinutes, MAX_WINDOW_MINUTES));
+        final int buckets = (int) (TimeUnit.MINUTES.toMillis(window) / BUCKET_MILLIS);
+        final long epoch = System.currentTimeMillis() / BUCKET_MILLIS;
+        final List<Snapshot> snapshots = new ArrayList<>(countersByLogger.size());
+        for (final Counters c : countersByLogger.values()) {
+            final Snapshot s = c.snapshot(epoch, buckets);
+            if (s.windowEntries != 0) {
+                snapshots.add(s);
+            }
+        }
+        snapshots.sort(byBytes
+                ? Comparator.comparingLong((Snapshot s) -> s.windowBytes).reversed()
+                : Comparator.comparingLong((Snapshot s) -> s.windowEntries).reversed());
+        return snapshots.size() > max ? snapshots.subList(0, max) : snapshots;
+    }
+
+    public static Level[] levels() {
+        return LEVELS.clone();
+    }
+
+    public void clear() {
+        countersByLogger.clear();
+    }
+
+    private static int levelIndex(Level level) {
+        switch (level.toInt()) {
+            case Level.ERROR_INT:
+                return 0;
+            case Level.WARN_INT:
+                return 1;
+            case Level.INFO_INT:
+                return 2;
+            case Level.DEBUG_INT:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Statistics for a logger.
+     */
+    static final class Snapshot {
+        public final String logger;
+        public final long windowEntries;
+        public final long windowBytes;
+        public final long[] totalEntriesByLevel;
+        public final long totalBytes;
+
+        Snapshot(final String logger, final long windowEntries, final long windowBytes,
+                 final long[] totalEntriesByLevel, final long totalBytes) {
+            this.logger = logger;
+            this.windowEntries = windowEntries;
+            this.windowBytes = windowBytes;
+            this.totalEntriesByLevel = totalEntriesByLevel;
+            this.totalBytes = totalBytes;
+        }
+    }
+
+    private static final class Counters {
+        private final String logger;
+        private final LongAdder[] totals = new LongAdder[LEVELS.length];
+        private final LongAdder totalBytes = new LongAdder();
+        private final AtomicLongArray bucketEpochs = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray bucketEntries = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray bucketBytes = new AtomicLongArray(BUCKETS);
+
+        Counters(final String logger) {
+            this.logger = logger;
+            for (int i = 0; i < totals.length; ++i) {
+                totals[i] = new LongAdder();
+            }
+        }
+
+        void record(int levelIndex, int bytes, long time) {
+            totals[levelIndex].increment();
+            totalBytes.add(bytes);
+
+            final long epoch = time / BUCKET_MILLIS;
+            final int i = (int) (epoch % BUCKETS);
+            final long bucketEpoch = bucketEpochs.get(i);
+            if (bucketEpoch < epoch && bucketEpochs.compareAndSet(i, bucketEpoch, epoch)) {
+                // This bucket was used for an older time slot: start counting again.
+                // A few concurrent entries may be lost here, which is fine for statistics.
+                bucketEntries.set(i, 0);
+                bucketBytes.set(i, 0);
+            }
+            bucketEntries.incrementAndGet(i);
+            bucketBytes.addAndGet(i, bytes);
+        }
+
+        Snapshot snapshot(long epoch, int buckets) {
+            long entries = 0;
+            long bytes = 0;
+            for (int k = 0; k < buckets; ++k) {
+                final long e = epoch - k;
+                final int i = (int) (e % BUCKETS);
+                if (bucketEpochs.get(i) == e) {
+                    entries += bucketEntries.get(i);
+                    bytes += bucketBytes.get(i);
+                }
+            }
+            final long[] totalEntries = new long[totals.length];
+            for (int i = 0; i < totals.length; ++i) {
+                totalEntries[i] = totals[i].sum();
+            }
+            return new Snapshot(logger, entries, bytes, totalEntries, totalBytes.sum());
+        }
+    }
+}
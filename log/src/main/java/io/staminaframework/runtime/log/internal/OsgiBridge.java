@@ -16,29 +16,46 @@
 
 package io.staminaframework.runtime.log.internal;
 
-import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Context;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
-import ch.qos.logback.core.helpers.CyclicBuffer;
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogListener;
 import org.osgi.service.log.LogReaderService;
 
-import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Logback appender exposing log entries through {@link LogReaderService}.
+ * <p>
+ * Log events are stored in a {@link LogRingBuffer}: no lock is taken
+ * and no formatting is done when an event is appended.
+ * Log listeners are notified through a {@link LogDispatcher}, whereas
+ * {@link LogFollower} instances get filtered entries as soon as they are logged.
+ * Log volume is recorded for each logger in {@link LoggerStats}.
+ *
+ * @author Stamina Framework developers
+ */
 class OsgiBridge extends UnsynchronizedAppenderBase<ILoggingEvent> implements LogReaderService {
-    private static final int BUFFER_CAPACITY = 50;
-    private final CyclicBuffer buffer = new CyclicBuffer(BUFFER_CAPACITY);
-    private final ReadWriteLock rwl = new ReentrantReadWriteLock();
+    /**
+     * Default number of log entries kept in memory.
+     */
+    public static final int DEFAULT_BUFFER_CAPACITY = 256;
     private final PatternLayout patternLayout = new PatternLayout();
-    private final Set<LogListener> logListeners = new HashSet<>(1);
+    private final LogRingBuffer buffer;
+    private final LogDispatcher dispatcher;
+    private final List<LogFollower> followers = new CopyOnWriteArrayList<>();
+    private final LoggerStats stats = new LoggerStats();
 
-    public OsgiBridge() {
+    public OsgiBridge(final int bufferCapacity, final LogDispatcher dispatcher) {
         patternLayout.setPattern("%date{ISO8601} | %-5level - %msg");
+        buffer = new LogRingBuffer(bufferCapacity, patternLayout);
+        this.dispatcher = dispatcher;
     }
 
     @Override
@@ -55,74 +72,99 @@ class OsgiBridge extends UnsynchronizedAppenderBase<ILoggingEvent> implements Lo
 
     @Override
     protected void append(ILoggingEvent e) {
-        final String msg = patternLayout.doLayout(e);
-        final BufferLogEntry bufferEntry = new BufferLogEntry(msg, e.getTimeStamp(), e.getLevel());
-
-        rwl.writeLock().lock();
-        try {
-            buffer.add(bufferEntry);
-        } finally {
-            rwl.writeLock().unlock();
-        }
-
-        if (logListeners.isEmpty()) {
-            return;
+        final long seq = buffer.append(e);
+        final String msg = e.getFormattedMessage();
+        stats.record(e.getLoggerName(), e.getLevel(), msg == null ? 0 : msg.length(), e.getTimeStamp());
+
+        LogbackLogEntry entry = null;
+        if (dispatcher.hasListeners()) {
+            entry = toLogEntry(seq, e);
+            dispatcher.dispatch(entry);
         }
-        final LogEntry logEntry = new LogbackLogEntry(msg, e.getTimeStamp(), e.getLevel());
-        for (final LogListener logListener : logListeners) {
-            try {
-                logListener.logged(logEntry);
-            } catch (Exception ignore) {
+        for (final LogFollower follower : followers) {
+            if (follower.getFilter().accept(e)) {
+                if (entry == null) {
+                    entry = toLogEntry(seq, e);
+                }
+                follower.push(entry);
             }
         }
     }
 
+    private LogbackLogEntry toLogEntry(long seq, ILoggingEvent e) {
+        return new LogbackLogEntry(seq, e.getTimeStamp(), e.getLevel(),
+                e.getLoggerName(), e.getThreadName(), e.getFormattedMessage(),
+                e.getThrowableProxy(), patternLayout);
+    }
+
+    /**
+     * Start following new log entries.
+     *
+     * @param filter   filter applied to new entries
+     * @param capacity max number of pending entries
+     * @return a follower instance, which must be removed with {@link #unfollow(LogFollower)}
+     */
+    public LogFollower follow(LogFilter filter, int capacity) {
+        final LogFollower follower = new LogFollower(filter, capacity);
+        followers.add(follower);
+        return follower;
+    }
+
+    public void unfollow(LogFollower follower) {
+        followers.remove(follower);
+    }
+
     @Override
     public void addLogListener(LogListener listener) {
         if (listener != null) {
-            logListeners.add(listener);
+            dispatcher.addListener(listener);
         }
     }
 
     @Override
     public void removeLogListener(LogListener listener) {
-        logListeners.remove(listener);
+        if (listener != null) {
+            dispatcher.removeListener(listener);
+        }
     }
 
+    /**
+     * Get log entries stored in memory, most recent entry first.
+     *
+     * @return log entries
+     */
     @Override
     public Enumeration getLog() {
-        final List<LogEntry> events = new ArrayList<>(BUFFER_CAPACITY);
-        rwl.readLock().lock();
-        try {
-            final int bufferSize = buffer.length();
-            for (int i = 0; i < bufferSize; ++i) {
-                final BufferLogEntry e = (BufferLogEntry) buffer.get(i);
-                events.add(new LogbackLogEntry(e.message, e.timestamp, e.level));
+        final long oldest = buffer.oldest();
+        final long head = buffer.head();
+        final List<LogEntry> events = new ArrayList<>((int) (head - oldest));
+        for (long seq = head - 1; seq >= oldest; --seq) {
+            final LogEntry e = buffer.get(seq);
+            if (e != null) {
+                events.add(e);
             }
-        } finally {
-            rwl.readLock().unlock();
         }
         return Collections.enumeration(events);
     }
 
-    public void clear() {
-        rwl.writeLock().lock();
-        try {
-            buffer.clear();
-        } finally {
-            rwl.writeLock().unlock();
-        }
+    /**
+     * Get the buffer where log entries are stored.
+     *
+     * @return log entry buffer
+     */
+    public LogRingBuffer getBuffer() {
+        return buffer;
     }
 
-    private static class BufferLogEntry {
-        public final String message;
-        public final long timestamp;
-        public final Level level;
+    public LoggerStats getStats() {
+        return stats;
+    }
 
-        public BufferLogEntry(final String message, final long timestamp, final Level level) {
-            this.message = message;
-            this.timestamp = timestamp;
-            this.level = level;
-        }
+    public LogDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public void clear() {
+        buffer.clear();
     }
 }
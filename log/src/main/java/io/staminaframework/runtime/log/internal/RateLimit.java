@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit applied to a logger (and its children).
+ * <p>
+ * A rate limit is made of a token bucket (entries per second, with an
+ * optional burst size) and/or a sampling ratio (one entry out of N is kept).
+ * The token bucket is implemented with the generic cell rate algorithm:
+ * there is no lock, only a single atomic timestamp.
+ * <p>
+ * Rate limits are written as <code>rate=100,burst=200,sample=10</code>.
+ *
+ * @author Stamina Framework developers
+ */
+final class RateLimit {
+    private final String logger;
+    private final int rate;
+    private final int burst;
+    private final int sample;
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public RateLimit(final String logger, final int rate, final int burst, final int sample) {
+        if (rate < 0 || burst < 0 || sample < 0) {
+            throw new IllegalArgumentException("Invalid rate limit for logger " + logger);
+        }
+        if (rate == 0 && sample <= 1) {
+            throw new IllegalArgumentException("Rate limit requires a rate or a sampling ratio for logger " + logger);
+        }
+        this.logger = logger;
+        this.rate = rate;
+        this.burst = rate == 0 ? 0 : Math.max(1, burst == 0 ? rate : burst);
+        this.sample = sample;
+        this.interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+        this.tolerance = interval * (this.burst - 1);
+    }
+
+    /**
+     * Parse a rate limit specification.
+     *
+     * @param logger logger name
+     * @param spec   specification, such as <code>rate=100,burst=200,sample=10</code>
+     * @return a rate limit instance
+     */
+    public static RateLimit parse(String logger, String spec) {
+        int rate = 0;
+        int burst = 0;
+        int sample = 0;
+        for (final String token : spec.split(",")) {
+            final String t = token.trim();
+            if (t.length() == 0) {
+                continue;
+            }
+            final int i = t.indexOf('=');
+            if (i == -1) {
+                throw new IllegalArgumentException("Invalid rate limit: " + spec);
+            }
+            final String key = t.substring(0, i).trim();
+            final int value;
+            try {
+                value = Integer.parseInt(t.substring(i + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid rate limit: " + spec, e);
+            }
+            if ("rate".equals(key)) {
+                rate = value;
+            } else if ("burst".equals(key)) {
+                burst = value;
+            } else if ("sample".equals(key)) {
+                sample = value;
+            } else {
+                throw new IllegalArgumentException("Unknown rate limit parameter: " + key);
+            }
+        }
+        return new RateLimit(logger, rate, burst, sample);
+    }
+
+    public String getLogger() {
+        return logger;
+    }
+
+    /**
+     * Check if a log entry can be emitted.
+     *
+     * @return <code>true</code> if this entry is allowed
+     */
+    public boolean tryAcquire() {
+        if (sample > 1 && sampleCounter.getAndIncrement() % sample != 0) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        if (rate == 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        for (; ; ) {
+            final long tat = theoreticalArrivalTime.get();
+            final long start = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+            if (start - now > tolerance) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get the number of suppressed entries since last call, and reset this counter.
+     *
+     * @return number of suppressed entries
+     */
+    public long resetSuppressedCount() {
+        return suppressed.getAndSet(0);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(32);
+        if (rate != 0) {
+            buf.append("rate=").append(rate).append(",burst=").append(burst);
+        }
+        if (sample > 1) {
+            if (buf.length() != 0) {
+                buf.append(",");
+            }
+            buf.append("sample=").append(sample);
+        }
+        return buf.toString();
+    }
+}
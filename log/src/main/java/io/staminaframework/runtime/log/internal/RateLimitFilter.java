@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Logback {@link TurboFilter} enforcing {@link RateLimit} instances.
+ * <p>
+ * This filter is run before any log event is created: suppressed entries
+ * never reach appenders, including {@link OsgiBridge}.
+ * A rate limit set for a logger also applies to its children loggers.
+ *
+ * @author Stamina Framework developers
+ */
+class RateLimitFilter extends TurboFilter {
+    /**
+     * Marker used for entries emitted by this filter, which are never suppressed.
+     */
+    public static final Marker SUMMARY_MARKER = MarkerFactory.getMarker("RATE_LIMIT_SUMMARY");
+    private static final Object NO_LIMIT = new Object();
+    private volatile Limits limits = new Limits(Collections.emptyMap());
+
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t) {
+        final Limits current = limits;
+        if (current.byName.isEmpty() || marker == SUMMARY_MARKER) {
+            return FilterReply.NEUTRAL;
+        }
+        if (level == null || !level.isGreaterOrEqual(logger.getEffectiveLevel())) {
+            // This entry is discarded anyway: no need to consume a token.
+            return FilterReply.NEUTRAL;
+        }
+        final Object limit = current.resolve(logger.getName());
+        if (limit == NO_LIMIT) {
+            return FilterReply.NEUTRAL;
+        }
+        return ((RateLimit) limit).tryAcquire() ? FilterReply.NEUTRAL : FilterReply.DENY;
+    }
+
+    public synchronized void setLimit(RateLimit limit) {
+        final Map<String, RateLimit> newLimits = new HashMap<>(limits.byName);
+        newLimits.put(limit.getLogger(), limit);
+        limits = new Limits(newLimits);
+    }
+
+    public synchronized void removeLimit(String logger) {
+        final Map<String, RateLimit> newLimits = new HashMap<>(limits.byName);
+        newLimits.remove(logger);
+        limits = new Limits(newLimits);
+    }
+
+    public SortedMap<String, RateLimit> getLimits() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(limits.byName));
+    }
+
+    /**
+     * Emit a summary entry for every rate limit which suppressed log entries
+     * since last call.
+     *
+     * @param logger logger used to emit summary entries
+     */
+    public void reportSuppressedEntries(org.slf4j.Logger logger) {
+        for (final RateLimit limit : limits.byName.values()) {
+            final long suppressed = limit.resetSuppressedCount();
+            if (suppressed != 0) {
+                logger.warn(SUMMARY_MARKER, "Suppressed {} log entries from logger {} ({})",
+                        suppressed, limit.getLogger(), limit);
+            }
+        }
+    }
+
+    /**
+     * Immutable set of rate limits, with a cache of limits resolved for each logger.
+     * A new instance is created whenever limits are updated.
+     */
+    private static final class Limits {
+        final Map<String, RateLimit> byName;
+        final Map<String, Object> byLogger = new ConcurrentHashMap<>(64);
+
+        Limits(final Map<String, RateLimit> byName) {
+            this.byName = byName;
+        }
+
+        Object resolve(String loggerName) {
+            Object limit = byLogger.get(loggerName);
+            if (limit == null) {
+                // Look for the closest logger having a rate limit.
+                String name = loggerName;
+                for (; ; ) {
+                    limit = byName.get(name);
+                    if (limit != null) {
+                        break;
+                    }
+                    final int i = name.lastIndexOf('.');
+                    if (i == -1) {
+                        limit = byName.get(Logger.ROOT_LOGGER_NAME);
+                        if (limit == null) {
+                            limit = NO_LIMIT;
+                        }
+                        break;
+                    }
+                    name = name.substring(0, i);
+                }
+                byLogger.put(loggerName, limit);
+            }
+            return limit;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.runtime.log.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BoundedQueue} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class BoundedQueueTest {
+    @Test
+    public void testCapacity() {
+        assertEquals(2, new BoundedQueue<>(2).capacity());
+        assertEquals(8, new BoundedQueue<>(5).capacity());
+        assertEquals(8, new BoundedQueue<>(8).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityTooSmall() {
+        new BoundedQueue<>(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityTooLarge() {
+        new BoundedQueue<>(BoundedQueue.MAX_CAPACITY + 1);
+    }
+
+    @Test
+    public void testOfferPoll() {
+        final BoundedQueue<Integer> queue = new BoundedQueue<>(4);
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testDrain() {
+        final BoundedQueue<Integer> queue = new BoundedQueue<>(8);
+        for (int i = 0; i < 5; ++i) {
+            queue.offer(i);
+        }
+        final Integer[] batch = new Integer[3];
+        assertEquals(3, queue.drain(batch));
+        assertEquals(Integer.valueOf(2), batch[2]);
+        assertEquals(2, queue.drain(batch));
+        assertEquals(Integer.valueOf(4), batch[1]);
+        assertEquals(0, queue.drain(batch));
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentProducersAndConsumers() throws InterruptedException {
+        final int producers = 4;
+        final int consumers = 4;
+        final int elementsPerProducer = 100000;
+        final int total = producers * elementsPerProducer;
+        final BoundedQueue<Integer> queue = new BoundedQueue<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger consumed = new AtomicInteger();
+        final BitSet seen = new BitSet(total);
+        final AtomicInteger duplicates = new AtomicInteger();
+
+        final List<Thread> threads = new ArrayList<>(producers + consumers);
+        for (int p = 0; p < producers; ++p) {
+            final int first = p * elementsPerProducer;
+            threads.add(new Thread(() -> {
+                await(start);
+                for (int i = first; i < first + elementsPerProducer; ++i) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; ++c) {
+            threads.add(new Thread(() -> {
+                await(start);
+                final Integer[] batch = new Integer[16];
+                while (consumed.get() < total) {
+                    final int n = queue.drain(batch);
+                    if (n == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    synchronized (seen) {
+                        for (int i = 0; i < n; ++i) {
+                            if (seen.get(batch[i])) {
+                                duplicates.incrementAndGet();
+                            }
+                            seen.set(batch[i]);
+                        }
+                    }
+                    consumed.addAndGet(n);
+                }
+            }));
+        }
+        for (final Thread t : threads) {
+            t.start();
+        }
+        start.countDown();
+        for (final Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(total, consumed.get());
+        assertEquals(total, seen.cardinality());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Test;
+import org.osgi.service.log.LogEntry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LogDispatcher} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class LogDispatcherTest {
+    @Test
+    public void testDispatch() throws InterruptedException {
+        final LogDispatcher dispatcher = new LogDispatcher(16, 4, LogDispatcher.OverflowPolicy.DROP_NEWEST);
+        final List<LogEntry> received = new CopyOnWriteArrayList<>();
+        dispatcher.addListener(received::add);
+        dispatcher.start();
+        for (int i = 0; i < 10; ++i) {
+            dispatcher.dispatch(newEntry(i));
+        }
+        dispatcher.stop();
+        assertEquals(10, received.size());
+        assertEquals(10, dispatcher.getDeliveredCount());
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void testDispatchWhenStopped() throws InterruptedException {
+        final LogDispatcher dispatcher = new LogDispatcher(16, 4, LogDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.addListener(e -> {
+        });
+        dispatcher.start();
+        dispatcher.stop();
+        dispatcher.dispatch(newEntry(0));
+        assertEquals(0, dispatcher.getQueueSize());
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockedDispatchReleasedOnStop() throws InterruptedException {
+        final LogDispatcher dispatcher = new LogDispatcher(1, 1, LogDispatcher.OverflowPolicy.BLOCK);
+        final CountDownLatch listenerCalled = new CountDownLatch(1);
+        final CountDownLatch listenerReleased = new CountDownLatch(1);
+        dispatcher.addListener(e -> {
+            listenerCalled.countDown();
+            // Dispatcher thread is interrupted when stopped: keep waiting.
+            boolean released = false;
+            while (!released) {
+                try {
+                    listenerReleased.await();
+                    released = true;
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        dispatcher.start();
+        // First entry is held by the listener, second entry fills the queue.
+        dispatcher.dispatch(newEntry(0));
+        assertTrue(listenerCalled.await(5, TimeUnit.SECONDS));
+        dispatcher.dispatch(newEntry(1));
+
+        final Thread blocked = new Thread(() -> dispatcher.dispatch(newEntry(2)));
+        blocked.start();
+        while (dispatcher.getDelayedCount() == 0) {
+            Thread.sleep(10);
+        }
+        final Thread stopping = new Thread(() -> {
+            try {
+                dispatcher.stop();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        stopping.start();
+        blocked.join();
+        listenerReleased.countDown();
+        stopping.join();
+        assertEquals(2, dispatcher.getDeliveredCount());
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+    private static LogEntry newEntry(int i) {
+        return new LogbackLogEntry(i, System.currentTimeMillis(), Level.INFO,
+                "test", "main", "Message #" + i, null, null);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * {@link LogIndex} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class LogIndexTest {
+    @Test
+    public void testSearch() {
+        final LogRingBuffer buffer = new LogRingBuffer(16, null);
+        final LogIndex index = new LogIndex(buffer);
+        append(buffer, index, Level.INFO, "Bundle started: org.apache.felix.scr");
+        append(buffer, index, Level.WARN, "Bundle stopped: org.apache.felix.scr");
+        append(buffer, index, Level.INFO, "Subsystem installed: foo");
+
+        assertArrayEquals(new long[]{0, 1}, search(index, "bundle"));
+        assertArrayEquals(new long[]{1}, search(index, "BUNDLE", "stopped"));
+        assertArrayEquals(new long[]{0, 1}, search(index, "felix"));
+        assertArrayEquals(new long[]{0, 1}, search(index, "org.apache.felix.scr"));
+        assertArrayEquals(new long[0], search(index, "missing"));
+    }
+
+    @Test
+    public void testSearchLevel() {
+        final LogRingBuffer buffer = new LogRingBuffer(16, null);
+        final LogIndex index = new LogIndex(buffer);
+        append(buffer, index, Level.INFO, "Starting");
+        append(buffer, index, Level.ERROR, "Failed to start: warn");
+        append(buffer, index, Level.WARN, "Error while starting");
+
+        assertArrayEquals(new long[]{1}, search(index, "level:error"));
+        assertArrayEquals(new long[]{2}, search(index, "level:warn"));
+        assertArrayEquals(new long[]{1}, search(index, "level:error", "start"));
+    }
+
+    @Test
+    public void testSearchPath() {
+        final LogRingBuffer buffer = new LogRingBuffer(16, null);
+        final LogIndex index = new LogIndex(buffer);
+        append(buffer, index, Level.INFO, "Downloading http://repo.acme.com/maven/foo/1.0/foo-1.0.jar");
+        append(buffer, index, Level.INFO, "Reading /opt/stamina/addons/foo.esa");
+        append(buffer, index, Level.INFO, "File foo in /opt/maven");
+
+        assertArrayEquals(new long[]{0}, search(index, "http://repo.acme.com/maven/foo"));
+        assertArrayEquals(new long[]{0}, search(index, "foo-1.0.jar"));
+        assertArrayEquals(new long[]{1}, search(index, "/opt/stamina/addons/foo.esa"));
+        assertArrayEquals(new long[]{0, 1, 2}, search(index, "foo"));
+        // Every part of this term is found in the last entry, but not the whole term.
+        assertArrayEquals(new long[0], search(index, "maven/foo", "in"));
+    }
+
+    @Test
+    public void testSkippedEntries() {
+        final LogRingBuffer buffer = new LogRingBuffer(16, null);
+        final LogIndex index = new LogIndex(buffer);
+        // Entries dropped by the dispatcher are indexed with the next delivered entry.
+        buffer.append(newEvent(Level.INFO, "first entry"));
+        buffer.append(newEvent(Level.INFO, "second entry"));
+        append(buffer, index, Level.INFO, "third entry");
+
+        assertArrayEquals(new long[]{0, 1, 2}, search(index, "entry"));
+        // Entries delivered late are not indexed twice.
+        index.logged(buffer.get(0));
+        assertArrayEquals(new long[]{0, 1, 2}, search(index, "entry"));
+    }
+
+    @Test
+    public void testEviction() {
+        final LogRingBuffer buffer = new LogRingBuffer(4, null);
+        final LogIndex index = new LogIndex(buffer);
+        for (int i = 0; i < 10; ++i) {
+            append(buffer, index, Level.INFO, "Message #" + i);
+        }
+        assertArrayEquals(new long[]{6, 7, 8, 9}, search(index, "message"));
+        assertArrayEquals(new long[]{8, 9}, index.search(Arrays.asList("message"), 2));
+    }
+
+    private static long[] search(LogIndex index, String... terms) {
+        return index.search(Arrays.asList(terms), 100);
+    }
+
+    private static void append(LogRingBuffer buffer, LogIndex index, Level level, String message) {
+        index.logged(buffer.get(buffer.append(newEvent(level, message))));
+    }
+
+    private static LoggingEvent newEvent(Level level, String message) {
+        final LoggingEvent e = new LoggingEvent();
+        e.setLevel(level);
+        e.setLoggerName("test");
+        e.setThreadName("main");
+        e.setMessage(message);
+        e.setTimeStamp(System.currentTimeMillis());
+        return e;
+    }
+}
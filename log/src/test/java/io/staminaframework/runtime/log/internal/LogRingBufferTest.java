@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.runtime.log.internal;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link LogRingBuffer} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class LogRingBufferTest {
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new LogRingBuffer(1, null).capacity());
+        assertEquals(4, new LogRingBuffer(3, null).capacity());
+        assertEquals(4, new LogRingBuffer(4, null).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityTooSmall() {
+        new LogRingBuffer(0, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityTooLarge() {
+        new LogRingBuffer(LogRingBuffer.MAX_CAPACITY + 1, null);
+    }
+
+    @Test
+    public void testOverwrite() {
+        final LogRingBuffer buffer = new LogRingBuffer(4, null);
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i, buffer.append(newEvent("test", "message " + i, i)));
+        }
+        assertEquals(10, buffer.head());
+        assertEquals(6, buffer.oldest());
+        assertNull(buffer.get(5));
+        assertNull(buffer.await(5));
+        assertEquals("message 6", buffer.get(6).getFormattedMessage());
+        assertEquals("message 9", buffer.get(9).getFormattedMessage());
+        assertNull(buffer.get(10));
+        assertNull(buffer.await(10));
+    }
+
+    @Test
+    public void testClear() {
+        final LogRingBuffer buffer = new LogRingBuffer(4, null);
+        buffer.append(newEvent("test", "message", 0));
+        buffer.clear();
+        assertEquals(1, buffer.oldest());
+        assertNull(buffer.get(0));
+    }
+
+    @Test
+    public void testArgumentsAreCaptured() {
+        final LogRingBuffer buffer = new LogRingBuffer(4, null);
+        final Object[] args = {"foo"};
+        final LoggingEvent e = newEvent("test", "Hello {}", 0);
+        e.setArgumentArray(args);
+        final long seq = buffer.append(e);
+
+        // Callers may reuse their argument arrays once an event is logged.
+        args[0] = "bar";
+        assertEquals("Hello foo", buffer.get(seq).getFormattedMessage());
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentAppendsAndReads() throws InterruptedException {
+        final int writers = 4;
+        final int eventsPerWriter = 50000;
+        final LogRingBuffer buffer = new LogRingBuffer(256, null);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger inconsistentReads = new AtomicInteger();
+        final AtomicInteger reads = new AtomicInteger();
+
+        final List<Thread> threads = new ArrayList<>(writers);
+        for (int w = 0; w < writers; ++w) {
+            final String name = "writer" + w;
+            threads.add(new Thread(() -> {
+                await(start);
+                for (int i = 0; i < eventsPerWriter; ++i) {
+                    // Every field is derived from the same value:
+                    // a torn read would mix fields from different events.
+                    buffer.append(newEvent(name, name + ":" + i, i));
+                }
+            }));
+        }
+        final Thread reader = new Thread(() -> {
+            await(start);
+            while (writing.get()) {
+                final long head = buffer.head();
+                for (long seq = buffer.oldest(); seq < head; ++seq) {
+                    final LogbackLogEntry e = buffer.get(seq);
+                    if (e == null) {
+                        continue;
+                    }
+                    reads.incrementAndGet();
+                    if (e.getSequence() != seq
+                            || !e.getFormattedMessage().equals(e.getLoggerName() + ":" + e.getTime())
+                            || !e.getThreadName().equals(e.getLoggerName())) {
+                        inconsistentReads.incrementAndGet();
+                    }
+                }
+            }
+        });
+        for (final Thread t : threads) {
+            t.start();
+        }
+        reader.start();
+        start.countDown();
+        for (final Thread t : threads) {
+            t.join();
+        }
+        writing.set(false);
+        reader.join();
+
+        assertEquals(0, inconsistentReads.get());
+        assertEquals(writers * eventsPerWriter, buffer.head());
+        // Once writers are done, every entry still available is published.
+        for (long seq = buffer.oldest(); seq < buffer.head(); ++seq) {
+            assertNotNull(buffer.await(seq));
+        }
+    }
+
+    private static LoggingEvent newEvent(String name, String message, long time) {
+        final LoggingEvent e = new LoggingEvent();
+        e.setLevel(Level.INFO);
+        e.setLoggerName(name);
+        e.setThreadName(name);
+        e.setMessage(message);
+        e.setTimeStamp(time);
+        return e;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.manifestcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Cache for manifests stored in archives (bundles, subsystems).
+ * <p>
+ * Manifests are cached for each archive, using its canonical path:
+ * cached manifests are used as long as archive size and last modification
+ * time are unchanged. Archives are opened with {@link JarFile}: only
+ * the ZIP central directory and the manifest entry are read.
+ * <p>
+ * Instances of this class are thread-safe.
+ *
+ * @author Stamina Framework developers
+ */
+public final class ManifestCache {
+    /**
+     * Bundle manifest entry name.
+     */
+    public static final String BUNDLE_MANIFEST = "META-INF/MANIFEST.MF";
+    /**
+     * Subsystem manifest entry name.
+     */
+    public static final String SUBSYSTEM_MANIFEST = "OSGI-INF/SUBSYSTEM.MF";
+    private static final Manifest ABSENT = new Manifest();
+    private final Map<Path, Archive> archives;
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxArchives max number of archives kept in this cache
+     */
+    public ManifestCache(final int maxArchives) {
+        if (maxArchives < 1) {
+            throw new IllegalArgumentException("Invalid max number of archives: " + maxArchives);
+        }
+        archives = new LinkedHashMap<Path, Archive>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Archive> eldest) {
+                return size() > maxArchives;
+            }
+        };
+    }
+
+    /**
+     * Get a manifest from an archive.
+     *
+     * @param file      archive file
+     * @param entryName manifest entry name, such as {@link #SUBSYSTEM_MANIFEST}
+     * @return a copy of the manifest, <code>null</code> if there is no such entry
+     * @throws IOException if archive could not be read
+     */
+    public Manifest getManifest(Path file, String entryName) throws IOException {
+        final Path path = file.toRealPath();
+        final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        final long size = attrs.size();
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+
+        Archive archive;
+        synchronized (archives) {
+            archive = archives.get(path);
+            if (archive == null || archive.size != size || archive.lastModified != lastModified) {
+                archive = new Archive(size, lastModified);
+                archives.put(path, archive);
+            }
+        }
+
+        Manifest man = archive.manifests.get(entryName);
+        if (man == null) {
+            man = readManifest(path, entryName);
+            if (man == null) {
+                man = ABSENT;
+            }
+            archive.manifests.put(entryName, man);
+        }
+        // Manifest instances are mutable: never return cached instances.
+        return man == ABSENT ? null : new Manifest(man);
+    }
+
+    private static Manifest readManifest(Path path, String entryName) throws IOException {
+        // Signatures are not verified: only manifest content is used.
+        try (final JarFile jar = new JarFile(path.toFile(), false)) {
+            if (BUNDLE_MANIFEST.equals(entryName)) {
+                // Bundle manifest entry name is looked up without case sensitivity.
+                return jar.getManifest();
+            }
+            final ZipEntry entry = jar.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            try (final InputStream in = jar.getInputStream(entry)) {
+                return new Manifest(in);
+            }
+        }
+    }
+
+    /**
+     * Remove an archive from this cache.
+     *
+     * @param file archive file
+     */
+    public void invalidate(Path file) {
+        try {
+            final Path path = file.toRealPath();
+            synchronized (archives) {
+                archives.remove(path);
+            }
+        } catch (IOException ignore) {
+            // This file no longer exists: it will be removed from cache later.
+        }
+    }
+
+    /**
+     * Remove all archives from this cache.
+     */
+    public void clear() {
+        synchronized (archives) {
+            archives.clear();
+        }
+    }
+
+    private static final class Archive {
+        final long size;
+        final long lastModified;
+        final Map<String, Manifest> manifests = new ConcurrentHashMap<>(2);
+
+        Archive(final long size, final long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.manifestcache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link ManifestCache} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class ManifestCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testDeflatedManifest() throws IOException {
+        final Path file = createArchive("test.esa", ManifestCache.SUBSYSTEM_MANIFEST, "foo", "1.0.0", false);
+        final Manifest man = new ManifestCache(16).getManifest(file, ManifestCache.SUBSYSTEM_MANIFEST);
+        assertEquals("foo", man.getMainAttributes().getValue("Subsystem-SymbolicName"));
+        assertEquals("1.0.0", man.getMainAttributes().getValue("Subsystem-Version"));
+    }
+
+    @Test
+    public void testStoredManifest() throws IOException {
+        final Path file = createArchive("test.jar", ManifestCache.BUNDLE_MANIFEST, "bar", "2.0.0", true);
+        final Manifest man = new ManifestCache(16).getManifest(file, ManifestCache.BUNDLE_MANIFEST);
+        assertEquals("bar", man.getMainAttributes().getValue("Subsystem-SymbolicName"));
+    }
+
+    @Test
+    public void testBundleManifestCase() throws IOException {
+        final Path file = createArchive("test.jar", "meta-inf/manifest.mf", "bar", "2.0.0", false);
+        final Manifest man = new ManifestCache(16).getManifest(file, ManifestCache.BUNDLE_MANIFEST);
+        assertEquals("bar", man.getMainAttributes().getValue("Subsystem-SymbolicName"));
+    }
+
+    @Test
+    public void testMissingManifest() throws IOException {
+        final Path file = createArchive("test.jar", ManifestCache.BUNDLE_MANIFEST, "bar", "2.0.0", false);
+        assertNull(new ManifestCache(16).getManifest(file, ManifestCache.SUBSYSTEM_MANIFEST));
+    }
+
+    @Test
+    public void testUpdatedArchive() throws IOException {
+        final ManifestCache cache = new ManifestCache(16);
+        final Path file = createArchive("test.esa", ManifestCache.SUBSYSTEM_MANIFEST, "foo", "1.0.0", false);
+        final FileTime lastModified = Files.getLastModifiedTime(file);
+        assertEquals("1.0.0", cache.getManifest(file, ManifestCache.SUBSYSTEM_MANIFEST)
+                .getMainAttributes().getValue("Subsystem-Version"));
+
+        createArchive("test.esa", ManifestCache.SUBSYSTEM_MANIFEST, "foo", "1.0.1", false);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() + 2000));
+        assertEquals("1.0.1", cache.getManifest(file, ManifestCache.SUBSYSTEM_MANIFEST)
+                .getMainAttributes().getValue("Subsystem-Version"));
+    }
+
+    @Test
+    public void testCachedManifestIsCopied() throws IOException {
+        final ManifestCache cache = new ManifestCache(16);
+        final Path file = createArchive("test.esa", ManifestCache.SUBSYSTEM_MANIFEST, "foo", "1.0.0", false);
+        cache.getManifest(file, ManifestCache.SUBSYSTEM_MANIFEST).getMainAttributes().clear();
+        assertEquals("foo", cache.getManifest(file, ManifestCache.SUBSYSTEM_MANIFEST)
+                .getMainAttributes().getValue("Subsystem-SymbolicName"));
+    }
+
+    private Path createArchive(String fileName, String entryName, String name, String version,
+                               boolean stored) throws IOException {
+        final Manifest man = new Manifest();
+        man.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        man.getMainAttributes().putValue("Subsystem-SymbolicName", name);
+        man.getMainAttributes().putValue("Subsystem-Version", version);
+        final ByteArrayOutputStream manBuf = new ByteArrayOutputStream(128);
+        man.write(manBuf);
+        final byte[] manContent = manBuf.toByteArray();
+
+        final Path file = tmp.getRoot().toPath().resolve(fileName);
+        try (final OutputStream fileOut = Files.newOutputStream(file);
+             final ZipOutputStream out = new ZipOutputStream(fileOut)) {
+            out.putNextEntry(new ZipEntry("content/"));
+            out.closeEntry();
+
+            final ZipEntry manEntry = new ZipEntry(entryName);
+            if (stored) {
+                final CRC32 crc = new CRC32();
+                crc.update(manContent);
+                manEntry.setMethod(ZipEntry.STORED);
+                manEntry.setSize(manContent.length);
+                manEntry.setCrc(crc.getValue());
+            }
+            out.putNextEntry(manEntry);
+            out.write(manContent);
+            out.closeEntry();
+            out.setComment("Test archive");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import io.staminaframework.runtime.artifactcache.Checksums;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Artifact downloader, running concurrent downloads.
+ * <p>
+ * Downloads are run from a bounded thread pool. The number of concurrent
+ * connections to the same host is also bounded, in order to be fair
+ * with remote servers.
+ * <p>
+ * Failed downloads are retried with an exponential backoff, until
+ * the max number of retries or the artifact timeout is reached.
+ * Partial content is kept: when a download is retried (even from another run),
+ * HTTP downloads are resumed using range requests.
+ * A validator (entity tag or modification date) is kept next to partial content,
+ * so that a download is started again if the remote artifact has changed.
+ * <p>
+ * A SHA-256 checksum is computed while content is written:
+ * downloaded files are not read again in order to check their integrity.
+ *
+ * @author Stamina Framework developers
+ */
+class ArtifactDownloader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 65536;
+    private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+    private static final String VALIDATOR_SUFFIX = ".validator";
+    private final ExecutorService executor;
+    private final int maxConnectionsPerHost;
+    private final String userAgent;
+    private final int maxRetries;
+    private final long timeout;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>(4);
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private long initialBackoff = INITIAL_BACKOFF;
+
+    /**
+     * Create a new instance.
+     *
+     * @param threads               max number of concurrent downloads
+     * @param maxConnectionsPerHost max number of concurrent connections to the same host
+     * @param userAgent             HTTP user agent
+     * @param maxRetries            max number of retries for an artifact
+     * @param timeout               max time (in milliseconds) spent downloading an artifact
+     */
+    public ArtifactDownloader(final int threads, final int maxConnectionsPerHost, final String userAgent,
+                              final int maxRetries, final long timeout) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of download threads: " + threads);
+        }
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Invalid number of connections per host: " + maxConnectionsPerHost);
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Invalid number of download retries: " + maxRetries);
+        }
+        if (timeout < 1) {
+            throw new IllegalArgumentException("Invalid download timeout: " + timeout);
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, "Stamina Provisioning Download Thread #" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.userAgent = userAgent;
+        this.maxRetries = maxRetries;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Set the delay before the first retry. This delay is doubled for each retry.
+     *
+     * @param initialBackoff delay in milliseconds
+     */
+    void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * Submit a download task.
+     *
+     * @param task download task
+     * @param <T>  task result type
+     * @return task result
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Download an artifact to a file.
+     * If this file exists, it is considered as partial content.
+     *
+     * @param url    artifact URL
+     * @param target target file
+     * @return SHA-256 checksum of artifact content
+     * @throws IOException          if this artifact could not be downloaded
+     * @throws InterruptedException if this thread was interrupted while waiting for a connection or a retry
+     */
+    public String download(URL url, Path target) throws IOException, InterruptedException {
+        return download(url, target, null).sha256;
+    }
+
+    /**
+     * Download an artifact to a file, unless it was not modified.
+     * If validators from a cached copy are set, a conditional request is sent
+     * (when there is no partial content to resume).
+     *
+     * @param url    artifact URL
+     * @param target target file
+     * @param cached validators from a cached copy of this artifact, <code>null</code> if none
+     * @return validators and SHA-256 checksum of artifact content,
+     * or <code>cached</code> if the artifact was not modified (the target file is then left untouched)
+     * @throws IOException          if this artifact could not be downloaded
+     * @throws InterruptedException if this thread was interrupted while waiting for a connection or a retry
+     */
+    public HttpCache.Entry download(URL url, Path target, HttpCache.Entry cached)
+            throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        final Semaphore permits = hostPermits.computeIfAbsent(getHostKey(url),
+                k -> new Semaphore(maxConnectionsPerHost));
+        for (int attempt = 0; ; ++attempt) {
+            permits.acquire();
+            try {
+                final HttpCache.Entry result = transfer(url, target, cached, deadline);
+                Files.deleteIfExists(getValidatorFile(target));
+                return result;
+            } catch (IOException e) {
+                if (attempt >= maxRetries || !isRetryable(e)
+                        || System.currentTimeMillis() + getBackoff(attempt) >= deadline) {
+                    throw e;
+                }
+            } finally {
+                permits.release();
+            }
+            // Add some jitter, so that failed downloads are not retried all at once.
+            final long backoff = getBackoff(attempt);
+            Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1));
+        }
+    }
+
+    private HttpCache.Entry transfer(URL url, Path target, HttpCache.Entry cached, long deadline)
+            throws IOException {
+        final URLConnection conn = url.openConnection();
+        conn.setRequestProperty("User-Agent", userAgent);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout((int) Math.max(1, Math.min(READ_TIMEOUT, deadline - System.currentTimeMillis())));
+
+        final Path validatorFile = getValidatorFile(target);
+        long offset = Files.exists(target) ? Files.size(target) : 0;
+        String etag = null;
+        String lastModified = null;
+        if (conn instanceof HttpURLConnection) {
+            final HttpURLConnection httpConn = (HttpURLConnection) conn;
+            final String validator = Files.exists(validatorFile)
+                    ? new String(Files.readAllBytes(validatorFile), StandardCharsets.UTF_8) : null;
+            if (offset != 0 && validator != null) {
+                httpConn.setRequestProperty("Range", "bytes=" + offset + "-");
+                // Full content is sent if the remote artifact has changed.
+                httpConn.setRequestProperty("If-Range", validator);
+            } else {
+                offset = 0;
+                if (cached != null) {
+                    HttpCache.setConditionalHeaders(httpConn, cached);
+                }
+            }
+
+            final int status = httpConn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null && offset == 0) {
+                httpConn.disconnect();
+                return cached;
+            }
+            if (status == 416 && offset != 0) {
+                // Partial content may be complete, or may come from another artifact version.
+                final long total = getTotalLength(httpConn.getHeaderField("Content-Range"));
+                httpConn.disconnect();
+                if (total == offset) {
+                    return new HttpCache.Entry(null, null, Checksums.sha256(target));
+                }
+                Files.deleteIfExists(target);
+                throw new HttpStatusException(status, "Invalid partial content for " + url);
+            }
+            if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+                httpConn.disconnect();
+                throw new HttpStatusException(status, "Unexpected HTTP status " + status + " for " + url);
+            }
+            etag = httpConn.getHeaderField("ETag");
+            lastModified = httpConn.getHeaderField("Last-Modified");
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                final String range = httpConn.getHeaderField("Content-Range");
+                if (range == null || !range.startsWith("bytes " + offset + "-")) {
+                    httpConn.disconnect();
+                    Files.deleteIfExists(target);
+                    throw new IOException("Unexpected content range for " + url + ": " + range);
+                }
+            } else {
+                offset = 0;
+                // Keep a validator, in order to resume this download later.
+                String newValidator = etag;
+                if (newValidator == null || newValidator.startsWith("W/")) {
+                    newValidator = lastModified;
+                }
+                if (newValidator == null) {
+                    Files.deleteIfExists(validatorFile);
+                } else {
+                    Files.write(validatorFile, newValidator.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } else {
+            // Other protocols cannot resume downloads.
+            offset = 0;
+        }
+
+        final MessageDigest digest = Checksums.newDigest();
+        if (offset != 0) {
+            // Only partial content is read again when a download is resumed.
+            Checksums.update(target, digest);
+        }
+        final long expectedLength = conn.getContentLengthLong();
+        long written = 0;
+        try (final InputStream in = conn.getInputStream();
+             final OutputStream out = offset == 0
+                     ? Files.newOutputStream(target)
+                     : Files.newOutputStream(target, StandardOpenOption.APPEND)) {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                out.write(buf, 0, bytesRead);
+                digest.update(buf, 0, bytesRead);
+                written += bytesRead;
+                bytesDownloaded.addAndGet(bytesRead);
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SocketTimeoutException("Timeout while downloading " + url);
+                }
+            }
+        }
+        if (expectedLength != -1 && written != expectedLength) {
+            throw new IOException("Incomplete download for " + url + ": expected "
+                    + expectedLength + " bytes, got " + written + " bytes");
+        }
+        return new HttpCache.Entry(etag, lastModified, Checksums.toHex(digest.digest()));
+    }
+
+    private long getBackoff(int attempt) {
+        return Math.min(MAX_BACKOFF, initialBackoff << Math.min(attempt, 20));
+    }
+
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof HttpStatusException) {
+            final int status = ((HttpStatusException) e).status;
+            return status >= 500 || status == 408 || status == 416 || status == 429;
+        }
+        return !(e instanceof FileNotFoundException);
+    }
+
+    private static long getTotalLength(String contentRange) {
+        // Content-Range: bytes */total
+        if (contentRange != null) {
+            final int i = contentRange.lastIndexOf('/');
+            if (i != -1) {
+                try {
+                    return Long.parseLong(contentRange.substring(i + 1).trim());
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static Path getValidatorFile(Path target) {
+        return target.resolveSibling(target.getFileName() + VALIDATOR_SUFFIX);
+    }
+
+    /**
+     * Get the number of bytes downloaded so far.
+     *
+     * @return number of bytes
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static String getHostKey(URL url) {
+        // Some URL handlers (such as mvn:) do not use hosts.
+        final String host = url.getHost();
+        if (host == null || host.length() == 0) {
+            return url.getProtocol();
+        }
+        return url.getProtocol() + "://" + host + ":" + url.getPort();
+    }
+
+    /**
+     * Error raised when an HTTP server returns an unexpected status.
+     */
+    static final class HttpStatusException extends IOException {
+        final int status;
+
+        HttpStatusException(final int status, final String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
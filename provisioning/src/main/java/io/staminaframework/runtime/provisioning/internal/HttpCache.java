@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import io.staminaframework.runtime.artifactcache.Checksums;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for HTTP resources, revalidated with conditional requests.
+ * <p>
+ * For each URL, this cache stores validators returned by the server
+ * (entity tag and modification date) along with the SHA-256 checksum
+ * of the resource content. Small resources (such as provision files)
+ * are stored in this cache: artifact content is kept in the artifact cache,
+ * using its checksum.
+ * <p>
+ * Cache entries are stored in <code>${stamina.data}/cache/http</code>.
+ *
+ * @author Stamina Framework developers
+ */
+final class HttpCache {
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+    private final Path dir;
+
+    public HttpCache(final Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    public static boolean isHttp(URL url) {
+        return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+    }
+
+    /**
+     * Get validators for a resource.
+     *
+     * @param url resource URL
+     * @return cache entry, <code>null</code> if this resource is not cached
+     * @throws IOException if cache entry could not be read
+     */
+    public Entry get(URL url) throws IOException {
+        final Path file = dir.resolve(toKey(url) + ".properties");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final Properties props = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        if (!url.toExternalForm().equals(props.getProperty("url"))) {
+            return null;
+        }
+        return new Entry(props.getProperty("etag"), props.getProperty("last-modified"), props.getProperty("sha256"));
+    }
+
+    /**
+     * Store validators for a resource.
+     * Nothing is stored if the server did not return any validator.
+     *
+     * @param url   resource URL
+     * @param entry cache entry
+     * @throws IOException if cache entry could not be written
+     */
+    public void put(URL url, Entry entry) throws IOException {
+        final String key = toKey(url);
+        final Path file = dir.resolve(key + ".properties");
+        if (entry.etag == null && entry.lastModified == null) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        final Properties props = new Properties();
+        props.setProperty("url", url.toExternalForm());
+        if (entry.etag != null) {
+            props.setProperty("etag", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            props.setProperty("last-modified", entry.lastModified);
+        }
+        if (entry.sha256 != null) {
+            props.setProperty("sha256", entry.sha256);
+        }
+        final Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            try (final OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Get a small resource, stored in this cache.
+     * If this resource is cached, a conditional request is sent:
+     * content is only downloaded if it was modified.
+     *
+     * @param url       resource URL
+     * @param userAgent HTTP user agent
+     * @return file holding resource content
+     * @throws IOException if this resource could not be downloaded
+     */
+    public Path fetch(URL url, String userAgent) throws IOException {
+        final String key = toKey(url);
+        final Path content = dir.resolve(key + ".content");
+        final Entry cached = Files.exists(content) ? get(url) : null;
+
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("User-Agent", userAgent);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if (cached != null) {
+            setConditionalHeaders(conn, cached);
+        }
+        final int status = conn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            conn.disconnect();
+            return content;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            conn.disconnect();
+            throw new IOException("Unexpected HTTP status " + status + " for " + url);
+        }
+
+        final MessageDigest digest = Checksums.newDigest();
+        final Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            try (final InputStream in = conn.getInputStream();
+                 final OutputStream out = Files.newOutputStream(tmp)) {
+                final byte[] buf = new byte[8192];
+                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                    out.write(buf, 0, bytesRead);
+                    digest.update(buf, 0, bytesRead);
+                }
+            }
+            Files.move(tmp, content, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        put(url, new Entry(conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"),
+                Checksums.toHex(digest.digest())));
+        return content;
+    }
+
+    /**
+     * Add headers to a request, so that content is only sent if it was modified.
+     */
+    static void setConditionalHeaders(HttpURLConnection conn, Entry cached) {
+        if (cached.etag != null) {
+            conn.setRequestProperty("If-None-Match", cached.etag);
+        }
+        if (cached.lastModified != null) {
+            conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+        }
+    }
+
+    private static String toKey(URL url) {
+        final MessageDigest digest = Checksums.newDigest();
+        return Checksums.toHex(digest.digest(url.toExternalForm().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Cached resource validators.
+     */
+    static final class Entry {
+        final String etag;
+        final String lastModified;
+        final String sha256;
+
+        Entry(final String etag, final String lastModified, final String sha256) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+        }
+    }
+}
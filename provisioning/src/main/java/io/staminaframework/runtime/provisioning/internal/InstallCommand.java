@@ -16,8 +16,11 @@
 
 package io.staminaframework.runtime.provisioning.internal;
 
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import io.staminaframework.runtime.artifactcache.Checksums;
 import io.staminaframework.runtime.command.Command;
 import io.staminaframework.runtime.command.CommandConstants;
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Activate;
@@ -28,16 +31,24 @@ import org.osgi.service.log.LogService;
 import org.osgi.service.subsystem.Subsystem;
 import org.osgi.service.subsystem.SubsystemConstants;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * This command is responsible for copying bundles / subsystems to the "addons"
@@ -47,10 +58,23 @@ import java.util.List;
  */
 @Component(service = Command.class, property = CommandConstants.COMMAND + "=provision:install")
 public class InstallCommand implements Command {
+    private static final int DEFAULT_DOWNLOAD_THREADS = 8;
+    private static final int DEFAULT_CONNECTIONS_PER_HOST = 4;
+    private static final int DEFAULT_DOWNLOAD_RETRIES = 5;
+    private static final int DEFAULT_DOWNLOAD_TIMEOUT = 600;
+    private static final String LOCK_FILE = "provision.lock";
+    /**
+     * URL scheme: single letters are Windows drive letters.
+     */
+    private static final Pattern URL_SCHEME = Pattern.compile("[a-zA-Z][a-zA-Z0-9+.\\-]+:");
     @Reference
     private LogService logService;
     @Reference(target = "(" + SubsystemConstants.SUBSYSTEM_ID_PROPERTY + "=0)")
     private Subsystem root;
+    @Reference
+    private SubsystemDeployer subsystemDeployer;
+    @Reference
+    private ArtifactCache artifactCache;
     private BundleContext bundleContext;
 
     @Activate
@@ -76,11 +100,20 @@ public class InstallCommand implements Command {
         out.println("  - Bundle (*.jar)");
         out.println("  - Subsystem/addon (*.esa)");
         out.println("  - Configuration (*.cfg)");
+        out.println("An artifact URL may be followed by its SHA-256 checksum:");
+        out.println("  - mvn:groupId/artifactId/version sha256=<checksum>");
+        out.println("Artifacts are skipped when a local copy matches this checksum.");
         out.println("Lines starting with '#' are skipped.");
+        out.println("Provision files describe the desired platform state: artifacts are installed,");
+        out.println("updated or uninstalled according to the previous state, recorded in a lock file.");
+        out.println("An artifact is uninstalled when it is no longer listed in the provision file");
+        out.println("it was installed from: artifacts from other provision files are kept.");
+        out.println("Use flag '--prune' to uninstall every artifact not listed in given provision files.");
         out.println("Use flag '--force' to force artifact install.");
+        out.println("Use flag '--dry-run' to display changes without applying them.");
         out.println("Use flag '--start' to keep platform running when provisioning is done.");
         out.println("Provision file arguments may refer to a downloadable resource.");
-        out.println("Usage: provision:install [--force] [--start] <provision files>");
+        out.println("Usage: provision:install [--force] [--prune] [--dry-run] [--start] <provision files>");
     }
 
     @Override
@@ -115,11 +148,19 @@ public class InstallCommand implements Command {
 
         // Parse command flags.
         boolean forceInstall = false;
+        boolean prune = false;
         boolean start = false;
+        boolean dryRun = false;
         for (final String arg : context.arguments()) {
             if ("--force".equals(arg)) {
                 forceInstall = true;
             }
+            if ("--prune".equals(arg)) {
+                prune = true;
+            }
+            if ("--dry-run".equals(arg)) {
+                dryRun = true;
+            }
             if ("--start".equals(arg)) {
                 start = true;
             }
@@ -127,22 +168,31 @@ public class InstallCommand implements Command {
 
         final String httpUserAgent = "StaminaFramework/"
                 + bundleContext.getBundle().getVersion().toString();
+        final HttpCache httpCache = new HttpCache(dataDir.resolve("cache").resolve("http"));
 
+        // Read all provision files first: artifacts are downloaded concurrently.
+        final List<ProvisionItem> items = new ArrayList<>(64);
+        final Set<Path> targets = new HashSet<>(64);
+        final Set<String> sources = new HashSet<>(4);
         for (final String arg : context.arguments()) {
             if (arg.startsWith("--")) {
                 continue;
             }
+            // An argument with a scheme is an URL: on most platforms,
+            // such argument is also a valid (but missing) file path.
+            final URL provisionUrl = URL_SCHEME.matcher(arg).lookingAt() ? new URL(arg) : null;
             Path provisionFile = null;
-            try {
+            if (provisionUrl == null) {
                 provisionFile = FileSystems.getDefault().getPath(arg);
                 if (!Files.exists(provisionFile)) {
                     throw new IllegalArgumentException("Provision file does not exist: " + provisionFile);
                 }
-            } catch (InvalidPathException ignore) {
-            }
-            if (provisionFile == null) {
+            } else if (HttpCache.isHttp(provisionUrl)) {
+                // Remote provision files are only downloaded again if they were modified.
+                log(context.out(), "Fetching provision file: " + arg);
+                provisionFile = httpCache.fetch(provisionUrl, httpUserAgent);
+            } else {
                 log(context.out(), "Downloading provision file: " + arg);
-                final URL provisionUrl = new URL(arg);
                 provisionFile = Files.createTempFile("stamina-provision-", ".spf");
                 provisionFile.toFile().deleteOnExit();
 
@@ -152,59 +202,171 @@ public class InstallCommand implements Command {
                     Files.copy(in, provisionFile, StandardCopyOption.REPLACE_EXISTING);
                 }
             }
+            // Lock entries record the provision file listing each artifact.
+            final String source = provisionUrl == null
+                    ? provisionFile.toAbsolutePath().normalize().toString() : provisionUrl.toExternalForm();
+            sources.add(source);
 
             log(context.out(),
                     "Reading provision file: " + arg);
 
             final List<String> provisionLines = Files.readAllLines(provisionFile);
             for (final String provisionLine : provisionLines) {
-                final String urlSpec = provisionLine.trim();
-                if (urlSpec.startsWith("#") || urlSpec.length() == 0) {
+                final String line = provisionLine.trim();
+                if (line.startsWith("#") || line.length() == 0) {
                     // Skip comments & empty lines.
                     continue;
                 }
 
-                final URL artifactUrl = new URL(urlSpec);
-                final String targetFileName = toLocalPath(artifactUrl.toExternalForm());
-                final Path target;
-                if (targetFileName.endsWith(".cfg")) {
-                    target = confDir.resolve(targetFileName);
-                } else {
-                    target = provisionDir.resolve(targetFileName);
+                // Line format: <URL> [sha256=<checksum>]
+                final String[] tokens = line.split("\\s+");
+                final URL artifactUrl = new URL(tokens[0]);
+                String sha256 = null;
+                for (int i = 1; i < tokens.length; ++i) {
+                    if (tokens[i].startsWith("sha256=")) {
+                        sha256 = tokens[i].substring("sha256=".length()).toLowerCase();
+                        if (!Checksums.isValid(sha256)) {
+                            throw new IllegalArgumentException("Invalid SHA-256 checksum for artifact " + tokens[0]);
+                        }
+                    } else {
+                        throw new IllegalArgumentException(
+                                "Unknown attribute for artifact " + tokens[0] + ": " + tokens[i]);
+                    }
                 }
-                if (Files.exists(target) && !forceInstall) {
-                    log(context.out(),
-                            "Artifact already exists: " + artifactUrl);
+                final String targetFileName = toLocalPath(artifactUrl.toExternalForm());
+                final Path target = resolveTarget(targetFileName, provisionDir, confDir);
+                if (!targets.add(target)) {
+                    // Same artifact is referenced more than once.
                     continue;
                 }
+                items.add(new ProvisionItem(artifactUrl, source, targetFileName, target, sha256));
+            }
+        }
 
-                final Path tmp = Files.createTempFile("stamina-install-", ".tmp");
-                tmp.toFile().deleteOnExit();
+        // Compute a plan against the current platform state:
+        // only changes are applied.
+        final Path lockFile = provisionDir.resolve(LOCK_FILE);
+        final ProvisionLock lock = ProvisionLock.load(lockFile);
+        final Set<String> desired = new HashSet<>(items.size());
+        final List<ProvisionItem> changes = new ArrayList<>(items.size());
+        int installCount = 0;
+        for (final ProvisionItem item : items) {
+            desired.add(item.targetFileName);
+            item.action = plan(item, lock.get(item.targetFileName), forceInstall);
+            if (item.action == Action.INSTALL) {
+                ++installCount;
+            }
+            if (item.action != Action.UNCHANGED) {
+                changes.add(item);
+            }
+        }
+        final List<ProvisionLock.Entry> removals = lock.getRemovals(sources, desired, prune);
+        for (final ProvisionItem item : changes) {
+            log(context.out(), "Plan: " + item.action.name().toLowerCase() + " " + item.url);
+        }
+        for (final ProvisionLock.Entry e : removals) {
+            log(context.out(), "Plan: uninstall " + e.url);
+        }
+        log(context.out(), String.format("Provisioning plan: %d to install, %d to update, %d to uninstall, %d unchanged",
+                installCount, changes.size() - installCount, removals.size(), items.size() - changes.size()));
+        if (dryRun) {
+            return false;
+        }
+
+        final int downloadThreads = getIntProperty("stamina.provision.download.threads", DEFAULT_DOWNLOAD_THREADS);
+        final int connectionsPerHost = getIntProperty("stamina.provision.download.connections.per.host",
+                DEFAULT_CONNECTIONS_PER_HOST);
+        final int downloadRetries = getIntProperty("stamina.provision.download.retries", DEFAULT_DOWNLOAD_RETRIES);
+        final long downloadTimeout = TimeUnit.SECONDS.toMillis(
+                getIntProperty("stamina.provision.download.timeout", DEFAULT_DOWNLOAD_TIMEOUT));
+        // Changes are applied as a single transaction.
+        final ProvisionTransaction tx = new ProvisionTransaction(bundleContext, root, subsystemDeployer, logService);
+        final List<ProvisionItem> applied = new ArrayList<>(changes.size());
+        boolean committed = false;
+        try (final ArtifactDownloader downloader = new ArtifactDownloader(
+                downloadThreads, connectionsPerHost, httpUserAgent, downloadRetries, downloadTimeout)) {
+            final boolean force = forceInstall;
+            final List<Future<Fetched>> downloads = new ArrayList<>(changes.size());
+            for (final ProvisionItem item : changes) {
+                downloads.add(downloader.submit(() -> fetch(item, force, downloader, httpCache, context.out())));
+            }
+
+            for (final ProvisionLock.Entry e : removals) {
                 log(context.out(),
-                        "Downloading artifact: " + artifactUrl);
-                try (final InputStream in = new BufferedInputStream(artifactUrl.openStream(), 4096)) {
-                    // Download remote artifact and copy it to a temporary file.
-                    Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                        "Uninstalling artifact: " + e.url);
+                tx.uninstall(e.url, resolveTarget(e.fileName, provisionDir, confDir));
+            }
+
+            // Artifacts are installed in provision file order, and started when all of them are installed.
+            final long downloadStart = System.nanoTime();
+            for (int i = 0; i < changes.size(); ++i) {
+                final ProvisionItem item = changes.get(i);
+                try {
+                    item.fetched = downloads.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to download artifact: " + item.url, e.getCause());
                 }
+                logProgress(context.out(), i + 1, changes.size(), downloader.getBytesDownloaded(), downloadStart);
 
-                // Move the fully downloaded file to the provision directory.
-                log(context.out(),
-                        "Installing artifact: " + artifactUrl);
-                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
-
-                // Install resource.
-                if (targetFileName.endsWith(".jar")) {
-                    try (final InputStream in = Files.newInputStream(target)) {
-                        final Bundle bundle = bundleContext.installBundle(artifactUrl.toExternalForm(), in);
-                        bundle.start();
-                    }
-                } else if (targetFileName.endsWith(".esa")) {
-                    try (final InputStream in = Files.newInputStream(target)) {
-                        final Subsystem subsystem = root.install(artifactUrl.toExternalForm(), in);
-                        subsystem.start();
+                final ProvisionLock.Entry entry = lock.get(item.targetFileName);
+                final Fetched fetched = item.fetched;
+                final boolean upToDate;
+                if (forceInstall || item.action != Action.UPDATE) {
+                    upToDate = false;
+                } else if (fetched.file == null) {
+                    // Local copy matches artifact checksum.
+                    upToDate = entry == null || fetched.sha256.equals(entry.sha256);
+                } else {
+                    // Checksums are not computed for local artifacts.
+                    upToDate = entry != null && fetched.sha256 != null && fetched.sha256.equals(entry.sha256);
+                }
+                if (upToDate) {
+                    log(context.out(),
+                            "Artifact is up to date: " + item.url);
+                    if (fetched.file != null) {
+                        // Local copy is restored with the same content.
+                        Files.move(fetched.file, item.target,
+                                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
                     }
+                } else {
+                    log(context.out(),
+                            (item.action == Action.INSTALL ? "Installing artifact: " : "Updating artifact: ")
+                                    + item.url);
+                    tx.install(item.url.toExternalForm(), item.target, fetched.file);
+                }
+                applied.add(item);
+            }
+
+            log(context.out(), "Starting provisioned artifacts");
+            tx.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                log(context.out(), "Provisioning failed: rolling back changes");
+                tx.rollback();
+            } else {
+                for (final ProvisionLock.Entry e : removals) {
+                    lock.remove(e.fileName);
+                }
+                for (final ProvisionItem item : applied) {
+                    lock.put(newLockEntry(item, item.fetched.sha256));
+                }
+            }
+            for (final ProvisionItem item : items) {
+                if (item.action != Action.UNCHANGED) {
+                    continue;
+                }
+                final ProvisionLock.Entry entry = lock.get(item.targetFileName);
+                if (entry == null) {
+                    // This artifact was installed before lock files were used.
+                    lock.put(newLockEntry(item,
+                            Files.exists(item.target) ? Checksums.sha256(item.target) : null));
+                } else if (!item.source.equals(entry.source)) {
+                    // This artifact was moved to another provision file.
+                    lock.put(entry.withSource(item.source));
                 }
             }
+            lock.store(lockFile);
         }
 
         log(context.out(), "Platform provisioning done");
@@ -212,6 +374,269 @@ public class InstallCommand implements Command {
         return start;
     }
 
+    /**
+     * Compute the action to run for an artifact.
+     *
+     * @param item  artifact to provision
+     * @param entry lock file entry for this artifact, <code>null</code> if none
+     * @param force <code>true</code> to install this artifact again
+     */
+    private Action plan(ProvisionItem item, ProvisionLock.Entry entry, boolean force) throws IOException {
+        if (!isInstalled(item)) {
+            return Action.INSTALL;
+        }
+        if (force) {
+            return Action.UPDATE;
+        }
+        if (entry == null) {
+            // Without a checksum, an existing artifact is considered as up to date.
+            return item.sha256 == null ? Action.UNCHANGED : Action.UPDATE;
+        }
+        if (!entry.matches(item.target)) {
+            // Local copy was modified since last provisioning.
+            return Action.UPDATE;
+        }
+        if (item.sha256 != null && !item.sha256.equals(entry.sha256)) {
+            return Action.UPDATE;
+        }
+        return Action.UNCHANGED;
+    }
+
+    private boolean isInstalled(ProvisionItem item) {
+        final String location = item.url.toExternalForm();
+        if (item.targetFileName.endsWith(".jar")) {
+            return bundleContext.getBundle(location) != null;
+        }
+        if (item.targetFileName.endsWith(".esa")) {
+            return findSubsystem(location) != null;
+        }
+        return Files.exists(item.target);
+    }
+
+    private Subsystem findSubsystem(String location) {
+        for (final Subsystem s : root.getChildren()) {
+            if (location.equals(s.getLocation())) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private ProvisionLock.Entry newLockEntry(ProvisionItem item, String sha256) throws IOException {
+        final String location = item.url.toExternalForm();
+        String name = null;
+        String version = null;
+        if (item.targetFileName.endsWith(".jar")) {
+            final Bundle bundle = bundleContext.getBundle(location);
+            if (bundle != null) {
+                name = bundle.getSymbolicName();
+                version = bundle.getVersion().toString();
+            }
+        } else if (item.targetFileName.endsWith(".esa")) {
+            final Subsystem subsystem = findSubsystem(location);
+            if (subsystem != null) {
+                name = subsystem.getSymbolicName();
+                version = subsystem.getVersion().toString();
+            }
+        }
+        final boolean exists = Files.exists(item.target);
+        return new ProvisionLock.Entry(item.targetFileName, location, item.source, sha256,
+                exists ? Files.size(item.target) : -1,
+                exists ? Files.getLastModifiedTime(item.target).toMillis() : -1,
+                name, version);
+    }
+
+    private static Path resolveTarget(String fileName, Path provisionDir, Path confDir) {
+        return fileName.endsWith(".cfg") ? confDir.resolve(fileName) : provisionDir.resolve(fileName);
+    }
+
+    /**
+     * Get an artifact, from the artifact cache or from its location.
+     *
+     * @return file holding artifact content (no file if the local copy of this artifact matches its checksum)
+     */
+    private Fetched fetch(ProvisionItem item, boolean force, ArtifactDownloader downloader,
+                          HttpCache httpCache, PrintStream out) throws IOException, InterruptedException {
+        if (item.sha256 != null && Files.exists(item.target)
+                && item.sha256.equals(Checksums.sha256(item.target))) {
+            return new Fetched(null, item.sha256);
+        }
+
+        // Partial files are created next to their target, so that they can be moved atomically.
+        // These files are kept if a download fails: next run will resume this download.
+        final Path tmp = item.target.resolveSibling(item.targetFileName + ".part");
+
+        final Path source = toLocalFile(item.url);
+        if (source != null) {
+            // Local artifacts are neither downloaded nor cached: data is not copied if possible.
+            final String hash = item.sha256 == null ? null : Checksums.sha256(source);
+            if (item.sha256 != null && !item.sha256.equals(hash)) {
+                throw new IOException("Checksum mismatch for artifact " + item.url
+                        + ": expected " + item.sha256 + ", got " + hash);
+            }
+            log(out, "Using local artifact: " + source);
+            // Configuration files may be written by FileInstall: such files are never linked.
+            linkOrCopy(source, tmp, !item.targetFileName.endsWith(".cfg"));
+            return new Fetched(tmp, hash);
+        }
+
+        final String cacheKey = isImmutable(item.url) ? item.url.toExternalForm() : null;
+        final String cachedHash;
+        if (item.sha256 != null) {
+            // Cached artifacts are stored by content: this artifact is already checked.
+            cachedHash = item.sha256;
+        } else {
+            final Path cached = cacheKey == null || force ? null : artifactCache.getByKey(cacheKey);
+            // Cached artifacts are named after their content hash.
+            cachedHash = cached == null ? null : cached.getFileName().toString();
+        }
+        if (copyFromCache(cachedHash, tmp)) {
+            log(out, "Using cached artifact: " + item.url);
+            return new Fetched(tmp, cachedHash);
+        }
+
+        // HTTP artifacts are revalidated if their content is still cached.
+        final boolean http = HttpCache.isHttp(item.url);
+        HttpCache.Entry validators = http ? httpCache.get(item.url) : null;
+        final Path cachedContent = validators == null || validators.sha256 == null
+                ? null : artifactCache.get(validators.sha256);
+        if (cachedContent == null) {
+            validators = null;
+        }
+
+        log(out, "Downloading artifact: " + item.url);
+        HttpCache.Entry result = downloader.download(item.url, tmp, validators);
+        if (validators != null && result == validators) {
+            if (copyFromCache(validators.sha256, tmp)) {
+                log(out, "Artifact not modified: " + item.url);
+            } else {
+                // Cached content was evicted in the meantime.
+                result = downloader.download(item.url, tmp, null);
+            }
+        }
+        final String hash = result.sha256;
+        if (item.sha256 != null && !item.sha256.equals(hash)) {
+            // Do not resume a corrupted download.
+            Files.deleteIfExists(tmp);
+            throw new IOException("Checksum mismatch for artifact " + item.url
+                    + ": expected " + item.sha256 + ", got " + hash);
+        }
+        if (result == validators) {
+            return new Fetched(tmp, hash);
+        }
+        final boolean revalidate = http && (result.etag != null || result.lastModified != null);
+        if (cacheKey != null || item.sha256 != null || revalidate) {
+            try (final InputStream in = Files.newInputStream(tmp)) {
+                artifactCache.put(cacheKey, in, hash);
+            }
+        }
+        if (http) {
+            httpCache.put(item.url, result);
+        }
+        return new Fetched(tmp, hash);
+    }
+
+    /**
+     * Copy an artifact from the artifact cache.
+     *
+     * @return <code>false</code> if this artifact is not cached
+     */
+    private boolean copyFromCache(String hash, Path target) throws IOException {
+        // Cached artifacts are not evicted while they are read.
+        try (final InputStream in = artifactCache.open(hash)) {
+            if (in == null) {
+                return false;
+            }
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+    }
+
+    /**
+     * Get the local file for an artifact URL.
+     *
+     * @return local file, <code>null</code> if this artifact is not a local file
+     */
+    private static Path toLocalFile(URL url) throws IOException {
+        URL fileUrl = url;
+        if ("system".equals(url.getProtocol())) {
+            // System URLs are resolved to files from the system repository:
+            // this connection is not opened.
+            fileUrl = url.openConnection().getURL();
+        }
+        if (!"file".equals(fileUrl.getProtocol())) {
+            return null;
+        }
+        try {
+            final Path file = Paths.get(fileUrl.toURI());
+            return Files.isRegularFile(file) ? file : null;
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+            // Such URL is read as a stream.
+            return null;
+        }
+    }
+
+    /**
+     * Make a local file available at another path. A hard link is created if possible:
+     * content is copied otherwise, using a file channel transfer (which may let the
+     * operating system clone file content).
+     */
+    static void linkOrCopy(Path source, Path target, boolean link) throws IOException {
+        Files.deleteIfExists(target);
+        if (link) {
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (IOException | UnsupportedOperationException ignore) {
+                // Hard links are not supported on every file system, nor across file systems.
+            }
+        }
+        try (final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             final FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long size = in.size();
+            for (long pos = 0; pos < size; ) {
+                final long n = in.transferTo(pos, size - pos, out);
+                if (n <= 0) {
+                    throw new IOException("Failed to copy local artifact: " + source);
+                }
+                pos += n;
+            }
+        }
+    }
+
+    private void logProgress(PrintStream out, int done, int total, long bytes, long startNanos) {
+        final double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        final double megabytes = bytes / (1024d * 1024d);
+        log(out, String.format("Downloaded %d/%d artifacts (%.1f MB, %.1f MB/s)",
+                done, total, megabytes, megabytes / seconds));
+    }
+
+    private int getIntProperty(String key, int defaultValue) {
+        final String value = bundleContext.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer value for framework property " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * Check whether an artifact URL always refers to the same content:
+     * such artifacts are only downloaded once.
+     */
+    private static boolean isImmutable(URL url) {
+        final String spec = url.toExternalForm();
+        if (spec.contains("SNAPSHOT")) {
+            return false;
+        }
+        // Addons must have an explicit version.
+        return spec.startsWith("mvn:") || (spec.startsWith("addon:") && spec.indexOf('/') != -1);
+    }
+
     private String toLocalPath(String url) throws IOException {
         // Do some clever work to transform an URL to a file name...
         try {
@@ -245,7 +670,49 @@ public class InstallCommand implements Command {
     }
 
     private void log(PrintStream out, String message) {
-        out.print("[INFO ] ");
-        out.println(message);
+        // Log lines are written from download threads too.
+        synchronized (out) {
+            out.print("[INFO ] ");
+            out.println(message);
+        }
+    }
+
+    /**
+     * Artifact read from a provision file.
+     */
+    private static final class ProvisionItem {
+        final URL url;
+        final String source;
+        final String targetFileName;
+        final Path target;
+        final String sha256;
+        Action action;
+        Fetched fetched;
+
+        ProvisionItem(final URL url, final String source, final String targetFileName, final Path target,
+                      final String sha256) {
+            this.url = url;
+            this.source = source;
+            this.targetFileName = targetFileName;
+            this.target = target;
+            this.sha256 = sha256;
+        }
+    }
+
+    /**
+     * Artifact content, ready to be installed.
+     */
+    private static final class Fetched {
+        final Path file;
+        final String sha256;
+
+        Fetched(final Path file, final String sha256) {
+            this.file = file;
+            this.sha256 = sha256;
+        }
+    }
+
+    private enum Action {
+        INSTALL, UPDATE, UNCHANGED
     }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Lock file, recording artifacts installed by provisioning.
+ * <p>
+ * For each artifact (identified by its local file name), this file stores
+ * the artifact URL, the provision file listing this artifact, the content checksum,
+ * the local file size and modification date, and the resolved symbolic name and version
+ * (for bundles and subsystems).
+ * Next provisioning runs use this file to compute a plan, applying only changes.
+ *
+ * @author Stamina Framework developers
+ */
+final class ProvisionLock {
+    private static final String URL = ".url";
+    private static final String SOURCE = ".source";
+    private static final String SHA256 = ".sha256";
+    private static final String SIZE = ".size";
+    private static final String MODIFIED = ".modified";
+    private static final String NAME = ".name";
+    private static final String VERSION = ".version";
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64);
+
+    /**
+     * Load a lock file.
+     *
+     * @param file lock file
+     * @return lock file content, empty if this file does not exist
+     * @throws IOException if this file could not be read
+     */
+    public static ProvisionLock load(Path file) throws IOException {
+        final ProvisionLock lock = new ProvisionLock();
+        if (!Files.exists(file)) {
+            return lock;
+        }
+        final Properties props = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        for (final String key : new TreeSet<>(props.stringPropertyNames())) {
+            if (!key.endsWith(URL)) {
+                continue;
+            }
+            final String fileName = key.substring(0, key.length() - URL.length());
+            try {
+                final Entry e = new Entry(fileName, props.getProperty(key),
+                        props.getProperty(fileName + SOURCE), props.getProperty(fileName + SHA256),
+                        Long.parseLong(props.getProperty(fileName + SIZE, "-1")),
+                        Long.parseLong(props.getProperty(fileName + MODIFIED, "-1")),
+                        props.getProperty(fileName + NAME), props.getProperty(fileName + VERSION));
+                lock.entries.put(fileName, e);
+            } catch (NumberFormatException ignore) {
+                // This entry will be provisioned again.
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Write this lock file. Content is replaced atomically.
+     *
+     * @param file lock file
+     * @throws IOException if this file could not be written
+     */
+    public void store(Path file) throws IOException {
+        final Properties props = new Properties();
+        for (final Entry e : entries.values()) {
+            props.setProperty(e.fileName + URL, e.url);
+            if (e.source != null) {
+                props.setProperty(e.fileName + SOURCE, e.source);
+            }
+            if (e.sha256 != null) {
+                props.setProperty(e.fileName + SHA256, e.sha256);
+            }
+            props.setProperty(e.fileName + SIZE, String.valueOf(e.size));
+            props.setProperty(e.fileName + MODIFIED, String.valueOf(e.modified));
+            if (e.name != null) {
+                props.setProperty(e.fileName + NAME, e.name);
+            }
+            if (e.version != null) {
+                props.setProperty(e.fileName + VERSION, e.version);
+            }
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (final OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, "Stamina provisioning lock file: do not edit");
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.fileName, entry);
+    }
+
+    public void remove(String fileName) {
+        entries.remove(fileName);
+    }
+
+    /**
+     * Get artifacts to uninstall: such artifacts are no longer listed in the provision file
+     * they were installed from. Artifacts installed from other provision files are kept,
+     * unless these entries are pruned.
+     *
+     * @param sources   provision files being read
+     * @param fileNames artifacts listed in these provision files
+     * @param prune     <code>true</code> to uninstall every artifact not listed in these provision files
+     * @return entries to remove
+     */
+    public List<Entry> getRemovals(Set<String> sources, Set<String> fileNames, boolean prune) {
+        final List<Entry> removals = new ArrayList<>(4);
+        for (final Entry e : entries.values()) {
+            if (!fileNames.contains(e.fileName) && (prune || sources.contains(e.source))) {
+                removals.add(e);
+            }
+        }
+        return removals;
+    }
+
+    /**
+     * Artifact installed by provisioning.
+     */
+    static final class Entry {
+        final String fileName;
+        final String url;
+        final String source;
+        final String sha256;
+        final long size;
+        final long modified;
+        final String name;
+        final String version;
+
+        Entry(final String fileName, final String url, final String source, final String sha256,
+              final long size, final long modified, final String name, final String version) {
+            this.fileName = fileName;
+            this.url = url;
+            this.source = source;
+            this.sha256 = sha256;
+            this.size = size;
+            this.modified = modified;
+            this.name = name;
+            this.version = version;
+        }
+
+        /**
+         * Get a copy of this entry, listed in another provision file.
+         */
+        Entry withSource(String newSource) {
+            return new Entry(fileName, url, newSource, sha256, size, modified, name, version);
+        }
+
+        /**
+         * Check whether a local file was left untouched since this entry was recorded.
+         */
+        boolean matches(Path file) throws IOException {
+            return Files.exists(file) && Files.size(file) == size
+                    && Files.getLastModifiedTime(file).toMillis() == modified;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Resource;
+import org.osgi.service.log.LogService;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provisioning transaction: changes are applied as a whole, or not at all.
+ * <p>
+ * Bundles are installed (or updated) first, without being started.
+ * When the transaction is committed, updated bundles are refreshed once,
+ * then subsystems are installed: subsystem deployments may rely on bundles
+ * from this transaction, wherever they appear in a provision file.
+ * Bundles and subsystem constituents are then resolved once, as a single set.
+ * New bundles, and updated bundles which were active, are started
+ * in dependency order, before subsystems.
+ * <p>
+ * Replaced local files are kept as backups until the transaction is done:
+ * on failure, every change is reverted in reverse order.
+ *
+ * @author Stamina Framework developers
+ */
+final class ProvisionTransaction {
+    private static final String BACKUP_SUFFIX = ".bak";
+    private static final long REFRESH_TIMEOUT = 60;
+    private final BundleContext bundleContext;
+    private final Subsystem root;
+    private final SubsystemDeployer subsystemDeployer;
+    private final LogService logService;
+    private final Deque<Undo> undos = new ArrayDeque<>(32);
+    private final Set<Bundle> bundlesToResolve = new LinkedHashSet<>(32);
+    private final Set<Bundle> bundlesToStart = new LinkedHashSet<>(32);
+    private final List<PendingSubsystem> subsystemsToInstall = new ArrayList<>(4);
+    private final List<Subsystem> subsystemsToStart = new ArrayList<>(4);
+    private final List<Bundle> bundlesToRefresh = new ArrayList<>(4);
+    private final List<Path> backups = new ArrayList<>(4);
+
+    public ProvisionTransaction(final BundleContext bundleContext, final Subsystem root,
+                                final SubsystemDeployer subsystemDeployer, final LogService logService) {
+        this.bundleContext = bundleContext;
+        this.root = root;
+        this.subsystemDeployer = subsystemDeployer;
+        this.logService = logService;
+    }
+
+    /**
+     * Install or update an artifact. Bundles and subsystems are not started:
+     * subsystems are only installed when this transaction is committed.
+     *
+     * @param location artifact location
+     * @param target   local artifact file
+     * @param content  new artifact content, moved to the local file
+     *                 (<code>null</code> if the local file is up to date)
+     * @throws Exception if this artifact could not be installed
+     */
+    public void install(String location, Path target, Path content) throws Exception {
+        final Path backup = content == null ? null : replace(target, content);
+        final String fileName = target.getFileName().toString();
+        if (fileName.endsWith(".jar")) {
+            final Bundle existing = bundleContext.getBundle(location);
+            if (existing == null) {
+                final Bundle bundle;
+                try (final InputStream in = Files.newInputStream(target)) {
+                    bundle = bundleContext.installBundle(location, in);
+                }
+                undos.push(bundle::uninstall);
+                bundlesToResolve.add(bundle);
+                bundlesToStart.add(bundle);
+            } else {
+                final boolean active = existing.getState() == Bundle.ACTIVE;
+                // An active bundle is started again when the transaction is committed:
+                // a bundle which was stopped is left stopped.
+                existing.stop(Bundle.STOP_TRANSIENT);
+                undos.push(() -> {
+                    if (backup != null) {
+                        try (final InputStream in = Files.newInputStream(backup)) {
+                            existing.update(in);
+                        }
+                    }
+                    if (active) {
+                        existing.start();
+                    }
+                });
+                try (final InputStream in = Files.newInputStream(target)) {
+                    existing.update(in);
+                }
+                bundlesToResolve.add(existing);
+                if (active) {
+                    bundlesToStart.add(existing);
+                }
+                bundlesToRefresh.add(existing);
+            }
+        } else if (fileName.endsWith(".esa")) {
+            final Subsystem existing = findSubsystem(location);
+            final boolean active = existing == null || existing.getState() == Subsystem.State.ACTIVE;
+            if (existing != null) {
+                existing.uninstall();
+                // Without a backup, the local file still holds previous content.
+                final Path previous = backup != null ? backup : target;
+                undos.push(() -> reinstallSubsystem(location, previous, active));
+            }
+            subsystemsToInstall.add(new PendingSubsystem(location, target, active));
+        }
+        // Configuration files are handled by FileInstall.
+    }
+
+    /**
+     * Uninstall an artifact. Its local file is removed.
+     *
+     * @param location artifact location
+     * @param target   local artifact file
+     * @throws Exception if this artifact could not be uninstalled
+     */
+    public void uninstall(String location, Path target) throws Exception {
+        final Path backup = target.resolveSibling(target.getFileName() + BACKUP_SUFFIX);
+        final boolean exists = Files.exists(target);
+        if (exists) {
+            Files.move(target, backup, StandardCopyOption.REPLACE_EXISTING);
+            backups.add(backup);
+            undos.push(() -> Files.move(backup, target, StandardCopyOption.REPLACE_EXISTING));
+        }
+        final String fileName = target.getFileName().toString();
+        if (fileName.endsWith(".jar")) {
+            final Bundle bundle = bundleContext.getBundle(location);
+            if (bundle != null) {
+                final boolean active = bundle.getState() == Bundle.ACTIVE;
+                bundle.uninstall();
+                bundlesToRefresh.add(bundle);
+                if (exists) {
+                    undos.push(() -> {
+                        final Bundle b;
+                        try (final InputStream in = Files.newInputStream(backup)) {
+                            b = bundleContext.installBundle(location, in);
+                        }
+                        if (active) {
+                            b.start();
+                        }
+                    });
+                }
+            }
+        } else if (fileName.endsWith(".esa")) {
+            final Subsystem subsystem = findSubsystem(location);
+            if (subsystem != null) {
+                final boolean active = subsystem.getState() == Subsystem.State.ACTIVE;
+                subsystem.uninstall();
+                if (exists) {
+                    undos.push(() -> reinstallSubsystem(location, backup, active));
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit this transaction: subsystems are installed, bundles are refreshed
+     * and resolved as a single set, then started.
+     * If this method fails, this transaction must be rolled back.
+     *
+     * @throws Exception if subsystems could not be installed, or if bundles could not be resolved or started
+     */
+    public void commit() throws Exception {
+        final FrameworkWiring fwkWiring = bundleContext.getBundle(0).adapt(FrameworkWiring.class);
+        if (!bundlesToRefresh.isEmpty()) {
+            refresh(fwkWiring, bundlesToRefresh);
+        }
+        for (final PendingSubsystem pending : subsystemsToInstall) {
+            final Subsystem subsystem;
+            try (final InputStream in = Files.newInputStream(pending.target)) {
+                subsystem = subsystemDeployer.install(root, pending.location, in);
+            }
+            undos.push(subsystem::uninstall);
+            for (final Resource res : subsystem.getConstituents()) {
+                if (res instanceof BundleRevision) {
+                    bundlesToResolve.add(((BundleRevision) res).getBundle());
+                }
+            }
+            if (pending.start) {
+                subsystemsToStart.add(subsystem);
+            }
+        }
+        if (!bundlesToResolve.isEmpty() && !fwkWiring.resolveBundles(bundlesToResolve)) {
+            final StringBuilder unresolved = new StringBuilder(64);
+            for (final Bundle b : bundlesToResolve) {
+                if (b.getState() == Bundle.INSTALLED) {
+                    if (unresolved.length() != 0) {
+                        unresolved.append(", ");
+                    }
+                    unresolved.append(b.getSymbolicName()).append('/').append(b.getVersion());
+                }
+            }
+            throw new BundleException("Unable to resolve bundles: " + unresolved);
+        }
+        for (final Bundle b : sortByDependencies(bundlesToStart)) {
+            if (b.getHeaders().get(Constants.FRAGMENT_HOST) == null) {
+                b.start();
+            }
+        }
+        for (final Subsystem s : subsystemsToStart) {
+            s.start();
+        }
+        undos.clear();
+        deleteBackups();
+    }
+
+    /**
+     * Revert all changes made in this transaction.
+     * Errors are logged: this method never fails.
+     */
+    public void rollback() {
+        final FrameworkWiring fwkWiring = bundleContext.getBundle(0).adapt(FrameworkWiring.class);
+        while (!undos.isEmpty()) {
+            try {
+                undos.pop().run();
+            } catch (Exception e) {
+                logService.log(LogService.LOG_WARNING, "Error while rolling back provisioning", e);
+            }
+        }
+        try {
+            final Collection<Bundle> pending = fwkWiring.getRemovalPendingBundles();
+            if (!pending.isEmpty()) {
+                refresh(fwkWiring, pending);
+            }
+        } catch (Exception e) {
+            logService.log(LogService.LOG_WARNING, "Error while refreshing bundles after provisioning rollback", e);
+        }
+        deleteBackups();
+    }
+
+    private void reinstallSubsystem(String location, Path content, boolean start) throws IOException {
+        final Subsystem subsystem;
+        try (final InputStream in = Files.newInputStream(content)) {
+            subsystem = subsystemDeployer.install(root, location, in);
+        }
+        if (start) {
+            subsystem.start();
+        }
+    }
+
+    /**
+     * Replace a local file, keeping a backup of previous content.
+     *
+     * @return backup file, <code>null</code> if there was no local file
+     */
+    private Path replace(Path target, Path content) throws IOException {
+        final Path backup = target.resolveSibling(target.getFileName() + BACKUP_SUFFIX);
+        final boolean exists = Files.exists(target);
+        if (exists) {
+            Files.move(target, backup, StandardCopyOption.REPLACE_EXISTING);
+            backups.add(backup);
+        }
+        Files.move(content, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        undos.push(() -> {
+            if (exists) {
+                Files.move(backup, target, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(target);
+            }
+        });
+        return exists ? backup : null;
+    }
+
+    private void deleteBackups() {
+        for (final Path backup : backups) {
+            try {
+                Files.deleteIfExists(backup);
+            } catch (IOException e) {
+                logService.log(LogService.LOG_DEBUG, "Failed to delete provisioning backup file: " + backup, e);
+            }
+        }
+        backups.clear();
+    }
+
+    private Subsystem findSubsystem(String location) {
+        for (final Subsystem s : root.getChildren()) {
+            if (location.equals(s.getLocation())) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private void refresh(FrameworkWiring fwkWiring, Collection<Bundle> bundles) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        fwkWiring.refreshBundles(bundles, event -> {
+            if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED || event.getType() == FrameworkEvent.ERROR) {
+                latch.countDown();
+            }
+        });
+        if (!latch.await(REFRESH_TIMEOUT, TimeUnit.SECONDS)) {
+            logService.log(LogService.LOG_WARNING, "Timeout while refreshing bundles during provisioning");
+        }
+    }
+
+    /**
+     * Sort bundles so that providers come before bundles wired to them.
+     */
+    private static List<Bundle> sortByDependencies(Set<Bundle> bundles) {
+        final List<Bundle> sorted = new ArrayList<>(bundles.size());
+        final Set<Bundle> visited = new HashSet<>(bundles.size());
+        for (final Bundle b : bundles) {
+            visit(b, bundles, visited, sorted);
+        }
+        return sorted;
+    }
+
+    private static void visit(Bundle bundle, Set<Bundle> bundles, Set<Bundle> visited, List<Bundle> sorted) {
+        if (!visited.add(bundle)) {
+            // Already sorted, or dependency cycle.
+            return;
+        }
+        final BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        if (wiring != null) {
+            for (final BundleWire wire : wiring.getRequiredWires(null)) {
+                final Bundle provider = wire.getProvider().getBundle();
+                if (bundles.contains(provider)) {
+                    visit(provider, bundles, visited, sorted);
+                }
+            }
+        }
+        sorted.add(bundle);
+    }
+
+    /**
+     * Subsystem installed when this transaction is committed.
+     */
+    private static final class PendingSubsystem {
+        final String location;
+        final Path target;
+        final boolean start;
+
+        PendingSubsystem(final String location, final Path target, final boolean start) {
+            this.location = location;
+            this.target = target;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Action reverting a change.
+     */
+    private interface Undo {
+        void run() throws Exception;
+    }
+}
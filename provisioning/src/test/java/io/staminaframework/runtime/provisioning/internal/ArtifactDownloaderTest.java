@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.staminaframework.runtime.artifactcache.Checksums;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ArtifactDownloader} test, using a local HTTP server.
+ *
+ * @author Stamina Framework developers
+ */
+public class ArtifactDownloaderTest {
+    private static final String ETAG = "\"v1\"";
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private HttpServer server;
+    private ArtifactDownloader downloader;
+    private final byte[] content = new byte[256 * 1024];
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile Behavior behavior;
+
+    private interface Behavior {
+        void handle(HttpExchange exchange, int request) throws IOException;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/artifact.jar", exchange -> {
+            try {
+                ranges.add(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+                behavior.handle(exchange, requests.incrementAndGet());
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        downloader = new ArtifactDownloader(2, 2, "StaminaTest", 3, 10000);
+        downloader.setInitialBackoff(10);
+    }
+
+    @After
+    public void tearDown() {
+        downloader.close();
+        server.stop(0);
+    }
+
+    private URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/artifact.jar");
+    }
+
+    private void sendContent(HttpExchange exchange, int offset, int length) throws IOException {
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (offset == 0) {
+            exchange.sendResponseHeaders(200, content.length);
+        } else {
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + offset + "-" + (content.length - 1) + "/" + content.length);
+            exchange.sendResponseHeaders(206, content.length - offset);
+        }
+        final OutputStream out = exchange.getResponseBody();
+        out.write(content, offset, length);
+        out.flush();
+    }
+
+    private static int getRangeStart(HttpExchange exchange) {
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null || !ETAG.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+            return 0;
+        }
+        return Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        behavior = (exchange, request) -> sendContent(exchange, 0, content.length);
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        final String hash = downloader.download(getUrl(), target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(Checksums.sha256(target), hash);
+        assertEquals(1, requests.get());
+        assertEquals(content.length, downloader.getBytesDownloaded());
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final int half = content.length / 2;
+        behavior = (exchange, request) -> {
+            if (request == 1) {
+                // Connection is closed before all content is sent.
+                sendContent(exchange, 0, half);
+                throw new IOException("Connection lost");
+            }
+            final int offset = getRangeStart(exchange);
+            sendContent(exchange, offset, content.length - offset);
+        };
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        final String hash = downloader.download(getUrl(), target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(Checksums.sha256(target), hash);
+        assertEquals(2, requests.get());
+        assertEquals("null", ranges.get(0));
+        // Only missing bytes are downloaded again.
+        assertTrue(ranges.get(1).startsWith("bytes="));
+        assertFalse(ranges.get(1).startsWith("bytes=0-"));
+        assertEquals(content.length, downloader.getBytesDownloaded());
+    }
+
+    @Test
+    public void testResumeFromPreviousRun() throws Exception {
+        behavior = (exchange, request) -> {
+            final int offset = getRangeStart(exchange);
+            sendContent(exchange, offset, content.length - offset);
+        };
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        final int partial = 1000;
+        final byte[] partialContent = new byte[partial];
+        System.arraycopy(content, 0, partialContent, 0, partial);
+        Files.write(target, partialContent);
+        Files.write(target.resolveSibling("artifact.part.validator"), ETAG.getBytes("UTF-8"));
+
+        final String hash = downloader.download(getUrl(), target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(Checksums.sha256(target), hash);
+        assertEquals("bytes=" + partial + "-", ranges.get(0));
+        assertEquals(content.length - partial, downloader.getBytesDownloaded());
+    }
+
+    @Test
+    public void testChangedArtifact() throws Exception {
+        // Partial content comes from another artifact version: full content is sent.
+        behavior = (exchange, request) -> sendContent(exchange, 0, content.length);
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        Files.write(target, new byte[1000]);
+        Files.write(target.resolveSibling("artifact.part.validator"), "\"v0\"".getBytes("UTF-8"));
+
+        final String hash = downloader.download(getUrl(), target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(Checksums.sha256(target), hash);
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        behavior = (exchange, request) -> {
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                sendContent(exchange, 0, content.length);
+            }
+        };
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        final HttpCache.Entry entry = downloader.download(getUrl(), target, null);
+        assertEquals(ETAG, entry.etag);
+        assertEquals(Checksums.sha256(target), entry.sha256);
+
+        Files.delete(target);
+        assertSame(entry, downloader.download(getUrl(), target, entry));
+        assertFalse(Files.exists(target));
+        assertEquals(2, requests.get());
+        assertEquals(content.length, downloader.getBytesDownloaded());
+    }
+
+    @Test
+    public void testRetryOnServerError() throws Exception {
+        behavior = (exchange, request) -> {
+            if (request < 3) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                sendContent(exchange, 0, content.length);
+            }
+        };
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        final String hash = downloader.download(getUrl(), target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(Checksums.sha256(target), hash);
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testNoRetryOnNotFound() throws Exception {
+        behavior = (exchange, request) -> exchange.sendResponseHeaders(404, -1);
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        try {
+            downloader.download(getUrl(), target);
+            fail("Download should have failed");
+        } catch (ArtifactDownloader.HttpStatusException e) {
+            assertEquals(404, e.status);
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testMaxRetries() throws Exception {
+        behavior = (exchange, request) -> exchange.sendResponseHeaders(500, -1);
+        final Path target = tmp.getRoot().toPath().resolve("artifact.part");
+        try {
+            downloader.download(getUrl(), target);
+            fail("Download should have failed");
+        } catch (ArtifactDownloader.HttpStatusException e) {
+            assertEquals(500, e.status);
+        }
+        // First attempt, and 3 retries.
+        assertEquals(4, requests.get());
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import io.staminaframework.runtime.artifactcache.Checksums;
+import io.staminaframework.runtime.command.Command;
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.log.LogService;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link InstallCommand} test, provisioning configuration files.
+ *
+ * @author Stamina Framework developers
+ */
+public class InstallCommandTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private final Map<String, String> savedProperties = new HashMap<>(2);
+    private final InstallCommand command = new InstallCommand();
+    private Path confDir;
+    private String output;
+
+    @Before
+    public void setUp() throws Exception {
+        confDir = tmp.newFolder("conf").toPath();
+        setSystemProperty("stamina.data", tmp.newFolder("data").getAbsolutePath());
+        setSystemProperty("stamina.conf", confDir.toString());
+
+        final FrameworkWiring fwkWiring = stub(FrameworkWiring.class, Collections.emptyMap());
+        final Bundle systemBundle = stub(Bundle.class, Collections.singletonMap("adapt",
+                args -> FrameworkWiring.class.equals(args[0]) ? fwkWiring : null));
+        final Bundle bundle = stub(Bundle.class, Collections.singletonMap("getVersion",
+                args -> new Version("1.0.0")));
+        final Map<String, Function<Object[], Object>> context = new HashMap<>(2);
+        context.put("getBundle", args -> args.length == 0 ? bundle : args[0] instanceof Long ? systemBundle : null);
+
+        inject("logService", stub(LogService.class, Collections.emptyMap()));
+        inject("root", stub(Subsystem.class, Collections.singletonMap("getChildren",
+                args -> Collections.emptyList())));
+        inject("subsystemDeployer", (SubsystemDeployer) (parent, location, content) -> {
+            throw new SubsystemException("Unexpected subsystem: " + location);
+        });
+        inject("artifactCache", stub(ArtifactCache.class, Collections.emptyMap()));
+        command.activate(stub(BundleContext.class, context));
+    }
+
+    @After
+    public void tearDown() {
+        command.deactivate();
+        for (final Map.Entry<String, String> e : savedProperties.entrySet()) {
+            if (e.getValue() == null) {
+                System.clearProperty(e.getKey());
+            } else {
+                System.setProperty(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        final Path x = artifact("x.cfg", "x=1");
+        final Path a = provisionFile("a.spf", x);
+
+        run("--dry-run", a.toString());
+        assertTrue(output, output.contains("Provisioning plan: 1 to install, 0 to update, 0 to uninstall, 0 unchanged"));
+        assertEquals(Collections.emptyList(), installedConfigurations());
+
+        run(a.toString());
+        assertEquals(Collections.singletonList("x=1"), installedConfigurations());
+        run(a.toString());
+        assertTrue(output, output.contains("Provisioning plan: 0 to install, 0 to update, 0 to uninstall, 1 unchanged"));
+
+        // Artifacts are updated when their checksum changes.
+        Files.write(x, "x=2".getBytes(StandardCharsets.UTF_8));
+        Files.write(a, (x.toUri() + " sha256=" + Checksums.sha256(x)).getBytes(StandardCharsets.UTF_8));
+        run(a.toString());
+        assertTrue(output, output.contains("Provisioning plan: 0 to install, 1 to update, 0 to uninstall, 0 unchanged"));
+        assertEquals(Collections.singletonList("x=2"), installedConfigurations());
+    }
+
+    @Test
+    public void testRemovalsScopedToProvisionFile() throws Exception {
+        final Path x = artifact("x.cfg", "x=1");
+        final Path y = artifact("y.cfg", "y=1");
+        final Path a = provisionFile("a.spf", x);
+        final Path b = provisionFile("b.spf", y);
+        run(a.toString());
+        run(b.toString());
+        assertEquals(Arrays.asList("x=1", "y=1"), installedConfigurations());
+
+        // Artifacts from other provision files are kept.
+        provisionFile("a.spf");
+        run(a.toString());
+        assertTrue(output, output.contains("Plan: uninstall " + x.toUri().toURL()));
+        assertEquals(Collections.singletonList("y=1"), installedConfigurations());
+    }
+
+    @Test
+    public void testArtifactMovedToAnotherProvisionFile() throws Exception {
+        final Path x = artifact("x.cfg", "x=1");
+        final Path a = provisionFile("a.spf", x);
+        final Path b = provisionFile("b.spf", x);
+        run(a.toString());
+        run(b.toString());
+        provisionFile("a.spf");
+        run(a.toString());
+        assertEquals(Collections.singletonList("x=1"), installedConfigurations());
+
+        provisionFile("b.spf");
+        run(b.toString());
+        assertEquals(Collections.emptyList(), installedConfigurations());
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        final Path x = artifact("x.cfg", "x=1");
+        final Path y = artifact("y.cfg", "y=1");
+        run(provisionFile("a.spf", x).toString());
+        run("--prune", provisionFile("b.spf", y).toString());
+        assertTrue(output, output.contains("Provisioning plan: 1 to install, 0 to update, 1 to uninstall, 0 unchanged"));
+        assertEquals(Collections.singletonList("y=1"), installedConfigurations());
+    }
+
+    @Test
+    public void testLocalArtifactChecksumMismatch() throws Exception {
+        final Path x = artifact("x.cfg", "x=1");
+        final Path a = tmp.getRoot().toPath().resolve("a.spf");
+        Files.write(a, (x.toUri() + " sha256=" + Checksums.sha256(artifact("other.cfg", "x=2")))
+                .getBytes(StandardCharsets.UTF_8));
+        try {
+            run(a.toString());
+            fail("Local artifact with unexpected checksum should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Checksum mismatch"));
+        }
+        assertEquals(Collections.emptyList(), installedConfigurations());
+    }
+
+    @Test
+    public void testLink() throws Exception {
+        final Path source = artifact("x.jar", "content");
+        final Path target = tmp.newFolder("link").toPath().resolve("x.jar");
+        Files.write(target, "previous".getBytes(StandardCharsets.UTF_8));
+        InstallCommand.linkOrCopy(source, target, true);
+        assertTrue(Files.isSameFile(source, target));
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        final byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        final Path source = tmp.getRoot().toPath().resolve("x.cfg");
+        Files.write(source, content);
+        final Path target = tmp.newFolder("copy").toPath().resolve("x.cfg");
+        Files.write(target, "previous".getBytes(StandardCharsets.UTF_8));
+        InstallCommand.linkOrCopy(source, target, false);
+        assertFalse(Files.isSameFile(source, target));
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testCopyWhenLinkFails() throws Exception {
+        // Hard links cannot be created across file systems.
+        final Path otherDir = Paths.get("/dev/shm");
+        final Path target = tmp.newFolder("fallback").toPath().resolve("x.jar");
+        assumeTrue(Files.isDirectory(otherDir) && Files.isWritable(otherDir)
+                && !Files.getFileStore(otherDir).equals(Files.getFileStore(target.getParent())));
+        final Path source = Files.createTempFile(otherDir, "stamina-test-", ".jar");
+        try {
+            Files.write(source, "content".getBytes(StandardCharsets.UTF_8));
+            InstallCommand.linkOrCopy(source, target, true);
+            assertFalse(Files.isSameFile(source, target));
+            assertEquals("content", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    private void run(String... args) throws Exception {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+        try (final PrintStream out = new PrintStream(buf, true, "UTF-8")) {
+            final Map<String, Function<Object[], Object>> context = new HashMap<>(4);
+            context.put("arguments", a -> args);
+            context.put("out", a -> out);
+            context.put("err", a -> out);
+            command.execute(stub(Command.Context.class, context));
+        }
+        output = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private Path artifact(String name, String content) throws Exception {
+        final Path file = tmp.getRoot().toPath().resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private Path provisionFile(String name, Path... artifacts) throws Exception {
+        final List<String> lines = new ArrayList<>(artifacts.length + 1);
+        lines.add("# Test provision file");
+        for (final Path artifact : artifacts) {
+            lines.add(artifact.toUri().toString());
+        }
+        return Files.write(tmp.getRoot().toPath().resolve(name), lines);
+    }
+
+    private List<String> installedConfigurations() throws Exception {
+        try (final Stream<Path> files = Files.list(confDir)) {
+            final List<Path> cfgs = files.filter(f -> f.toString().endsWith(".cfg")).collect(Collectors.toList());
+            final List<String> contents = new ArrayList<>(cfgs.size());
+            for (final Path cfg : cfgs) {
+                contents.add(new String(Files.readAllBytes(cfg), StandardCharsets.UTF_8));
+            }
+            Collections.sort(contents);
+            return contents;
+        }
+    }
+
+    private void setSystemProperty(String key, String value) {
+        savedProperties.put(key, System.getProperty(key));
+        System.setProperty(key, value);
+    }
+
+    private void inject(String fieldName, Object value) throws ReflectiveOperationException {
+        final Field field = InstallCommand.class.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(command, value);
+    }
+
+    /**
+     * Create a stub implementing an interface: methods without any behavior return a default value.
+     */
+    private static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> behavior) {
+        return type.cast(Proxy.newProxyInstance(InstallCommandTest.class.getClassLoader(),
+                new Class<?>[]{type}, (proxy, method, args) -> {
+                    final Function<Object[], Object> impl = behavior.get(method.getName());
+                    if (impl != null) {
+                        return impl.apply(args == null ? new Object[0] : args);
+                    }
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return type.getSimpleName();
+                        default:
+                            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                }));
+    }
+}
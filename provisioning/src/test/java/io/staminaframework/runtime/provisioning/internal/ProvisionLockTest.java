@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link ProvisionLock} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class ProvisionLockTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        final ProvisionLock lock = new ProvisionLock();
+        lock.put(new ProvisionLock.Entry("a.jar", "mvn:g/a/1.0", "a.spf", "abcd", 10, 20, "a", "1.0.0"));
+        lock.put(new ProvisionLock.Entry("b.cfg", "file:/b.cfg", null, null, -1, -1, null, null));
+        final Path file = tmp.getRoot().toPath().resolve("provision.lock");
+        lock.store(file);
+
+        final ProvisionLock loaded = ProvisionLock.load(file);
+        final ProvisionLock.Entry a = loaded.get("a.jar");
+        assertEquals("mvn:g/a/1.0", a.url);
+        assertEquals("a.spf", a.source);
+        assertEquals("abcd", a.sha256);
+        assertEquals(10, a.size);
+        assertEquals(20, a.modified);
+        assertEquals("a", a.name);
+        assertEquals("1.0.0", a.version);
+        final ProvisionLock.Entry b = loaded.get("b.cfg");
+        assertNull(b.source);
+        assertNull(b.sha256);
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        assertEquals(0, ProvisionLock.load(tmp.getRoot().toPath().resolve("missing.lock")).getEntries().size());
+    }
+
+    @Test
+    public void testRemovals() {
+        final ProvisionLock lock = new ProvisionLock();
+        lock.put(new ProvisionLock.Entry("a1.jar", "file:/a1.jar", "a.spf", null, -1, -1, null, null));
+        lock.put(new ProvisionLock.Entry("a2.jar", "file:/a2.jar", "a.spf", null, -1, -1, null, null));
+        lock.put(new ProvisionLock.Entry("b.jar", "file:/b.jar", "b.spf", null, -1, -1, null, null));
+        // This entry was recorded before provision files were tracked.
+        lock.put(new ProvisionLock.Entry("c.jar", "file:/c.jar", null, null, -1, -1, null, null));
+
+        final Set<String> sources = Collections.singleton("a.spf");
+        final Set<String> desired = new HashSet<>(Collections.singletonList("a1.jar"));
+        assertEquals(Collections.singletonList("a2.jar"), fileNames(lock.getRemovals(sources, desired, false)));
+        assertEquals(Arrays.asList("a2.jar", "b.jar", "c.jar"), fileNames(lock.getRemovals(sources, desired, true)));
+    }
+
+    private static List<String> fileNames(List<ProvisionLock.Entry> entries) {
+        final List<String> fileNames = new ArrayList<>(entries.size());
+        for (final ProvisionLock.Entry e : entries) {
+            fileNames.add(e.fileName);
+        }
+        return fileNames;
+    }
+}
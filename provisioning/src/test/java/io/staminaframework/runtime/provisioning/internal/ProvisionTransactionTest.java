@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.provisioning.internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.log.LogService;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemException;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ProvisionTransaction} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class ProvisionTransactionTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private final List<String> events = new ArrayList<>(16);
+    private final Map<String, Bundle> bundles = new HashMap<>(4);
+    private boolean failingSubsystem;
+    private ProvisionTransaction tx;
+
+    @Before
+    public void setUp() {
+        final Map<String, Function<Object[], Object>> wiring = new HashMap<>(4);
+        wiring.put("resolveBundles", args -> {
+            final Collection<String> names = new TreeSet<>();
+            for (final Object b : (Collection<?>) args[0]) {
+                names.add(((Bundle) b).getSymbolicName());
+            }
+            events.add("resolve " + names);
+            return true;
+        });
+        wiring.put("getRemovalPendingBundles", args -> Collections.emptyList());
+        final FrameworkWiring fwkWiring = stub(FrameworkWiring.class, wiring);
+        final Bundle systemBundle = stub(Bundle.class, Collections.singletonMap("adapt",
+                args -> FrameworkWiring.class.equals(args[0]) ? fwkWiring : null));
+
+        final Map<String, Function<Object[], Object>> context = new HashMap<>(4);
+        context.put("getBundle", args -> args[0] instanceof String ? bundles.get(args[0]) : systemBundle);
+        context.put("installBundle", args -> {
+            final String location = (String) args[0];
+            final Bundle bundle = newBundle(location.substring(location.lastIndexOf('/') + 1));
+            bundles.put(location, bundle);
+            events.add("install " + bundle.getSymbolicName());
+            return bundle;
+        });
+        final BundleContext bundleContext = stub(BundleContext.class, context);
+
+        final Subsystem root = stub(Subsystem.class, Collections.singletonMap("getChildren",
+                args -> Collections.emptyList()));
+        tx = new ProvisionTransaction(bundleContext, root, (parent, location, content) -> {
+            if (failingSubsystem) {
+                throw new SubsystemException("Failed to install subsystem: " + location);
+            }
+            final String name = location.substring(location.lastIndexOf('/') + 1);
+            events.add("install " + name);
+            return newSubsystem(name, newBundle(name + "-constituent"));
+        }, stub(LogService.class, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testSubsystemsInstalledAfterBundles() throws Exception {
+        tx.install("file:/repo/s.esa", tmp.getRoot().toPath().resolve("s.esa"), newContent());
+        tx.install("file:/repo/b.jar", tmp.getRoot().toPath().resolve("b.jar"), newContent());
+        assertEquals(Collections.singletonList("install b.jar"), events);
+
+        tx.commit();
+        assertEquals(Arrays.asList("install b.jar", "install s.esa",
+                "resolve [b.jar, s.esa-constituent]", "start b.jar", "start s.esa"), events);
+    }
+
+    @Test
+    public void testRollbackOnSubsystemFailure() throws Exception {
+        failingSubsystem = true;
+        final Path bundleFile = tmp.getRoot().toPath().resolve("b.jar");
+        final Path subsystemFile = tmp.getRoot().toPath().resolve("s.esa");
+        tx.install("file:/repo/s.esa", subsystemFile, newContent());
+        tx.install("file:/repo/b.jar", bundleFile, newContent());
+        try {
+            tx.commit();
+            fail("Subsystem installation should fail");
+        } catch (SubsystemException e) {
+            tx.rollback();
+        }
+
+        assertEquals(Arrays.asList("install b.jar", "uninstall b.jar"), events);
+        assertFalse(Files.exists(bundleFile));
+        assertFalse(Files.exists(subsystemFile));
+    }
+
+    private Path newContent() throws Exception {
+        final Path content = tmp.newFile().toPath();
+        Files.write(content, "content".getBytes(StandardCharsets.UTF_8));
+        return content;
+    }
+
+    private Bundle newBundle(String symbolicName) {
+        final Map<String, Function<Object[], Object>> behavior = new HashMap<>(8);
+        behavior.put("getSymbolicName", args -> symbolicName);
+        behavior.put("getState", args -> Bundle.INSTALLED);
+        behavior.put("getHeaders", args -> new Hashtable<String, String>());
+        behavior.put("start", args -> events.add("start " + symbolicName));
+        behavior.put("uninstall", args -> events.add("uninstall " + symbolicName));
+        return stub(Bundle.class, behavior);
+    }
+
+    private Subsystem newSubsystem(String name, Bundle constituent) {
+        final BundleRevision revision = stub(BundleRevision.class, Collections.singletonMap("getBundle",
+                args -> constituent));
+        final Map<String, Function<Object[], Object>> behavior = new HashMap<>(4);
+        behavior.put("getConstituents", args -> Collections.singletonList(revision));
+        behavior.put("start", args -> events.add("start " + name));
+        behavior.put("uninstall", args -> events.add("uninstall " + name));
+        return stub(Subsystem.class, behavior);
+    }
+
+    /**
+     * Create a stub implementing an interface: methods without any behavior return a default value.
+     */
+    private static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> behavior) {
+        return type.cast(Proxy.newProxyInstance(ProvisionTransactionTest.class.getClassLoader(),
+                new Class<?>[]{type}, (proxy, method, args) -> {
+                    final Function<Object[], Object> impl = behavior.get(method.getName());
+                    if (impl != null) {
+                        final Object result = impl.apply(args == null ? new Object[0] : args);
+                        return method.getReturnType() == void.class ? null : result;
+                    }
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return type.getSimpleName();
+                        default:
+                            return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                }));
+    }
+}
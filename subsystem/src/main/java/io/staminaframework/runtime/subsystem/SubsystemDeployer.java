@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem;
+
+import org.osgi.annotation.versioning.ProviderType;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.io.InputStream;
+
+/**
+ * Service interface for installing subsystems.
+ * <p>
+ * Installing a subsystem requires a deployment to be computed,
+ * using every available repository. Deployments are cached:
+ * installing the same subsystem archive again skips this step,
+ * as long as repositories are unchanged.
+ *
+ * @author Stamina Framework developers
+ */
+@ProviderType
+public interface SubsystemDeployer {
+    /**
+     * Install a subsystem.
+     *
+     * @param parent   parent subsystem
+     * @param location subsystem location
+     * @param content  subsystem content, <code>null</code> to read it from its location
+     * @return installed subsystem
+     * @throws org.osgi.service.subsystem.SubsystemException if subsystem install failed
+     */
+    Subsystem install(Subsystem parent, String location, InputStream content);
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem;
+
+import org.osgi.annotation.versioning.ProviderType;
+import org.osgi.framework.Version;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.util.List;
+
+/**
+ * Service interface for an index of installed subsystems.
+ * <p>
+ * This index covers every subsystem registered as a service,
+ * including subsystems nested in scoped subsystems:
+ * lookups do not walk the subsystem tree.
+ *
+ * @author Stamina Framework developers
+ */
+@ProviderType
+public interface SubsystemIndex {
+    /**
+     * Get a subsystem from its identifier.
+     *
+     * @param id subsystem identifier
+     * @return subsystem instance, <code>null</code> if none was found
+     */
+    Subsystem getById(long id);
+
+    /**
+     * Get a subsystem from its location.
+     *
+     * @param location subsystem location
+     * @return subsystem instance, <code>null</code> if none was found
+     */
+    Subsystem getByLocation(String location);
+
+    /**
+     * Get a subsystem from its symbolic name and version.
+     *
+     * @param symbolicName subsystem symbolic name
+     * @param version      subsystem version
+     * @return subsystem instance, <code>null</code> if none was found
+     */
+    Subsystem get(String symbolicName, Version version);
+
+    /**
+     * Get subsystems sharing a symbolic name.
+     *
+     * @param symbolicName subsystem symbolic name
+     * @return subsystem instances, highest version first
+     */
+    List<Subsystem> getBySymbolicName(String symbolicName);
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * Utility methods for reading framework properties.
+ *
+ * @author Stamina Framework developers
+ */
+final class FrameworkProperties {
+    private FrameworkProperties() {
+    }
+
+    /**
+     * Get an integer framework property.
+     *
+     * @param context      bundle context
+     * @param key          property key
+     * @param defaultValue value used when this property is not set
+     * @return property value
+     * @throws IllegalArgumentException if property value is not an integer
+     */
+    public static long getLong(BundleContext context, String key, long defaultValue) {
+        final String value = context.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer value for framework property " + key + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Requirement matching resources from their identity.
+ *
+ * @author Stamina Framework developers
+ */
+class IdentityRequirement implements Requirement {
+    private final Map<String, String> directives = new HashMap<>(1);
+
+    /**
+     * Create a requirement matching a single resource.
+     */
+    public IdentityRequirement(final String symbolicName, final Version version, final String type) {
+        this(symbolicName, type,
+                "(" + IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE + "=" + version + ")");
+    }
+
+    /**
+     * Create a requirement matching every resource version in a range.
+     */
+    public IdentityRequirement(final String symbolicName, final VersionRange versionRange, final String type) {
+        this(symbolicName, type, versionRange.toFilterString(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+    }
+
+    private IdentityRequirement(final String symbolicName, final String type, final String versionFilter) {
+        final String filter = "(&(" + IdentityNamespace.IDENTITY_NAMESPACE + "=" + symbolicName + ")"
+                + "(" + IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE + "=" + type + ")"
+                + versionFilter + ")";
+        directives.put(IdentityNamespace.REQUIREMENT_FILTER_DIRECTIVE, filter);
+    }
+
+    @Override
+    public String getNamespace() {
+        return IdentityNamespace.IDENTITY_NAMESPACE;
+    }
+
+    @Override
+    public Map<String, String> getDirectives() {
+        return directives;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Resource getResource() {
+        return null;
+    }
+}
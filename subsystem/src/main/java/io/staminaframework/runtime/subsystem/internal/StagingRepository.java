@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.repository.Repository;
+import org.osgi.service.repository.RepositoryContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repository serving resources from local files.
+ * <p>
+ * Staged resources expose the same capabilities and requirements
+ * as resources they were downloaded from, but their content is read
+ * from a local staging area.
+ * <p>
+ * Staging repositories are registered as services while a subsystem is
+ * installed: a concurrent installation may select staged resources,
+ * and read them after the staging area is deleted. In this case,
+ * resource content is read from the original resource.
+ *
+ * @author Stamina Framework developers
+ */
+class StagingRepository implements Repository {
+    /**
+     * Service property set when a staging repository is registered.
+     */
+    public static final String STAGING_PROPERTY = "stamina.subsystem.staging";
+    private final List<StagedResource> resources = new ArrayList<>(16);
+
+    public void add(Resource resource, Path file) {
+        resources.add(new StagedResource(resource, file));
+    }
+
+    public int size() {
+        return resources.size();
+    }
+
+    @Override
+    public Map<Requirement, Collection<Capability>> findProviders(Collection<? extends Requirement> requirements) {
+        final Map<Requirement, Collection<Capability>> providers = new HashMap<>(requirements.size());
+        for (final Requirement req : requirements) {
+            final List<Capability> caps = new ArrayList<>(1);
+            final Filter filter;
+            try {
+                final String filterSpec = req.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+                filter = filterSpec == null ? null : FrameworkUtil.createFilter(filterSpec);
+            } catch (InvalidSyntaxException e) {
+                providers.put(req, caps);
+                continue;
+            }
+            for (final StagedResource res : resources) {
+                for (final Capability cap : res.getCapabilities(req.getNamespace())) {
+                    if (filter == null || filter.matches(cap.getAttributes())) {
+                        caps.add(cap);
+                    }
+                }
+            }
+            providers.put(req, caps);
+        }
+        return providers;
+    }
+
+    private static final class StagedResource implements Resource, RepositoryContent {
+        private final Resource resource;
+        private final Path file;
+        private final List<Capability> capabilities;
+        private final List<Requirement> requirements;
+
+        StagedResource(final Resource resource, final Path file) {
+            this.resource = resource;
+            this.file = file;
+            final List<Capability> caps = resource.getCapabilities(null);
+            capabilities = new ArrayList<>(caps.size());
+            for (final Capability cap : caps) {
+                capabilities.add(new StagedCapability(this, cap));
+            }
+            final List<Requirement> reqs = resource.getRequirements(null);
+            requirements = new ArrayList<>(reqs.size());
+            for (final Requirement req : reqs) {
+                requirements.add(new StagedRequirement(this, req));
+            }
+        }
+
+        @Override
+        public List<Capability> getCapabilities(String namespace) {
+            if (namespace == null) {
+                return Collections.unmodifiableList(capabilities);
+            }
+            final List<Capability> caps = new ArrayList<>(2);
+            for (final Capability cap : capabilities) {
+                if (namespace.equals(cap.getNamespace())) {
+                    caps.add(cap);
+                }
+            }
+            return caps;
+        }
+
+        @Override
+        public List<Requirement> getRequirements(String namespace) {
+            if (namespace == null) {
+                return Collections.unmodifiableList(requirements);
+            }
+            final List<Requirement> reqs = new ArrayList<>(2);
+            for (final Requirement req : requirements) {
+                if (namespace.equals(req.getNamespace())) {
+                    reqs.add(req);
+                }
+            }
+            return reqs;
+        }
+
+        @Override
+        public InputStream getContent() {
+            try {
+                return Files.newInputStream(file);
+            } catch (IOException e) {
+                if (resource instanceof RepositoryContent) {
+                    return ((RepositoryContent) resource).getContent();
+                }
+                throw new UncheckedIOException("Failed to read staged resource: " + file, e);
+            }
+        }
+    }
+
+    private static final class StagedCapability implements Capability {
+        private final Resource resource;
+        private final Capability delegate;
+
+        StagedCapability(final Resource resource, final Capability delegate) {
+            this.resource = resource;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getNamespace() {
+            return delegate.getNamespace();
+        }
+
+        @Override
+        public Map<String, String> getDirectives() {
+            return delegate.getDirectives();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return delegate.getAttributes();
+        }
+
+        @Override
+        public Resource getResource() {
+            return resource;
+        }
+    }
+
+    private static final class StagedRequirement implements Requirement {
+        private final Resource resource;
+        private final Requirement delegate;
+
+        StagedRequirement(final Resource resource, final Requirement delegate) {
+            this.resource = resource;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getNamespace() {
+            return delegate.getNamespace();
+        }
+
+        @Override
+        public Map<String, String> getDirectives() {
+            return delegate.getDirectives();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return delegate.getAttributes();
+        }
+
+        @Override
+        public Resource getResource() {
+            return resource;
+        }
+    }
+}
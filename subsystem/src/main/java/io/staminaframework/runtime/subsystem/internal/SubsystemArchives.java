@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.manifestcache.ManifestCache;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.jar.Manifest;
+
+/**
+ * Component reading subsystem archive manifests.
+ * <p>
+ * Manifests are cached: archives are only read again when they are updated.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = SubsystemArchives.class)
+public class SubsystemArchives {
+    private static final int MAX_ARCHIVES = 1024;
+    private final ManifestCache manifestCache = new ManifestCache(MAX_ARCHIVES);
+
+    /**
+     * Get subsystem manifest from an archive.
+     *
+     * @param artifact subsystem archive
+     * @return subsystem manifest
+     * @throws IOException if this archive is not a valid subsystem
+     */
+    public Manifest getManifest(File artifact) throws IOException {
+        final Manifest man = manifestCache.getManifest(artifact.toPath(), ManifestCache.SUBSYSTEM_MANIFEST);
+        if (man == null) {
+            throw new IOException("Missing subsystem manifest");
+        }
+        final String ssn = man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
+        if (ssn == null) {
+            throw new IOException("Missing symbolic name in subsystem manifest");
+        }
+        return man;
+    }
+
+    /**
+     * Forget cached data about an archive.
+     *
+     * @param artifact subsystem archive
+     */
+    public void invalidate(File artifact) {
+        manifestCache.invalidate(artifact.toPath());
+    }
+}
@@ -17,6 +17,7 @@
 package io.staminaframework.runtime.subsystem.internal;
 
 import io.staminaframework.runtime.asciitable.AsciiTable;
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
 import org.apache.felix.service.command.CommandProcessor;
 import org.apache.felix.service.command.CommandSession;
 import org.apache.felix.service.command.Descriptor;
@@ -32,6 +33,8 @@ import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.subsystem.Subsystem;
 import org.osgi.service.subsystem.SubsystemConstants;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -72,6 +75,10 @@ public class SubsystemCommands {
     private BundleContext bundleContext;
     @Reference(target = "(" + SubsystemConstants.SUBSYSTEM_ID_PROPERTY + "=0)")
     private Subsystem root;
+    @Reference
+    private SubsystemArchives subsystemArchives;
+    @Reference
+    private SubsystemDeployer subsystemDeployer;
 
     @Activate
     public void activate(BundleContext bundleContext) {
@@ -149,8 +156,15 @@ public class SubsystemCommands {
     }
 
     @Descriptor("Install a subsystem")
-    public void install(@Descriptor("subsystem location") String location) {
-        root.install(location);
+    public void install(@Descriptor("subsystem location") String location) throws IOException {
+        final File file = new File(location);
+        if (file.isFile()) {
+            // Check local archives before installing them.
+            subsystemArchives.getManifest(file);
+            subsystemDeployer.install(root, file.getCanonicalFile().toURI().toURL().toExternalForm(), null);
+        } else {
+            subsystemDeployer.install(root, location, null);
+        }
     }
 
     @Descriptor("Uninstall a subsystem")
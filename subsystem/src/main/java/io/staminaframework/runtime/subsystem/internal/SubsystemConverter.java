@@ -16,9 +16,9 @@
 
 package io.staminaframework.runtime.subsystem.internal;
 
+import io.staminaframework.runtime.subsystem.SubsystemIndex;
 import org.apache.felix.service.command.Converter;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceReference;
 import org.osgi.framework.Version;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -27,7 +27,7 @@ import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.subsystem.Subsystem;
 import org.osgi.service.subsystem.SubsystemConstants;
 
-import java.util.Collection;
+import java.util.List;
 
 /**
  * {@link Converter} implementation handling {@link Subsystem} instances.
@@ -39,6 +39,8 @@ public class SubsystemConverter implements Converter {
     private BundleContext bundleContext;
     @Reference(target = "(" + SubsystemConstants.SUBSYSTEM_ID_PROPERTY + "=0)")
     private Subsystem root;
+    @Reference
+    private SubsystemIndex subsystemIndex;
 
     @Activate
     public void activate(BundleContext bundleContext) {
@@ -56,30 +58,19 @@ public class SubsystemConverter implements Converter {
             final String s = in.toString();
             // Try to convert input to subsystem identifier (long).
             try {
-                final long sysId = Long.parseLong(s);
-                final Collection<ServiceReference<Subsystem>> refs =
-                        bundleContext.getServiceReferences(Subsystem.class,
-                                "(" + SubsystemConstants.SUBSYSTEM_ID_PROPERTY + "=" + sysId + ")");
-                for (final ServiceReference<Subsystem> ref : refs) {
-                    return bundleContext.getService(ref);
+                final Subsystem sys = subsystemIndex.getById(Long.parseLong(s));
+                if (sys != null) {
+                    return sys;
                 }
             } catch (NumberFormatException ignore) {
             }
 
-            // Lookup subsystem against symbolic name or location.
-            final Collection<ServiceReference<Subsystem>> refs =
-                    bundleContext.getServiceReferences(Subsystem.class, null);
-            for (final ServiceReference<Subsystem> ref : refs) {
-                final Subsystem sys = bundleContext.getService(ref);
-                if (sys.getSymbolicName().equals(s)) {
-                    return sys;
-                }
-                if (sys.getLocation().equals(s)) {
-                    return sys;
-                }
-
-                bundleContext.ungetService(ref);
+            // Lookup subsystem against symbolic name (highest version) or location.
+            final List<Subsystem> candidates = subsystemIndex.getBySymbolicName(s);
+            if (!candidates.isEmpty()) {
+                return candidates.get(0);
             }
+            return subsystemIndex.getByLocation(s);
         }
         return null;
     }
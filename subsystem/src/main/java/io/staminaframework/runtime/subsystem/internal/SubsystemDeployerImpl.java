@@ -0,0 +1,529 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import io.staminaframework.runtime.artifactcache.Checksums;
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
+import org.apache.felix.bundlerepository.RepositoryAdmin;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.log.LogService;
+import org.osgi.service.repository.Repository;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemConstants;
+import org.osgi.service.subsystem.SubsystemException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * {@link SubsystemDeployer} implementation, caching deployment manifests.
+ * <p>
+ * A deployment manifest is computed when a subsystem is installed.
+ * This manifest is stored, using a key made of a subsystem content hash,
+ * the parent subsystem id and a fingerprint of available repositories.
+ * When the same content is installed again in the same parent, the stored
+ * deployment manifest is given to the subsystem implementation, which does
+ * not need to compute it again.
+ * Whenever a repository is added, removed or updated, the repository
+ * fingerprint changes: cached deployments are no longer used.
+ * <p>
+ * Installed bundles providing capabilities to the subsystem are not provisioned:
+ * such bundles are recorded with the deployment manifest. A cached deployment
+ * is not used when one of these bundles is no longer installed.
+ * Up to {@value #MAX_CACHE_ENTRIES} deployments are kept:
+ * least recently used deployments are deleted first.
+ * <p>
+ * When a cached deployment is used, every resource it refers to is known
+ * before the subsystem is installed. Otherwise, only subsystem content is known.
+ * These resources are downloaded concurrently (see {@link SubsystemPrefetcher}),
+ * and served from a local staging area while the subsystem is installed.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = SubsystemDeployer.class)
+public class SubsystemDeployerImpl implements SubsystemDeployer {
+    private static final String CACHE_ENTRY_SUFFIX = ".mf";
+    /**
+     * Deployment manifest header listing installed bundles the deployment relies on.
+     * This header is removed before the deployment manifest is used.
+     */
+    private static final String RELIED_ON_HEADER = "Stamina-Relied-On";
+    private static final int MAX_CACHE_ENTRIES = 256;
+    /**
+     * Service properties set by the framework or by the component runtime:
+     * these properties change when a repository is registered again.
+     */
+    private static final Set<String> VOLATILE_PROPERTIES = new HashSet<>(Arrays.asList(
+            Constants.SERVICE_ID, Constants.SERVICE_BUNDLEID, Constants.SERVICE_SCOPE, "component.id"));
+    private static final int DEFAULT_PREFETCH_THREADS = 4;
+    @Reference
+    private LogService logService;
+    @Reference
+    private ArtifactCache artifactCache;
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    private volatile List<ServiceReference<Repository>> repositories = Collections.emptyList();
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile RepositoryAdmin repositoryAdmin;
+    private BundleContext bundleContext;
+    private Path cacheDir;
+    private Path stagingRoot;
+    private boolean cacheEnabled;
+    private ExecutorService prefetchExecutor;
+    private SubsystemPrefetcher prefetcher;
+
+    @Activate
+    void activate(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+        cacheDir = bundleContext.getDataFile("deployments").toPath();
+        stagingRoot = bundleContext.getDataFile("staging").toPath();
+        cacheEnabled = !"false".equalsIgnoreCase(bundleContext.getProperty("stamina.subsystem.deployment.cache"));
+
+        final int prefetchThreads = (int) FrameworkProperties.getLong(bundleContext,
+                "stamina.subsystem.prefetch.threads", DEFAULT_PREFETCH_THREADS);
+        if (prefetchThreads > 0) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, r -> {
+                final Thread t = new Thread(r, "Stamina Subsystem Prefetch Thread #" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            prefetcher = new SubsystemPrefetcher(prefetchExecutor, artifactCache);
+        }
+    }
+
+    @Deactivate
+    void deactivate() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+            prefetcher = null;
+        }
+        bundleContext = null;
+    }
+
+    @Override
+    public Subsystem install(Subsystem parent, String location, InputStream content) {
+        if (!cacheEnabled) {
+            return content == null ? parent.install(location) : parent.install(location, content);
+        }
+
+        try {
+            // Local archives are read in place: other archives are stored
+            // in the artifact cache, since subsystem content is read twice.
+            final Path localArchive;
+            final String archiveHash;
+            if (content == null && location.startsWith("file:")) {
+                localArchive = Paths.get(URI.create(location));
+                archiveHash = Checksums.sha256(localArchive);
+            } else {
+                localArchive = null;
+                try (final InputStream in = content == null ? new URL(location).openStream() : content) {
+                    // Cached artifacts are named after their content hash.
+                    archiveHash = artifactCache.put(null, in, null).getFileName().toString();
+                }
+            }
+
+            Files.createDirectories(cacheDir);
+            final String fingerprint = getRepositoryFingerprint();
+            final Path cacheEntry = cacheDir.resolve(archiveHash + "-" + parent.getSubsystemId()
+                    + "-" + fingerprint + CACHE_ENTRY_SUFFIX);
+            final Manifest deployment = Files.exists(cacheEntry) ? loadDeployment(cacheEntry) : null;
+            if (deployment == null) {
+                Files.deleteIfExists(cacheEntry);
+            } else {
+                touch(cacheEntry);
+            }
+
+            Path stagingDir = null;
+            ServiceRegistration<Repository> stagingReg = null;
+            try {
+                if (prefetcher != null) {
+                    Files.createDirectories(stagingRoot);
+                    stagingDir = Files.createTempDirectory(stagingRoot, "install-");
+                    final Path dir = stagingDir;
+                    if (deployment != null) {
+                        stagingReg = prefetch(location, repos -> prefetcher.prefetch(deployment, repos, dir));
+                    } else {
+                        // Without any deployment, only subsystem content is known before install.
+                        stagingReg = prefetch(location, repos -> {
+                            try (final InputStream in = openArchive(localArchive, archiveHash)) {
+                                return prefetcher.prefetchContent(in, repos, dir);
+                            }
+                        });
+                    }
+                }
+
+                if (deployment != null) {
+                    final ByteArrayOutputStream deploymentOut = new ByteArrayOutputStream(4096);
+                    deployment.write(deploymentOut);
+                    try (final InputStream in = openArchive(localArchive, archiveHash);
+                         final InputStream deploymentIn = new ByteArrayInputStream(deploymentOut.toByteArray())) {
+                        final Subsystem subsystem = parent.install(location, in, deploymentIn);
+                        logService.log(LogService.LOG_DEBUG,
+                                "Subsystem installed using cached deployment: " + location);
+                        return subsystem;
+                    } catch (SubsystemException e) {
+                        // Deployed resources may no longer be available.
+                        logService.log(LogService.LOG_WARNING,
+                                "Failed to install subsystem using cached deployment: " + location, e);
+                        Files.deleteIfExists(cacheEntry);
+                    }
+                }
+
+                final Subsystem subsystem;
+                try (final InputStream in = openArchive(localArchive, archiveHash)) {
+                    subsystem = parent.install(location, in);
+                }
+                try {
+                    store(cacheEntry, subsystem, fingerprint);
+                } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                    logService.log(LogService.LOG_WARNING, "Failed to cache subsystem deployment: " + location, e);
+                }
+                return subsystem;
+            } finally {
+                if (stagingReg != null) {
+                    stagingReg.unregister();
+                }
+                if (stagingDir != null) {
+                    deleteDirectory(stagingDir);
+                }
+            }
+        } catch (IOException e) {
+            throw new SubsystemException("Failed to install subsystem: " + location, e);
+        }
+    }
+
+    /**
+     * Open a subsystem archive: archives which are not local files
+     * are read from the artifact cache.
+     */
+    private InputStream openArchive(Path localArchive, String archiveHash) throws IOException {
+        if (localArchive != null) {
+            return Files.newInputStream(localArchive);
+        }
+        final InputStream in = artifactCache.open(archiveHash);
+        if (in == null) {
+            throw new IOException("Subsystem archive was evicted from artifact cache: " + archiveHash);
+        }
+        return in;
+    }
+
+    /**
+     * Load a cached deployment manifest.
+     *
+     * @return deployment manifest, <code>null</code> if a bundle this deployment relies on is no longer installed
+     */
+    private Manifest loadDeployment(Path cacheEntry) throws IOException {
+        final Manifest deployment;
+        try (final InputStream in = Files.newInputStream(cacheEntry)) {
+            deployment = new Manifest(in);
+        }
+        final String reliedOn = (String) deployment.getMainAttributes().remove(new Attributes.Name(RELIED_ON_HEADER));
+        if (reliedOn == null || reliedOn.isEmpty()) {
+            return deployment;
+        }
+        final Set<String> installedBundles = new HashSet<>(64);
+        for (final Bundle b : bundleContext.getBundles()) {
+            installedBundles.add(b.getSymbolicName() + "/" + b.getVersion());
+        }
+        for (final String bundle : reliedOn.split(",")) {
+            if (!installedBundles.contains(bundle)) {
+                logService.log(LogService.LOG_DEBUG,
+                        "Ignoring cached deployment relying on bundle which is no longer installed: " + bundle);
+                return null;
+            }
+        }
+        return deployment;
+    }
+
+    /**
+     * Get installed bundles providing capabilities to a subsystem and to resources provisioned
+     * for this subsystem. Capabilities are looked up without resolving bundles.
+     *
+     * @return bundle identities, as <code>symbolic-name/version</code>
+     */
+    private Set<String> getReliedOnBundles(Subsystem subsystem, Map<String, String> headers) {
+        final Set<BundleRevision> revisions = new HashSet<>(16);
+        for (final Resource res : subsystem.getConstituents()) {
+            if (res instanceof BundleRevision) {
+                revisions.add((BundleRevision) res);
+            }
+        }
+        final String provisioned = headers.get(SubsystemConstants.PROVISION_RESOURCE);
+        if (provisioned != null) {
+            final Set<String> provisionedBundles = new HashSet<>(16);
+            for (final Clause c : Parser.parseHeader(provisioned)) {
+                provisionedBundles.add(c.getName() + "/"
+                        + Version.parseVersion(c.getAttribute(SubsystemConstants.DEPLOYED_VERSION_ATTRIBUTE)));
+            }
+            for (final Bundle b : bundleContext.getBundles()) {
+                final BundleRevision rev = b.adapt(BundleRevision.class);
+                if (rev != null && provisionedBundles.contains(rev.getSymbolicName() + "/" + rev.getVersion())) {
+                    revisions.add(rev);
+                }
+            }
+        }
+
+        final FrameworkWiring fwkWiring = bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION)
+                .adapt(FrameworkWiring.class);
+        final Set<String> reliedOn = new TreeSet<>();
+        for (final BundleRevision rev : revisions) {
+            for (final Requirement req : rev.getRequirements(null)) {
+                for (final BundleCapability cap : fwkWiring.findProviders(req)) {
+                    final BundleRevision provider = cap.getRevision();
+                    if (!revisions.contains(provider)) {
+                        reliedOn.add(provider.getSymbolicName() + "/" + provider.getVersion());
+                    }
+                }
+            }
+        }
+        return reliedOn;
+    }
+
+    /**
+     * Download subsystem resources, and register a repository serving them.
+     *
+     * @return staging repository registration, <code>null</code> if no resource was downloaded
+     */
+    private ServiceRegistration<Repository> prefetch(String location, Prefetch prefetch) {
+        final List<ServiceReference<Repository>> refs = new ArrayList<>(repositories.size());
+        final List<Repository> repos = new ArrayList<>(repositories.size());
+        try {
+            for (final ServiceReference<Repository> ref : repositories) {
+                if (ref.getProperty(StagingRepository.STAGING_PROPERTY) == null) {
+                    final Repository repo = bundleContext.getService(ref);
+                    if (repo != null) {
+                        refs.add(ref);
+                        repos.add(repo);
+                    }
+                }
+            }
+
+            final long start = System.currentTimeMillis();
+            final StagingRepository staging = prefetch.run(repos);
+            if (staging.size() == 0) {
+                return null;
+            }
+            logService.log(LogService.LOG_DEBUG, "Downloaded " + staging.size() + " resource(s) in "
+                    + (System.currentTimeMillis() - start) + " ms for subsystem: " + location);
+
+            // Staged resources are preferred to remote resources.
+            final Dictionary<String, Object> props = new Hashtable<>(2);
+            props.put(StagingRepository.STAGING_PROPERTY, Boolean.TRUE);
+            props.put(Constants.SERVICE_RANKING, Integer.MAX_VALUE);
+            return bundleContext.registerService(Repository.class, staging, props);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to download resources for subsystem: " + location, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            for (final ServiceReference<Repository> ref : refs) {
+                bundleContext.ungetService(ref);
+            }
+        }
+    }
+
+    /**
+     * Download task, using available repositories.
+     */
+    @FunctionalInterface
+    private interface Prefetch {
+        StagingRepository run(List<Repository> repositories) throws IOException, InterruptedException;
+    }
+
+    private static void deleteDirectory(Path dir) {
+        try (final Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException ignore) {
+                }
+            });
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void store(Path cacheEntry, Subsystem subsystem, String fingerprint) throws IOException {
+        final Map<String, String> headers = subsystem.getDeploymentHeaders();
+        final Manifest man = new Manifest();
+        final Attributes atts = man.getMainAttributes();
+        atts.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (final Map.Entry<String, String> e : headers.entrySet()) {
+            atts.putValue(e.getKey(), e.getValue());
+        }
+        final Set<String> reliedOn = getReliedOnBundles(subsystem, headers);
+        if (!reliedOn.isEmpty()) {
+            atts.putValue(RELIED_ON_HEADER, String.join(",", reliedOn));
+        }
+
+        // Deployments computed with other repositories are no longer useful.
+        final String suffix = "-" + fingerprint + CACHE_ENTRY_SUFFIX;
+        final List<Path> entries = new ArrayList<>(64);
+        try (final DirectoryStream<Path> paths = Files.newDirectoryStream(cacheDir, "*" + CACHE_ENTRY_SUFFIX)) {
+            for (final Path entry : paths) {
+                if (entry.getFileName().toString().endsWith(suffix)) {
+                    entries.add(entry);
+                } else {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        }
+        // Make room for the new entry, deleting least recently used entries.
+        if (entries.size() >= MAX_CACHE_ENTRIES) {
+            entries.sort(Comparator.comparing(SubsystemDeployerImpl::getLastModified));
+            for (int i = 0; i <= entries.size() - MAX_CACHE_ENTRIES; ++i) {
+                Files.deleteIfExists(entries.get(i));
+            }
+        }
+
+        final Path tmp = Files.createTempFile(cacheDir, "deployment-", ".tmp");
+        try {
+            try (final OutputStream out = Files.newOutputStream(tmp)) {
+                man.write(out);
+            }
+            Files.move(tmp, cacheEntry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static FileTime getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Compute a fingerprint of available repositories.
+     * Repository services are identified by their properties (except
+     * properties assigned at registration, such as the service id),
+     * OBR repositories by their location and modification date.
+     */
+    private String getRepositoryFingerprint() {
+        final List<String> items = new ArrayList<>(8);
+        for (final ServiceReference<Repository> ref : repositories) {
+            if (ref.getProperty(StagingRepository.STAGING_PROPERTY) != null) {
+                continue;
+            }
+            final StringBuilder buf = new StringBuilder(128).append("repository");
+            for (final String key : new TreeSet<>(Arrays.asList(ref.getPropertyKeys()))) {
+                if (VOLATILE_PROPERTIES.contains(key)) {
+                    continue;
+                }
+                final Object value = ref.getProperty(key);
+                buf.append(';').append(key).append('=')
+                        .append(value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value));
+            }
+            items.add(buf.toString());
+        }
+        final RepositoryAdmin admin = repositoryAdmin;
+        if (admin != null) {
+            for (final org.apache.felix.bundlerepository.Repository repo : admin.listRepositories()) {
+                items.add("obr;" + repo.getURI() + ";" + repo.getLastModified() + ";" + getFileStamp(repo.getURI()));
+            }
+        }
+        Collections.sort(items);
+
+        final MessageDigest md = Checksums.newDigest();
+        for (final String item : items) {
+            md.update(item.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+        }
+        return Checksums.toHex(md.digest()).substring(0, 16);
+    }
+
+    /**
+     * Get size and modification date of a local repository index,
+     * which may be updated on disk before it is loaded again.
+     */
+    private static String getFileStamp(String uri) {
+        String fileUri = uri;
+        if (fileUri.startsWith("jar:")) {
+            final int i = fileUri.indexOf('!');
+            fileUri = fileUri.substring("jar:".length(), i == -1 ? fileUri.length() : i);
+        }
+        if (!fileUri.startsWith("file:")) {
+            return "";
+        }
+        try {
+            final Path file = Paths.get(URI.create(fileUri));
+            return Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException | IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.subsystem.SubsystemIndex;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemConstants;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * {@link SubsystemIndex} implementation, maintained from subsystem service events.
+ * <p>
+ * Every subsystem is registered as a service: this index is updated
+ * as soon as a subsystem is installed or uninstalled.
+ * Subsystems nested in scoped subsystems are registered in the region of
+ * their scoped parent, which is not visible from the root region:
+ * subsystem services are also tracked from the region of every scoped subsystem.
+ * A subsystem may be seen from several regions: it is indexed as long as
+ * one of these regions sees it.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = SubsystemIndex.class)
+public class SubsystemIndexImpl implements SubsystemIndex {
+    private final Map<Long, Subsystem> byId = new ConcurrentHashMap<>(64);
+    private final Map<String, Subsystem> byLocation = new ConcurrentHashMap<>(64);
+    private final Map<String, NavigableMap<Version, Subsystem>> bySymbolicName = new ConcurrentHashMap<>(64);
+    private final Map<Long, Integer> references = new HashMap<>(64);
+    private final Map<Long, ServiceTracker<Subsystem, Subsystem>> regionTrackers = new HashMap<>(8);
+    private boolean active = true;
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+            policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY,
+            updated = "updatedSubsystem")
+    void bindSubsystem(Subsystem subsystem) {
+        add(subsystem);
+    }
+
+    void updatedSubsystem(Subsystem subsystem) {
+        // A scoped subsystem region is only available once this subsystem is installed.
+        trackRegion(subsystem);
+    }
+
+    void unbindSubsystem(Subsystem subsystem) {
+        remove(subsystem);
+    }
+
+    @Deactivate
+    void deactivate() {
+        final List<ServiceTracker<Subsystem, Subsystem>> trackers;
+        synchronized (this) {
+            active = false;
+            trackers = new ArrayList<>(regionTrackers.values());
+            regionTrackers.clear();
+        }
+        for (final ServiceTracker<Subsystem, Subsystem> tracker : trackers) {
+            tracker.close();
+        }
+    }
+
+    private void add(Subsystem subsystem) {
+        synchronized (this) {
+            if (references.merge(subsystem.getSubsystemId(), 1, Integer::sum) == 1) {
+                byId.put(subsystem.getSubsystemId(), subsystem);
+                byLocation.put(subsystem.getLocation(), subsystem);
+                bySymbolicName.computeIfAbsent(subsystem.getSymbolicName(),
+                        k -> new ConcurrentSkipListMap<>(Collections.reverseOrder()))
+                        .put(subsystem.getVersion(), subsystem);
+            }
+        }
+        trackRegion(subsystem);
+    }
+
+    private void remove(Subsystem subsystem) {
+        final ServiceTracker<Subsystem, Subsystem> tracker;
+        synchronized (this) {
+            final long id = subsystem.getSubsystemId();
+            final Integer count = references.get(id);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                references.put(id, count - 1);
+                return;
+            }
+            references.remove(id);
+            tracker = regionTrackers.remove(id);
+
+            // Only remove entries if they were not replaced by another subsystem.
+            byId.remove(id, subsystem);
+            byLocation.remove(subsystem.getLocation(), subsystem);
+            final NavigableMap<Version, Subsystem> versions = bySymbolicName.get(subsystem.getSymbolicName());
+            if (versions != null) {
+                versions.remove(subsystem.getVersion(), subsystem);
+                if (versions.isEmpty()) {
+                    bySymbolicName.remove(subsystem.getSymbolicName());
+                }
+            }
+        }
+        if (tracker != null) {
+            // Nested subsystems are removed from this index as well.
+            tracker.close();
+        }
+    }
+
+    /**
+     * Track subsystem services from the region of a scoped subsystem.
+     * The root region is already tracked by the component runtime.
+     */
+    private void trackRegion(Subsystem subsystem) {
+        final long id = subsystem.getSubsystemId();
+        if (id == 0 || !isScoped(subsystem)) {
+            return;
+        }
+        final ServiceTracker<Subsystem, Subsystem> tracker;
+        synchronized (this) {
+            if (!active || !references.containsKey(id) || regionTrackers.containsKey(id)) {
+                return;
+            }
+            // Region context is not available while this subsystem is installing.
+            final BundleContext regionContext = subsystem.getBundleContext();
+            if (regionContext == null) {
+                return;
+            }
+            tracker = new ServiceTracker<>(regionContext, Subsystem.class, new RegionCustomizer(regionContext));
+            regionTrackers.put(id, tracker);
+        }
+        // Tracker callbacks update this index: this tracker is opened without holding any lock.
+        tracker.open();
+        synchronized (this) {
+            if (regionTrackers.get(id) == tracker) {
+                return;
+            }
+        }
+        // This subsystem was removed meanwhile.
+        tracker.close();
+    }
+
+    private static boolean isScoped(Subsystem subsystem) {
+        final String type = subsystem.getType();
+        return SubsystemConstants.SUBSYSTEM_TYPE_APPLICATION.equals(type)
+                || SubsystemConstants.SUBSYSTEM_TYPE_COMPOSITE.equals(type);
+    }
+
+    @Override
+    public Subsystem getById(long id) {
+        return byId.get(id);
+    }
+
+    @Override
+    public Subsystem getByLocation(String location) {
+        return location == null ? null : byLocation.get(location);
+    }
+
+    @Override
+    public Subsystem get(String symbolicName, Version version) {
+        if (symbolicName == null) {
+            return null;
+        }
+        final NavigableMap<Version, Subsystem> versions = bySymbolicName.get(symbolicName);
+        return versions == null ? null : versions.get(version == null ? Version.emptyVersion : version);
+    }
+
+    @Override
+    public List<Subsystem> getBySymbolicName(String symbolicName) {
+        if (symbolicName == null) {
+            return Collections.emptyList();
+        }
+        final NavigableMap<Version, Subsystem> versions = bySymbolicName.get(symbolicName);
+        return versions == null ? Collections.emptyList() : new ArrayList<>(versions.values());
+    }
+
+    /**
+     * Index subsystems registered in the region of a scoped subsystem.
+     */
+    private final class RegionCustomizer implements ServiceTrackerCustomizer<Subsystem, Subsystem> {
+        private final BundleContext regionContext;
+
+        RegionCustomizer(final BundleContext regionContext) {
+            this.regionContext = regionContext;
+        }
+
+        @Override
+        public Subsystem addingService(ServiceReference<Subsystem> reference) {
+            final Subsystem subsystem = regionContext.getService(reference);
+            if (subsystem != null) {
+                add(subsystem);
+            }
+            return subsystem;
+        }
+
+        @Override
+        public void modifiedService(ServiceReference<Subsystem> reference, Subsystem subsystem) {
+            trackRegion(subsystem);
+        }
+
+        @Override
+        public void removedService(ServiceReference<Subsystem> reference, Subsystem subsystem) {
+            remove(subsystem);
+            try {
+                regionContext.ungetService(reference);
+            } catch (IllegalStateException e) {
+                // Region context is no longer valid: this scoped subsystem was uninstalled.
+            }
+        }
+    }
+}
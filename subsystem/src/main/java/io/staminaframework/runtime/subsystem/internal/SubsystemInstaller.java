@@ -16,8 +16,18 @@
 
 package io.staminaframework.runtime.subsystem.internal;
 
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
+import io.staminaframework.runtime.subsystem.SubsystemIndex;
 import org.apache.felix.fileinstall.ArtifactInstaller;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Resource;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
@@ -29,84 +39,479 @@ import org.osgi.service.subsystem.SubsystemConstants;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.jar.Attributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * OSGi Subsystem installer.
+ * <p>
+ * Artifacts are not installed as soon as they are detected: artifacts
+ * showing up in the same poll window are installed as a batch.
+ * Subsystems from a batch are installed concurrently, bundles are resolved
+ * at once, and subsystems are started in dependency order.
+ * If a subsystem from a batch cannot be installed or started,
+ * every subsystem from this batch is uninstalled, and subsystems replaced
+ * by this batch are installed again from their previous archive.
+ * Artifacts from this batch are then installed one at a time,
+ * so that a faulty artifact does not hold back other artifacts.
+ * <p>
+ * FileInstall only notifies an artifact again when its file is modified:
+ * artifacts from a failed batch are retried by this installer, with an
+ * increasing delay, until the max number of retries is reached.
+ * <p>
+ * When an artifact is updated, only bundles whose content changed are updated
+ * if possible (see {@link SubsystemUpdater}): other subsystem constituents
+ * are left untouched.
  *
  * @author Stamina Framework developers
  */
 @Component(service = ArtifactInstaller.class, immediate = true)
 public class SubsystemInstaller implements ArtifactInstaller {
+    private static final long DEFAULT_BATCH_DELAY = 500;
+    private static final int DEFAULT_INSTALL_RETRIES = 5;
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
     @Reference
     private LogService logService;
     @Reference(target = "(" + SubsystemConstants.SUBSYSTEM_ID_PROPERTY + "=0)")
     private Subsystem root;
+    @Reference
+    private SubsystemIndex subsystemIndex;
+    @Reference
+    private SubsystemArchives subsystemArchives;
+    @Reference
+    private SubsystemDeployer subsystemDeployer;
+    @Reference
+    private ArtifactCache artifactCache;
     private BundleContext bundleContext;
+    // Guarded by installLock once this component is activated.
+    private SubsystemUpdater subsystemUpdater;
+    private final Map<File, Boolean> pendingArtifacts = new LinkedHashMap<>();
+    private final Map<File, Integer> failedAttempts = new HashMap<>();
+    // Batches and uninstallations are serialized using this lock.
+    private final Object installLock = new Object();
+    private ScheduledExecutorService batchExecutor;
+    private ExecutorService installExecutor;
+    private ScheduledFuture<?> batchTask;
+    private long batchDelay;
+    private int installRetries;
+    private boolean active;
 
     @Activate
     public void activate(BundleContext bundleContext) throws Exception {
         this.bundleContext = bundleContext;
+        subsystemUpdater = new SubsystemUpdater(bundleContext, artifactCache);
+        batchDelay = FrameworkProperties.getLong(bundleContext, "stamina.subsystem.batch.delay", DEFAULT_BATCH_DELAY);
+        installRetries = (int) FrameworkProperties.getLong(bundleContext, "stamina.subsystem.install.retries", DEFAULT_INSTALL_RETRIES);
+        final int installThreads = (int) FrameworkProperties.getLong(bundleContext, "stamina.subsystem.install.threads",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+        batchExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "Stamina Subsystem Batch Thread");
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicInteger threadCount = new AtomicInteger();
+        installExecutor = Executors.newFixedThreadPool(Math.max(1, installThreads), r -> {
+            final Thread t = new Thread(r, "Stamina Subsystem Installer Thread #" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        synchronized (this) {
+            active = true;
+        }
     }
 
     @Deactivate
-    public void deactivate() {
-        bundleContext = null;
+    public void deactivate() throws InterruptedException {
+        synchronized (this) {
+            // Pending artifacts are dropped: FileInstall notifies
+            // these artifacts again when an installer is registered.
+            active = false;
+            pendingArtifacts.clear();
+            failedAttempts.clear();
+            if (batchTask != null) {
+                batchTask.cancel(false);
+                batchTask = null;
+            }
+        }
+        // Wait for the batch being installed, if any.
+        batchExecutor.shutdown();
+        if (!batchExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+            logService.log(LogService.LOG_WARNING, "Timeout while waiting for subsystem installation");
+            // The batch being installed is interrupted: it may still use this component state.
+            batchExecutor.shutdownNow();
+            installExecutor.shutdownNow();
+            return;
+        }
+        installExecutor.shutdown();
+        synchronized (installLock) {
+            subsystemUpdater = null;
+            bundleContext = null;
+        }
     }
 
     @Override
     public void install(File artifact) throws Exception {
-        final Manifest man = getManifest(artifact);
-        final String sid = getSubsystemId(man);
+        schedule(artifact, false);
+    }
+
+    @Override
+    public void update(File artifact) throws Exception {
+        schedule(artifact, true);
+    }
 
-        final String spath = artifact.getCanonicalFile().toURI().toURL().toExternalForm();
-        final boolean alreadyInstalled = lookupSubsystem(root, spath) != null;
-        if (alreadyInstalled) {
-            logService.log(LogService.LOG_DEBUG, "Subsystem " + sid + " is already installed");
+    private synchronized void schedule(File artifact, boolean update) {
+        if (!active) {
             return;
         }
+        pendingArtifacts.merge(artifact, update, Boolean::logicalOr);
+        failedAttempts.remove(artifact);
+        // Wait for other artifacts from the same poll window.
+        if (batchTask != null) {
+            batchTask.cancel(false);
+        }
+        batchTask = batchExecutor.schedule(this::installPendingArtifacts, batchDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void installPendingArtifacts() {
+        final Map<File, Boolean> artifacts;
+        synchronized (this) {
+            artifacts = new LinkedHashMap<>(pendingArtifacts);
+            pendingArtifacts.clear();
+            batchTask = null;
+        }
+        if (artifacts.isEmpty()) {
+            return;
+        }
+        synchronized (installLock) {
+            if (subsystemUpdater == null) {
+                // This component was deactivated.
+                return;
+            }
+            final Set<File> failed = new LinkedHashSet<>(artifacts.size());
+            try {
+                installBatch(artifacts, failed);
+            } catch (Exception e) {
+                logService.log(LogService.LOG_ERROR, "Failed to install subsystems", e);
+                failed.addAll(artifacts.keySet());
+            }
+            if (failed.size() > 1) {
+                installOneByOne(artifacts, failed);
+            }
+            retry(artifacts, failed);
+        }
+    }
 
-        logService.log(LogService.LOG_INFO, "Installing subsystem: " + sid);
-        final Subsystem sub = root.install(spath);
-        logService.log(LogService.LOG_INFO, "Starting subsystem: " + sid);
-        sub.start();
+    /**
+     * Install artifacts from a failed batch one at a time.
+     * Artifacts are installed again while some of them succeed:
+     * an artifact may depend on another artifact from the same batch.
+     */
+    private void installOneByOne(Map<File, Boolean> artifacts, Set<File> failed) {
+        logService.log(LogService.LOG_INFO, "Installing " + failed.size() + " subsystem(s) one at a time");
+        boolean progress = true;
+        while (progress && !failed.isEmpty()) {
+            progress = false;
+            for (final File artifact : new ArrayList<>(failed)) {
+                final Set<File> failedArtifact = new HashSet<>(1);
+                try {
+                    installBatch(Collections.singletonMap(artifact, artifacts.get(artifact)), failedArtifact);
+                } catch (Exception e) {
+                    logService.log(LogService.LOG_ERROR, "Failed to install subsystem: " + artifact, e);
+                    failedArtifact.add(artifact);
+                }
+                if (failedArtifact.isEmpty()) {
+                    failed.remove(artifact);
+                    progress = true;
+                }
+            }
+        }
     }
 
-    private Subsystem lookupSubsystem(Subsystem parent, String url) {
-        if (parent.getLocation().equals(url)) {
-            return parent;
+    /**
+     * Schedule failed artifacts for a new installation attempt.
+     */
+    private synchronized void retry(Map<File, Boolean> artifacts, Set<File> failed) {
+        for (final File artifact : artifacts.keySet()) {
+            if (!failed.contains(artifact)) {
+                failedAttempts.remove(artifact);
+            }
         }
-        for (final Subsystem child : parent.getChildren()) {
-            if (lookupSubsystem(child, url) != null) {
-                return child;
+        if (!active || failed.isEmpty()) {
+            return;
+        }
+        long delay = 0;
+        for (final File artifact : failed) {
+            final int attempts = failedAttempts.merge(artifact, 1, Integer::sum);
+            if (attempts > installRetries) {
+                failedAttempts.remove(artifact);
+                logService.log(LogService.LOG_ERROR, "Giving up installing subsystem after "
+                        + installRetries + " retries: " + artifact);
+                continue;
             }
+            pendingArtifacts.merge(artifact, artifacts.get(artifact), Boolean::logicalOr);
+            delay = Math.max(delay, Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(attempts - 1, 16)));
+        }
+        if (!pendingArtifacts.isEmpty() && batchTask == null) {
+            logService.log(LogService.LOG_INFO, "Retrying subsystem installation in " + delay + " ms");
+            batchTask = batchExecutor.schedule(this::installPendingArtifacts, delay, TimeUnit.MILLISECONDS);
         }
-        return null;
     }
 
-    @Override
-    public void update(File artifact) throws Exception {
-        final Manifest man = getManifest(artifact);
-        final String sid = getSubsystemId(man);
-        logService.log(LogService.LOG_INFO, "Updating subsystem: " + sid);
-        uninstall(artifact);
-        install(artifact);
-        logService.log(LogService.LOG_INFO, "Subsystem updated: " + sid);
+    private void installBatch(Map<File, Boolean> artifacts, Set<File> failedArtifacts) throws Exception {
+        final List<BatchEntry> batch = new ArrayList<>(artifacts.size());
+        for (final Map.Entry<File, Boolean> e : artifacts.entrySet()) {
+            final File artifact = e.getKey();
+            final String sid;
+            try {
+                sid = getSubsystemId(subsystemArchives.getManifest(artifact));
+            } catch (IOException ex) {
+                logService.log(LogService.LOG_WARNING, "Failed to open file as a subsystem: " + artifact, ex);
+                failedArtifacts.add(artifact);
+                continue;
+            }
+            final String spath = artifact.getCanonicalFile().toURI().toURL().toExternalForm();
+            final Subsystem existing = subsystemIndex.getByLocation(spath);
+            if (existing != null) {
+                if (!e.getValue()) {
+                    logService.log(LogService.LOG_DEBUG, "Subsystem " + sid + " is already installed");
+                    continue;
+                }
+                logService.log(LogService.LOG_INFO, "Updating subsystem: " + sid);
+                if (updateInPlace(existing, artifact, sid)) {
+                    continue;
+                }
+                // Subsystem locations are unique: previous subsystem is installed again on rollback.
+                final BatchEntry entry = new BatchEntry(artifact, spath, sid);
+                entry.replacedSid = getSubsystemId(existing);
+                entry.replacedActive = existing.getState() == Subsystem.State.ACTIVE
+                        || existing.getState() == Subsystem.State.STARTING;
+                batch.add(entry);
+                existing.uninstall();
+                continue;
+            }
+            batch.add(new BatchEntry(artifact, spath, sid));
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Subsystems are installed concurrently:
+        // the subsystem implementation serializes installations when required.
+        final List<Future<Subsystem>> futures = new ArrayList<>(batch.size());
+        for (final BatchEntry entry : batch) {
+            logService.log(LogService.LOG_INFO, "Installing subsystem: " + entry.sid);
+            futures.add(installExecutor.submit(() -> subsystemDeployer.install(root, entry.location, null)));
+        }
+        final List<BatchEntry> installed = new ArrayList<>(batch.size());
+        boolean failed = false;
+        for (int i = 0; i < batch.size(); ++i) {
+            final BatchEntry entry = batch.get(i);
+            try {
+                entry.subsystem = futures.get(i).get();
+                installed.add(entry);
+            } catch (ExecutionException e) {
+                logService.log(LogService.LOG_ERROR, "Failed to install subsystem: " + entry.sid, e.getCause());
+                failed = true;
+            }
+        }
+        if (failed) {
+            rollback(batch, installed, Collections.emptyList());
+            addArtifacts(batch, failedArtifacts);
+            return;
+        }
+
+        // Resolve bundles from all subsystems at once.
+        final Map<Bundle, BatchEntry> bundleOwners = new HashMap<>(batch.size() * 8);
+        for (final BatchEntry entry : batch) {
+            for (final Resource res : entry.subsystem.getConstituents()) {
+                if (res instanceof BundleRevision) {
+                    bundleOwners.put(((BundleRevision) res).getBundle(), entry);
+                }
+            }
+        }
+        final Bundle sysBundle = bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
+        if (!sysBundle.adapt(FrameworkWiring.class).resolveBundles(bundleOwners.keySet())) {
+            // Resolution errors are reported when subsystems are started.
+            for (final Map.Entry<Bundle, BatchEntry> e : bundleOwners.entrySet()) {
+                if (e.getKey().getState() == Bundle.INSTALLED) {
+                    logService.log(LogService.LOG_WARNING, "Failed to resolve bundle "
+                            + e.getKey().getSymbolicName() + " from subsystem: " + e.getValue().sid);
+                }
+            }
+        }
+
+        final List<BatchEntry> started = new ArrayList<>(batch.size());
+        for (final BatchEntry entry : sortByDependencies(batch, bundleOwners)) {
+            logService.log(LogService.LOG_INFO, "Starting subsystem: " + entry.sid);
+            try {
+                entry.subsystem.start();
+                started.add(entry);
+            } catch (Exception e) {
+                logService.log(LogService.LOG_ERROR, "Failed to start subsystem: " + entry.sid, e);
+                rollback(batch, installed, started);
+                addArtifacts(batch, failedArtifacts);
+                return;
+            }
+        }
+        for (final BatchEntry entry : batch) {
+            try {
+                subsystemUpdater.record(entry.subsystem, entry.artifact);
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to record subsystem content: " + entry.sid, e);
+            }
+        }
+    }
+
+    private static void addArtifacts(List<BatchEntry> batch, Set<File> artifacts) {
+        for (final BatchEntry entry : batch) {
+            artifacts.add(entry.artifact);
+        }
+    }
+
+    /**
+     * Update a subsystem by replacing changed bundles only.
+     *
+     * @return <code>false</code> if this subsystem must be installed again
+     */
+    private boolean updateInPlace(Subsystem existing, File artifact, String sid) {
+        final int updatedBundles;
+        try {
+            updatedBundles = subsystemUpdater.update(existing, artifact);
+        } catch (Exception e) {
+            logService.log(LogService.LOG_WARNING, "Failed to update subsystem in place: " + sid, e);
+            return false;
+        }
+        if (updatedBundles == -1) {
+            logService.log(LogService.LOG_DEBUG, "Subsystem structure changed: " + sid);
+            return false;
+        }
+        logService.log(LogService.LOG_INFO, "Subsystem updated: " + sid + " (" + updatedBundles + " bundle(s) updated)");
+        return true;
+    }
+
+    /**
+     * Sort subsystems from a batch: a subsystem comes after subsystems
+     * providing capabilities its bundles are wired to.
+     */
+    private List<BatchEntry> sortByDependencies(List<BatchEntry> batch, Map<Bundle, BatchEntry> bundleOwners) {
+        final Map<BatchEntry, Set<BatchEntry>> dependencies = new LinkedHashMap<>(batch.size());
+        for (final BatchEntry entry : batch) {
+            dependencies.put(entry, new HashSet<>(4));
+        }
+        for (final Map.Entry<Bundle, BatchEntry> e : bundleOwners.entrySet()) {
+            final BundleWiring wiring = e.getKey().adapt(BundleWiring.class);
+            if (wiring == null) {
+                continue;
+            }
+            for (final BundleWire wire : wiring.getRequiredWires(null)) {
+                final BatchEntry provider = bundleOwners.get(wire.getProvider().getBundle());
+                if (provider != null && provider != e.getValue()) {
+                    dependencies.get(e.getValue()).add(provider);
+                }
+            }
+        }
+
+        final Set<BatchEntry> sorted = new LinkedHashSet<>(batch.size());
+        while (sorted.size() != batch.size()) {
+            boolean progress = false;
+            for (final Map.Entry<BatchEntry, Set<BatchEntry>> e : dependencies.entrySet()) {
+                if (!sorted.contains(e.getKey()) && sorted.containsAll(e.getValue())) {
+                    sorted.add(e.getKey());
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                // Dependency cycle: remaining subsystems are started in batch order.
+                sorted.addAll(dependencies.keySet());
+            }
+        }
+        return new ArrayList<>(sorted);
+    }
+
+    private void rollback(List<BatchEntry> batch, List<BatchEntry> installed, List<BatchEntry> started) {
+        logService.log(LogService.LOG_WARNING, "Rolling back subsystem installation");
+        for (int i = started.size() - 1; i >= 0; --i) {
+            final BatchEntry entry = started.get(i);
+            try {
+                entry.subsystem.stop();
+            } catch (Exception e) {
+                logService.log(LogService.LOG_WARNING, "Failed to stop subsystem: " + entry.sid, e);
+            }
+        }
+        for (int i = installed.size() - 1; i >= 0; --i) {
+            final BatchEntry entry = installed.get(i);
+            try {
+                entry.subsystem.uninstall();
+                logService.log(LogService.LOG_INFO, "Subsystem uninstalled: " + entry.sid);
+            } catch (Exception e) {
+                logService.log(LogService.LOG_WARNING, "Failed to uninstall subsystem: " + entry.sid, e);
+            }
+        }
+        for (final BatchEntry entry : batch) {
+            if (entry.replacedSid != null) {
+                restore(entry);
+            }
+        }
+    }
+
+    /**
+     * Install again a subsystem replaced by a batch entry, using its recorded archive.
+     */
+    private void restore(BatchEntry entry) {
+        try (final InputStream in = subsystemUpdater.openRecordedArchive(entry.location)) {
+            if (in == null) {
+                logService.log(LogService.LOG_WARNING, "Cannot restore subsystem "
+                        + entry.replacedSid + ": previous archive is no longer available");
+                return;
+            }
+            final Subsystem previous = subsystemDeployer.install(root, entry.location, in);
+            if (entry.replacedActive) {
+                previous.start();
+            }
+            logService.log(LogService.LOG_INFO, "Subsystem restored: " + entry.replacedSid);
+        } catch (Exception e) {
+            logService.log(LogService.LOG_WARNING, "Failed to restore subsystem: " + entry.replacedSid, e);
+        }
     }
 
     @Override
     public void uninstall(File artifact) throws Exception {
-        final String spath = artifact.getCanonicalFile().toURI().toURL().toExternalForm();
-        // Subsystem is already installed: we need to uninstall it first.
-        final Subsystem subsystem = lookupSubsystem(root, spath);
-        if (subsystem != null) {
-            final String sid = getSubsystemId(subsystem);
-            logService.log(LogService.LOG_INFO, "Uninstalling subsystem: " + sid);
-            subsystem.uninstall();
-            logService.log(LogService.LOG_INFO, "Subsystem uninstalled: " + sid);
+        // Wait for the batch being installed: it may include this artifact.
+        synchronized (installLock) {
+            synchronized (this) {
+                pendingArtifacts.remove(artifact);
+                failedAttempts.remove(artifact);
+            }
+            subsystemArchives.invalidate(artifact);
+            final String spath = artifact.getCanonicalFile().toURI().toURL().toExternalForm();
+            // Subsystem is already installed: we need to uninstall it first.
+            final Subsystem subsystem = subsystemIndex.getByLocation(spath);
+            if (subsystem != null) {
+                final String sid = getSubsystemId(subsystem);
+                logService.log(LogService.LOG_INFO, "Uninstalling subsystem: " + sid);
+                subsystem.uninstall();
+                logService.log(LogService.LOG_INFO, "Subsystem uninstalled: " + sid);
+            }
+            if (subsystemUpdater != null) {
+                subsystemUpdater.forget(spath);
+            }
         }
     }
 
@@ -116,11 +521,8 @@ public class SubsystemInstaller implements ArtifactInstaller {
             return false;
         }
         try {
-            final Manifest man = getManifest(artifact);
-            final String ssn = man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
-            if (ssn == null) {
-                throw new IOException("Missing symbolic name in subsystem manifest");
-            }
+            // FileInstall calls this method on every poll: subsystem manifest is cached.
+            subsystemArchives.getManifest(artifact);
         } catch (IOException e) {
             logService.log(LogService.LOG_WARNING, "Failed to open file as a subsystem: " + artifact, e);
             return false;
@@ -128,25 +530,6 @@ public class SubsystemInstaller implements ArtifactInstaller {
         return true;
     }
 
-    private Manifest getManifest(File artifact) throws IOException {
-        final Manifest man = new Manifest();
-        try (final ZipFile zip = new ZipFile(artifact)) {
-            final ZipEntry manEntry = zip.getEntry("OSGI-INF/SUBSYSTEM.MF");
-            if (manEntry == null) {
-                throw new IOException("Missing subsystem manifest");
-            }
-            try (final InputStream manIn = zip.getInputStream(manEntry)) {
-                man.read(manIn);
-            }
-            final Attributes atts = man.getMainAttributes();
-            final String ssn = atts.getValue(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
-            if (ssn == null) {
-                throw new IOException("Missing symbolic name in subsystem manifest");
-            }
-        }
-        return man;
-    }
-
     private String getSubsystemId(Manifest man) {
         final String ssn = man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
         String svn = man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_VERSION);
@@ -161,4 +544,23 @@ public class SubsystemInstaller implements ArtifactInstaller {
         final String svn = sub.getVersion().toString();
         return ssn + "/" + svn;
     }
+
+    /**
+     * Subsystem being installed as part of a batch.
+     */
+    private static final class BatchEntry {
+        final File artifact;
+        final String location;
+        final String sid;
+        Subsystem subsystem;
+        // Set if this entry replaces an installed subsystem.
+        String replacedSid;
+        boolean replacedActive;
+
+        BatchEntry(final File artifact, final String location, final String sid) {
+            this.artifact = artifact;
+            this.location = location;
+            this.sid = sid;
+        }
+    }
 }
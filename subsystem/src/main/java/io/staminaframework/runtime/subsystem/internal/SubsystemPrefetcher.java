@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.repository.ContentNamespace;
+import org.osgi.service.repository.Repository;
+import org.osgi.service.repository.RepositoryContent;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Download subsystem resources before a subsystem is installed.
+ * <p>
+ * Resources to download are read from a deployment manifest when a deployment
+ * is known: this includes subsystem content and resources to provision.
+ * Otherwise, resources are read from the content of a subsystem archive,
+ * selecting the highest version available from repositories.
+ * Resources are downloaded concurrently to a staging directory,
+ * and their content is checked against the hash published by repositories.
+ * Resources without any hash are checked against their identity.
+ * Resources are also stored in the {@link ArtifactCache}: resources which
+ * are already cached are not downloaded again.
+ *
+ * @author Stamina Framework developers
+ */
+class SubsystemPrefetcher {
+    private static final String SUBSYSTEM_MANIFEST = "OSGI-INF/SUBSYSTEM.MF";
+    private final ExecutorService executor;
+    private final ArtifactCache artifactCache;
+
+    public SubsystemPrefetcher(final ExecutorService executor, final ArtifactCache artifactCache) {
+        this.executor = executor;
+        this.artifactCache = artifactCache;
+    }
+
+    /**
+     * Download resources from a deployment.
+     * Resources which are not available from repositories (such as resources
+     * embedded in subsystem archives) are skipped.
+     *
+     * @param deployment   deployment manifest
+     * @param repositories repositories providing resources
+     * @param stagingDir   directory where resources are downloaded
+     * @return repository serving downloaded resources
+     * @throws IOException          if a resource could not be downloaded or verified
+     * @throws InterruptedException if this thread was interrupted while waiting for downloads
+     */
+    public StagingRepository prefetch(Manifest deployment, Collection<Repository> repositories, Path stagingDir)
+            throws IOException, InterruptedException {
+        final List<Requirement> reqs = new ArrayList<>(16);
+        addRequirements(deployment.getMainAttributes().getValue(SubsystemConstants.DEPLOYED_CONTENT), reqs);
+        addRequirements(deployment.getMainAttributes().getValue(SubsystemConstants.PROVISION_RESOURCE), reqs);
+        return download(findResources(reqs, repositories), stagingDir);
+    }
+
+    /**
+     * Download resources from subsystem content, before a deployment is computed.
+     * Resources to provision are only known once the subsystem is resolved:
+     * these resources are not downloaded. Resources embedded in the subsystem
+     * archive are skipped.
+     *
+     * @param archive      subsystem archive content
+     * @param repositories repositories providing resources
+     * @param stagingDir   directory where resources are downloaded
+     * @return repository serving downloaded resources
+     * @throws IOException          if a resource could not be downloaded or verified
+     * @throws InterruptedException if this thread was interrupted while waiting for downloads
+     */
+    public StagingRepository prefetchContent(InputStream archive, Collection<Repository> repositories,
+                                             Path stagingDir) throws IOException, InterruptedException {
+        Manifest man = null;
+        final Set<String> embeddedBundles = new HashSet<>(8);
+        final ZipInputStream in = new ZipInputStream(archive);
+        for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+            if (SUBSYSTEM_MANIFEST.equals(entry.getName())) {
+                man = new Manifest(in);
+            } else if (entry.getName().endsWith(".jar")) {
+                // Embedded bundles are preferred to bundles from repositories.
+                final Manifest bundleMan = new JarInputStream(in).getManifest();
+                final String bsn = bundleMan == null ? null
+                        : bundleMan.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
+                if (bsn != null) {
+                    embeddedBundles.add(Parser.parseHeader(bsn)[0].getName());
+                }
+            }
+        }
+        final String content = man == null ? null
+                : man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_CONTENT);
+        if (content == null) {
+            return new StagingRepository();
+        }
+
+        final List<Requirement> reqs = new ArrayList<>(16);
+        for (final Clause c : Parser.parseHeader(content)) {
+            if (embeddedBundles.contains(c.getName())) {
+                continue;
+            }
+            final String version = c.getAttribute(Constants.VERSION_ATTRIBUTE);
+            final String type = c.getAttribute(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE);
+            reqs.add(new IdentityRequirement(c.getName(),
+                    version == null ? new VersionRange(Version.emptyVersion.toString()) : new VersionRange(version),
+                    type == null ? IdentityNamespace.TYPE_BUNDLE : type));
+        }
+        return download(findResources(reqs, repositories), stagingDir);
+    }
+
+    private static void addRequirements(String header, List<Requirement> reqs) {
+        if (header == null) {
+            return;
+        }
+        for (final Clause c : Parser.parseHeader(header)) {
+            final String version = c.getAttribute(SubsystemConstants.DEPLOYED_VERSION_ATTRIBUTE);
+            final String type = c.getAttribute(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE);
+            reqs.add(new IdentityRequirement(c.getName(), Version.parseVersion(version),
+                    type == null ? IdentityNamespace.TYPE_BUNDLE : type));
+        }
+    }
+
+    /**
+     * Find resources providing content, selecting the highest version for each requirement.
+     */
+    private static Collection<Resource> findResources(List<Requirement> reqs, Collection<Repository> repositories) {
+        // Query each repository once for all resources.
+        final Map<Requirement, Resource> resources = new LinkedHashMap<>(reqs.size());
+        for (final Repository repo : repositories) {
+            final Map<Requirement, Collection<Capability>> providers = repo.findProviders(reqs);
+            for (final Requirement req : reqs) {
+                final Collection<Capability> caps = providers.get(req);
+                if (caps == null) {
+                    continue;
+                }
+                for (final Capability cap : caps) {
+                    if (!(cap.getResource() instanceof RepositoryContent)) {
+                        continue;
+                    }
+                    final Resource current = resources.get(req);
+                    if (current == null || getVersion(cap.getResource()).compareTo(getVersion(current)) > 0) {
+                        resources.put(req, cap.getResource());
+                    }
+                }
+            }
+        }
+        return new LinkedHashSet<>(resources.values());
+    }
+
+    private StagingRepository download(Collection<Resource> resources, Path stagingDir)
+            throws IOException, InterruptedException {
+        final List<Future<Path>> downloads = new ArrayList<>(resources.size());
+        final List<Resource> downloadedResources = new ArrayList<>(resources.size());
+        int resourceIndex = 0;
+        for (final Resource res : resources) {
+            final Path file = stagingDir.resolve("resource-" + (resourceIndex++) + ".jar");
+            downloads.add(executor.submit(() -> download(res, file)));
+            downloadedResources.add(res);
+        }
+        final StagingRepository staging = new StagingRepository();
+        try {
+            for (int i = 0; i < downloads.size(); ++i) {
+                final Path file = downloads.get(i).get();
+                if (file != null) {
+                    staging.add(downloadedResources.get(i), file);
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Failed to download subsystem resource", cause);
+        } finally {
+            for (final Future<Path> download : downloads) {
+                download.cancel(true);
+            }
+        }
+        return staging;
+    }
+
+    /**
+     * Download a resource.
+     *
+     * @return downloaded file, <code>null</code> if this resource cannot be verified
+     */
+    private Path download(Resource res, Path file) throws IOException {
+        String expectedHash = null;
+        Long expectedSize = null;
+        for (final Capability cap : res.getCapabilities(ContentNamespace.CONTENT_NAMESPACE)) {
+            final Object hash = cap.getAttributes().get(ContentNamespace.CONTENT_NAMESPACE);
+            if (hash != null) {
+                expectedHash = hash.toString();
+                final Object size = cap.getAttributes().get(ContentNamespace.CAPABILITY_SIZE_ATTRIBUTE);
+                expectedSize = size instanceof Long ? (Long) size : null;
+                break;
+            }
+        }
+        if (expectedHash == null && getIdentityHeaders(res) == null) {
+            // This resource is read from its repository while the subsystem is installed.
+            return null;
+        }
+
+        String hash = expectedHash;
+        InputStream cached = hash == null ? null : artifactCache.open(hash);
+        if (cached == null) {
+            // Artifact content is checked by the cache when a hash is expected.
+            try (final InputStream in = ((RepositoryContent) res).getContent()) {
+                hash = artifactCache.put(null, in, expectedHash).getFileName().toString();
+            } catch (IOException e) {
+                throw new IOException("Failed to download resource " + getIdentity(res) + ": " + e.getMessage(), e);
+            }
+            cached = artifactCache.open(hash);
+            if (cached == null) {
+                throw new IOException("Resource " + getIdentity(res) + " was evicted from artifact cache");
+            }
+        }
+
+        // Staged files must not be evicted while the subsystem is installed.
+        // This artifact is pinned in the cache while its stream is open.
+        try (final InputStream in = cached) {
+            final Path cachedFile = artifactCache.get(hash);
+            if (cachedFile == null || !createLink(file, cachedFile)) {
+                Files.copy(in, file);
+            }
+        }
+        final long size = Files.size(file);
+        if (expectedSize != null && expectedSize != size) {
+            throw new IOException("Size mismatch for resource " + getIdentity(res) + ": expected "
+                    + expectedSize + " bytes, got " + size + " bytes");
+        }
+        if (expectedHash == null) {
+            verifyIdentity(res, file);
+        }
+        return file;
+    }
+
+    /**
+     * Check that a downloaded resource has the identity published by its repository.
+     */
+    private static void verifyIdentity(Resource res, Path file) throws IOException {
+        final String[] headers = getIdentityHeaders(res);
+        final Manifest man;
+        try (final JarFile jar = new JarFile(file.toFile())) {
+            if (SUBSYSTEM_MANIFEST.equals(headers[0])) {
+                final ZipEntry entry = jar.getEntry(SUBSYSTEM_MANIFEST);
+                if (entry == null) {
+                    man = null;
+                } else {
+                    try (final InputStream in = jar.getInputStream(entry)) {
+                        man = new Manifest(in);
+                    }
+                }
+            } else {
+                man = jar.getManifest();
+            }
+        } catch (IOException e) {
+            throw new IOException("Invalid content for resource " + getIdentity(res) + ": " + e.getMessage(), e);
+        }
+        final String symbolicName = man == null ? null : man.getMainAttributes().getValue(headers[1]);
+        final String version = man == null ? null : man.getMainAttributes().getValue(headers[2]);
+        final String identity = symbolicName == null ? null
+                : Parser.parseHeader(symbolicName)[0].getName() + "/" + Version.parseVersion(version);
+        if (!getIdentity(res).equals(identity)) {
+            throw new IOException("Identity mismatch for resource " + getIdentity(res) + ": got " + identity);
+        }
+    }
+
+    /**
+     * Get manifest entry and headers holding the identity of a resource.
+     *
+     * @return manifest entry, symbolic name and version headers,
+     * <code>null</code> if this resource type is not supported
+     */
+    private static String[] getIdentityHeaders(Resource res) {
+        final List<Capability> caps = res.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE);
+        if (caps.isEmpty()) {
+            return null;
+        }
+        final Object type = caps.get(0).getAttributes().get(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE);
+        if (type == null || IdentityNamespace.TYPE_BUNDLE.equals(type) || IdentityNamespace.TYPE_FRAGMENT.equals(type)) {
+            return new String[]{JarFile.MANIFEST_NAME, Constants.BUNDLE_SYMBOLICNAME, Constants.BUNDLE_VERSION};
+        }
+        if (type.toString().startsWith("osgi.subsystem.")) {
+            return new String[]{SUBSYSTEM_MANIFEST,
+                    SubsystemConstants.SUBSYSTEM_SYMBOLICNAME, SubsystemConstants.SUBSYSTEM_VERSION};
+        }
+        return null;
+    }
+
+    private static boolean createLink(Path link, Path target) {
+        try {
+            Files.createLink(link, target);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static Version getVersion(Resource res) {
+        final List<Capability> caps = res.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE);
+        final Object version = caps.isEmpty() ? null
+                : caps.get(0).getAttributes().get(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE);
+        return version instanceof Version ? (Version) version
+                : Version.parseVersion(version == null ? null : version.toString());
+    }
+
+    private static String getIdentity(Resource res) {
+        final List<Capability> caps = res.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE);
+        if (caps.isEmpty()) {
+            return res.toString();
+        }
+        final Map<String, Object> atts = caps.get(0).getAttributes();
+        return atts.get(IdentityNamespace.IDENTITY_NAMESPACE) + "/" + getVersion(res);
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import io.staminaframework.runtime.artifactcache.Checksums;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Resource;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Update installed subsystems in place.
+ * <p>
+ * When a subsystem is installed from an archive, a record of this archive
+ * content is kept: a hash of the subsystem manifest, and a hash of every
+ * embedded bundle, identified by its symbolic name and version, along with
+ * a hash of its requirement headers.
+ * When this archive is updated, only bundles whose content changed are updated,
+ * and a refresh is only done for these bundles.
+ * <p>
+ * This is only possible if the subsystem manifest and the set of embedded bundles
+ * are unchanged, if changed bundles are not shared with other subsystems,
+ * and if changed bundles keep the same requirements: otherwise,
+ * the subsystem must be installed again, since its deployment may change.
+ * <p>
+ * A copy of the recorded archive is also kept in the artifact cache:
+ * a subsystem replaced by a failed installation may be installed again
+ * from this copy, as long as it was not evicted.
+ *
+ * @author Stamina Framework developers
+ */
+class SubsystemUpdater {
+    private static final String MANIFEST_KEY = "subsystem.manifest";
+    private static final String ARCHIVE_KEY = "subsystem.archive";
+    private static final String BUNDLE_KEY_PREFIX = "bundle.";
+    private static final String REQUIREMENTS_KEY_PREFIX = "requirements.";
+    /**
+     * Bundle manifest headers declaring requirements, which are used to compute subsystem deployment.
+     */
+    private static final String[] REQUIREMENT_HEADERS = {
+            Constants.IMPORT_PACKAGE, Constants.DYNAMICIMPORT_PACKAGE, Constants.REQUIRE_BUNDLE,
+            Constants.REQUIRE_CAPABILITY, Constants.FRAGMENT_HOST,
+    };
+    private static final long REFRESH_TIMEOUT = 60;
+    private final BundleContext bundleContext;
+    private final ArtifactCache artifactCache;
+    private final Path recordDir;
+
+    public SubsystemUpdater(final BundleContext bundleContext, final ArtifactCache artifactCache) {
+        this.bundleContext = bundleContext;
+        this.artifactCache = artifactCache;
+        this.recordDir = bundleContext.getDataFile("updates").toPath();
+    }
+
+    /**
+     * Record archive content for an installed subsystem.
+     *
+     * @param subsystem installed subsystem
+     * @param artifact  subsystem archive
+     * @throws IOException if archive could not be read
+     */
+    public void record(Subsystem subsystem, File artifact) throws IOException {
+        final Properties record = new Properties();
+        try (final InputStream in = Files.newInputStream(artifact.toPath())) {
+            // Cached artifacts are named after their content hash.
+            record.setProperty(ARCHIVE_KEY, artifactCache.put(null, in, null).getFileName().toString());
+        }
+        final ArchiveContent content = scan(artifact);
+        if (!content.unsupported) {
+            // Without a manifest hash, this subsystem is never updated in place.
+            record.setProperty(MANIFEST_KEY, content.manifestHash);
+            for (final Map.Entry<String, EmbeddedBundle> e : content.bundles.entrySet()) {
+                record.setProperty(BUNDLE_KEY_PREFIX + e.getKey(), e.getValue().hash);
+                record.setProperty(REQUIREMENTS_KEY_PREFIX + e.getKey(), e.getValue().requirementsHash);
+            }
+        }
+        Files.createDirectories(recordDir);
+        try (final OutputStream out = Files.newOutputStream(getRecordFile(subsystem.getLocation()))) {
+            record.store(out, null);
+        }
+    }
+
+    /**
+     * Forget archive content for a subsystem.
+     *
+     * @param location subsystem location
+     * @throws IOException if record could not be deleted
+     */
+    public void forget(String location) throws IOException {
+        Files.deleteIfExists(getRecordFile(location));
+    }
+
+    /**
+     * Open the archive a subsystem was last recorded from.
+     *
+     * @param location subsystem location
+     * @return archive content, <code>null</code> if this archive is no longer available
+     * @throws IOException if archive could not be opened
+     */
+    public InputStream openRecordedArchive(String location) throws IOException {
+        final Properties record = loadRecord(location);
+        final String archiveHash = record == null ? null : record.getProperty(ARCHIVE_KEY);
+        return archiveHash == null ? null : artifactCache.open(archiveHash);
+    }
+
+    /**
+     * Try to update a subsystem in place.
+     *
+     * @param subsystem installed subsystem
+     * @param artifact  updated subsystem archive
+     * @return number of updated bundles, or <code>-1</code> if this subsystem must be installed again
+     * @throws Exception if subsystem update failed
+     */
+    public int update(Subsystem subsystem, File artifact) throws Exception {
+        final Properties record = loadRecord(subsystem.getLocation());
+        if (record == null) {
+            return -1;
+        }
+
+        final ArchiveContent content = scan(artifact);
+        if (content.unsupported || !content.manifestHash.equals(record.getProperty(MANIFEST_KEY))) {
+            return -1;
+        }
+        int recordedBundles = 0;
+        for (final String key : record.stringPropertyNames()) {
+            if (key.startsWith(BUNDLE_KEY_PREFIX)) {
+                ++recordedBundles;
+                if (!content.bundles.containsKey(key.substring(BUNDLE_KEY_PREFIX.length()))) {
+                    return -1;
+                }
+            }
+        }
+        if (recordedBundles != content.bundles.size()) {
+            return -1;
+        }
+
+        // Match embedded bundles with subsystem constituents.
+        final Map<String, Bundle> constituents = new HashMap<>(content.bundles.size());
+        for (final Resource res : subsystem.getConstituents()) {
+            if (res instanceof BundleRevision) {
+                final BundleRevision rev = (BundleRevision) res;
+                constituents.put(getIdentity(rev.getSymbolicName(), rev.getVersion()), rev.getBundle());
+            }
+        }
+        final Map<Bundle, String> changedBundles = new HashMap<>(4);
+        for (final Map.Entry<String, EmbeddedBundle> e : content.bundles.entrySet()) {
+            final Bundle bundle = constituents.get(e.getKey());
+            if (bundle == null) {
+                return -1;
+            }
+            if (!e.getValue().hash.equals(record.getProperty(BUNDLE_KEY_PREFIX + e.getKey()))) {
+                if (!e.getValue().requirementsHash.equals(record.getProperty(REQUIREMENTS_KEY_PREFIX + e.getKey()))) {
+                    // Bundle requirements changed: subsystem deployment must be computed again.
+                    return -1;
+                }
+                changedBundles.put(bundle, e.getValue().entryName);
+            }
+        }
+        if (changedBundles.isEmpty()) {
+            return 0;
+        }
+        if (isShared(subsystem, changedBundles.keySet())) {
+            // Updating a shared bundle would also update other subsystems:
+            // let the subsystem runtime install this subsystem again.
+            return -1;
+        }
+
+        try (final ZipFile zip = new ZipFile(artifact)) {
+            for (final Map.Entry<Bundle, String> e : changedBundles.entrySet()) {
+                try (final InputStream in = zip.getInputStream(zip.getEntry(e.getValue()))) {
+                    e.getKey().update(in);
+                }
+            }
+        }
+        refresh(new ArrayList<>(changedBundles.keySet()));
+        record(subsystem, artifact);
+        return changedBundles.size();
+    }
+
+    /**
+     * Check if some bundles are also constituents of other subsystems.
+     * Subsystems are visited from the root subsystem, including subsystems nested
+     * in scoped subsystems.
+     */
+    private static boolean isShared(Subsystem subsystem, Set<Bundle> bundles) {
+        Subsystem root = subsystem;
+        while (!root.getParents().isEmpty()) {
+            root = root.getParents().iterator().next();
+        }
+        final Set<Long> visited = new HashSet<>(8);
+        final Deque<Subsystem> toVisit = new ArrayDeque<>(8);
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            final Subsystem current = toVisit.pop();
+            if (!visited.add(current.getSubsystemId())) {
+                continue;
+            }
+            toVisit.addAll(current.getChildren());
+            if (current.getSubsystemId() == subsystem.getSubsystemId()) {
+                continue;
+            }
+            for (final Resource res : current.getConstituents()) {
+                if (res instanceof BundleRevision && bundles.contains(((BundleRevision) res).getBundle())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Refresh bundles (and bundles depending on them), and wait until this operation is done.
+     */
+    private void refresh(List<Bundle> bundles) throws BundleException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Bundle sysBundle = bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
+        sysBundle.adapt(FrameworkWiring.class).refreshBundles(bundles, event -> {
+            if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED || event.getType() == FrameworkEvent.ERROR) {
+                latch.countDown();
+            }
+        });
+        if (!latch.await(REFRESH_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new BundleException("Timeout while refreshing updated bundles");
+        }
+    }
+
+    private ArchiveContent scan(File artifact) throws IOException {
+        final ArchiveContent content = new ArchiveContent();
+        try (final ZipFile zip = new ZipFile(artifact)) {
+            for (final Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                final ZipEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if ("OSGI-INF/SUBSYSTEM.MF".equals(name)) {
+                    try (final InputStream in = zip.getInputStream(entry)) {
+                        content.manifestHash = Checksums.sha256(in);
+                    }
+                } else if (name.indexOf('/') == -1 && name.endsWith(".esa")) {
+                    // Nested subsystems are not supported.
+                    content.unsupported = true;
+                } else if (name.indexOf('/') == -1 && name.endsWith(".jar")) {
+                    final EmbeddedBundle bundle = new EmbeddedBundle(name);
+                    final String identity;
+                    try (final InputStream in = zip.getInputStream(entry)) {
+                        identity = readBundle(in, bundle);
+                    }
+                    if (identity == null || content.bundles.put(identity, bundle) != null) {
+                        content.unsupported = true;
+                    }
+                }
+            }
+        }
+        if (content.manifestHash == null) {
+            throw new IOException("Missing subsystem manifest");
+        }
+        return content;
+    }
+
+    /**
+     * Read an embedded bundle, computing its content hash.
+     *
+     * @return bundle identity, <code>null</code> if this is not a bundle
+     */
+    private static String readBundle(InputStream in, EmbeddedBundle bundle) throws IOException {
+        final MessageDigest md = Checksums.newDigest();
+        final DigestInputStream digestIn = new DigestInputStream(in, md);
+        final Manifest man = new JarInputStream(digestIn).getManifest();
+        final byte[] buf = new byte[4096];
+        while (digestIn.read(buf) != -1) {
+            // Read remaining content to compute hash.
+        }
+        bundle.hash = Checksums.toHex(md.digest());
+        if (man == null) {
+            return null;
+        }
+        bundle.requirementsHash = getRequirementsHash(man);
+        final String bsn = man.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
+        if (bsn == null) {
+            return null;
+        }
+        final int i = bsn.indexOf(';');
+        return getIdentity(i == -1 ? bsn.trim() : bsn.substring(0, i).trim(),
+                Version.parseVersion(man.getMainAttributes().getValue(Constants.BUNDLE_VERSION)));
+    }
+
+    /**
+     * Compute a hash of bundle requirement headers.
+     * Header values are normalized, so that formatting changes are ignored.
+     */
+    private static String getRequirementsHash(Manifest man) {
+        final StringBuilder buf = new StringBuilder(256);
+        for (final String header : REQUIREMENT_HEADERS) {
+            final String value = man.getMainAttributes().getValue(header);
+            buf.append(header).append(':');
+            if (value != null) {
+                buf.append(value.replaceAll("\\s+", ""));
+            }
+            buf.append('\n');
+        }
+        return Checksums.toHex(Checksums.newDigest().digest(buf.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String getIdentity(String symbolicName, Version version) {
+        return symbolicName + "_" + version;
+    }
+
+    private Properties loadRecord(String location) throws IOException {
+        final Path recordFile = getRecordFile(location);
+        if (!Files.exists(recordFile)) {
+            return null;
+        }
+        final Properties record = new Properties();
+        try (final InputStream in = Files.newInputStream(recordFile)) {
+            record.load(in);
+        }
+        return record;
+    }
+
+    private Path getRecordFile(String location) {
+        final byte[] hash = Checksums.newDigest().digest(location.getBytes(StandardCharsets.UTF_8));
+        return recordDir.resolve(Checksums.toHex(hash) + ".properties");
+    }
+
+    private static final class ArchiveContent {
+        String manifestHash;
+        final Map<String, EmbeddedBundle> bundles = new HashMap<>(8);
+        boolean unsupported;
+    }
+
+    private static final class EmbeddedBundle {
+        final String entryName;
+        String hash;
+        String requirementsHash;
+
+        EmbeddedBundle(final String entryName) {
+            this.entryName = entryName;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.artifactcache.ArtifactCache;
+import io.staminaframework.runtime.artifactcache.Checksums;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.log.LogService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Minimal OSGi stubs for testing subsystem components without a framework.
+ *
+ * @author Stamina Framework developers
+ */
+final class OsgiStubs {
+    private OsgiStubs() {
+    }
+
+    /**
+     * Create a stub implementing an interface.
+     * Methods without any behavior return a default value.
+     *
+     * @param type     interface to implement
+     * @param behavior method implementations, by method name
+     * @return stub instance
+     */
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> behavior) {
+        return type.cast(Proxy.newProxyInstance(OsgiStubs.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    final Function<Object[], Object> impl = behavior.get(method.getName());
+                    if (impl != null) {
+                        return impl.apply(args == null ? new Object[0] : args);
+                    }
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                }));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return (char) 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Create a bundle context stub, with a system bundle adapting to a framework wiring.
+     */
+    static BundleContext bundleContext(File dataDir, Map<String, String> properties, FrameworkWiring wiring) {
+        final Map<String, Function<Object[], Object>> sysBundle = new HashMap<>(2);
+        sysBundle.put("adapt", args -> FrameworkWiring.class.equals(args[0]) ? wiring : null);
+        final Bundle systemBundle = stub(Bundle.class, sysBundle);
+
+        final Map<String, Function<Object[], Object>> context = new HashMap<>(4);
+        context.put("getProperty", args -> properties.get(args[0]));
+        context.put("getDataFile", args -> new File(dataDir, (String) args[0]));
+        context.put("getBundle", args -> args.length == 1 && Constants.SYSTEM_BUNDLE_LOCATION.equals(args[0])
+                ? systemBundle : null);
+        return stub(BundleContext.class, context);
+    }
+
+    /**
+     * Create a log service stub, keeping logged messages.
+     */
+    static LogService logService(List<String> messages) {
+        return stub(LogService.class, Collections.singletonMap("log", args -> {
+            for (final Object arg : args) {
+                if (arg instanceof String) {
+                    messages.add((String) arg);
+                    break;
+                }
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Set a field on a component instance, as the component runtime would do.
+     */
+    static void inject(Object component, String fieldName, Object value) throws ReflectiveOperationException {
+        final Field field = component.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(component, value);
+    }
+
+    /**
+     * Wait until a condition is met.
+     */
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timeout while waiting for condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Write a subsystem archive.
+     *
+     * @param file          archive file
+     * @param symbolicName  subsystem symbolic name
+     * @param version       subsystem version
+     * @param bundleEntries embedded bundles, by entry name
+     * @return archive file
+     */
+    static File writeSubsystem(File file, String symbolicName, String version,
+                               Map<String, byte[]> bundleEntries) throws IOException {
+        final Manifest man = new Manifest();
+        man.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        man.getMainAttributes().putValue("Subsystem-SymbolicName", symbolicName);
+        man.getMainAttributes().putValue("Subsystem-Version", version);
+        try (final ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file.toPath()))) {
+            out.putNextEntry(new ZipEntry("OSGI-INF/SUBSYSTEM.MF"));
+            man.write(out);
+            out.closeEntry();
+            for (final Map.Entry<String, byte[]> e : bundleEntries.entrySet()) {
+                out.putNextEntry(new ZipEntry(e.getKey()));
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Read a subsystem manifest from archive content.
+     */
+    static Manifest readSubsystemManifest(InputStream in) throws IOException {
+        final ZipInputStream zin = new ZipInputStream(in);
+        for (ZipEntry entry; (entry = zin.getNextEntry()) != null; ) {
+            if ("OSGI-INF/SUBSYSTEM.MF".equals(entry.getName())) {
+                return new Manifest(zin);
+            }
+        }
+        throw new IOException("Missing subsystem manifest");
+    }
+
+    /**
+     * Create bundle content.
+     *
+     * @param headers bundle manifest headers
+     * @param payload bundle payload, stored as a resource
+     * @return bundle content
+     */
+    static byte[] bundle(Map<String, String> headers, String payload) throws IOException {
+        final Manifest man = new Manifest();
+        man.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (final Map.Entry<String, String> e : headers.entrySet()) {
+            man.getMainAttributes().putValue(e.getKey(), e.getValue());
+        }
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+        try (final JarOutputStream out = new JarOutputStream(buf, man)) {
+            out.putNextEntry(new ZipEntry("payload.txt"));
+            out.write(payload.getBytes("UTF-8"));
+            out.closeEntry();
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * {@link ArtifactCache} implementation storing artifacts in a directory, without eviction.
+     */
+    static final class DirectoryArtifactCache implements ArtifactCache {
+        private final Path dir;
+        private final Map<String, String> keys = new HashMap<>(4);
+
+        DirectoryArtifactCache(final Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public synchronized Path get(String hash) {
+            final Path file = dir.resolve(hash);
+            return Files.exists(file) ? file : null;
+        }
+
+        @Override
+        public synchronized InputStream open(String hash) throws IOException {
+            final Path file = get(hash);
+            return file == null ? null : Files.newInputStream(file);
+        }
+
+        @Override
+        public synchronized Path getByKey(String key) {
+            final String hash = keys.get(key);
+            return hash == null ? null : get(hash);
+        }
+
+        @Override
+        public synchronized Path put(String key, InputStream in, String expectedHash) throws IOException {
+            Files.createDirectories(dir);
+            final Path tmp = Files.createTempFile(dir, "artifact-", ".part");
+            try (final OutputStream out = Files.newOutputStream(tmp)) {
+                final byte[] buf = new byte[4096];
+                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                    out.write(buf, 0, bytesRead);
+                }
+            }
+            final String hash = Checksums.sha256(tmp);
+            if (expectedHash != null && !expectedHash.equalsIgnoreCase(hash)) {
+                Files.delete(tmp);
+                throw new IOException("Checksum mismatch: expected " + expectedHash + ", got " + hash);
+            }
+            final Path file = dir.resolve(hash);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            if (key != null) {
+                keys.put(key, hash);
+            }
+            return file;
+        }
+
+        @Override
+        public synchronized void invalidate(String key) {
+            keys.remove(key);
+        }
+
+        /**
+         * Remove every artifact from this cache.
+         */
+        synchronized void clear() throws IOException {
+            keys.clear();
+            if (Files.exists(dir)) {
+                try (final Stream<Path> files = Files.list(dir)) {
+                    for (final Path file : (Iterable<Path>) files::iterator) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+}
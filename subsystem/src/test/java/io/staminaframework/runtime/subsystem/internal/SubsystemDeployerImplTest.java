@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Requirement;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.jar.Manifest;
+
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.inject;
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.stub;
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.writeSubsystem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link SubsystemDeployerImpl} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class SubsystemDeployerImplTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final List<Manifest> deployments = new CopyOnWriteArrayList<>();
+    private final List<Bundle> installedBundles = new CopyOnWriteArrayList<>();
+    private final SubsystemDeployerImpl deployer = new SubsystemDeployerImpl();
+    private BundleRevision provider;
+    private String location;
+
+    @Before
+    public void setUp() throws Exception {
+        provider = revision("provider", Collections.emptyList());
+        installedBundles.add(bundle("provider"));
+
+        final BundleCapability cap = stub(BundleCapability.class, Collections.singletonMap("getRevision",
+                args -> provider));
+        final Map<String, Function<Object[], Object>> wiring = new HashMap<>(2);
+        wiring.put("findProviders", args -> Collections.singletonList(cap));
+        final FrameworkWiring fwkWiring = stub(FrameworkWiring.class, wiring);
+        final Bundle systemBundle = stub(Bundle.class, Collections.singletonMap("adapt",
+                args -> FrameworkWiring.class.equals(args[0]) ? fwkWiring : null));
+
+        final File dataDir = tmp.newFolder("data");
+        final Map<String, Function<Object[], Object>> context = new HashMap<>(8);
+        context.put("getProperty", args -> "stamina.subsystem.prefetch.threads".equals(args[0]) ? "0" : null);
+        context.put("getDataFile", args -> new File(dataDir, (String) args[0]));
+        context.put("getBundle", args -> Constants.SYSTEM_BUNDLE_LOCATION.equals(args[0]) ? systemBundle : null);
+        context.put("getBundles", args -> installedBundles.toArray(new Bundle[installedBundles.size()]));
+
+        inject(deployer, "logService", OsgiStubs.logService(new ArrayList<>()));
+        inject(deployer, "artifactCache", new OsgiStubs.DirectoryArtifactCache(tmp.newFolder("cache").toPath()));
+        deployer.activate(stub(BundleContext.class, context));
+
+        location = writeSubsystem(tmp.newFile("test.esa"), "test", "1.0.0", Collections.emptyMap())
+                .toURI().toString();
+    }
+
+    @Test
+    public void testCachedDeployment() {
+        final Subsystem parent = newParent(1);
+        deployer.install(parent, location, null);
+        deployer.install(parent, location, null);
+        assertEquals(Arrays.asList("resolve", "cached"), events);
+
+        // Private headers are not given to the subsystem implementation.
+        final Manifest deployment = deployments.get(0);
+        assertEquals("test;deployed-version=1.0.0",
+                deployment.getMainAttributes().getValue(SubsystemConstants.DEPLOYED_CONTENT));
+        assertNull(deployment.getMainAttributes().getValue("Stamina-Relied-On"));
+    }
+
+    @Test
+    public void testOtherParent() {
+        deployer.install(newParent(1), location, null);
+        deployer.install(newParent(2), location, null);
+        assertEquals(Arrays.asList("resolve", "resolve"), events);
+        deployer.install(newParent(1), location, null);
+        assertEquals(Arrays.asList("resolve", "resolve", "cached"), events);
+    }
+
+    @Test
+    public void testReliedOnBundleUninstalled() {
+        final Subsystem parent = newParent(1);
+        deployer.install(parent, location, null);
+        installedBundles.clear();
+        deployer.install(parent, location, null);
+        assertEquals(Arrays.asList("resolve", "resolve"), events);
+
+        // Deployment was computed again.
+        provider = revision("other", Collections.emptyList());
+        installedBundles.add(bundle("other"));
+        deployer.install(parent, location, null);
+        assertEquals(Arrays.asList("resolve", "resolve", "resolve"), events);
+        deployer.install(parent, location, null);
+        assertEquals(Arrays.asList("resolve", "resolve", "resolve", "cached"), events);
+    }
+
+    private Subsystem newParent(long id) {
+        final BundleRevision constituent = revision("test",
+                Collections.singletonList(stub(Requirement.class, Collections.emptyMap())));
+        final Map<String, Function<Object[], Object>> child = new HashMap<>(4);
+        child.put("getDeploymentHeaders", args ->
+                Collections.singletonMap(SubsystemConstants.DEPLOYED_CONTENT, "test;deployed-version=1.0.0"));
+        child.put("getConstituents", args -> Collections.singletonList(constituent));
+        final Subsystem subsystem = stub(Subsystem.class, child);
+
+        final Map<String, Function<Object[], Object>> behavior = new HashMap<>(4);
+        behavior.put("getSubsystemId", args -> id);
+        behavior.put("install", args -> {
+            if (args.length == 3) {
+                try (final InputStream in = (InputStream) args[2]) {
+                    deployments.add(new Manifest(in));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                events.add("cached");
+            } else {
+                events.add("resolve");
+            }
+            return subsystem;
+        });
+        return stub(Subsystem.class, behavior);
+    }
+
+    private static BundleRevision revision(String symbolicName, List<Requirement> requirements) {
+        final Map<String, Function<Object[], Object>> behavior = new HashMap<>(4);
+        behavior.put("getSymbolicName", args -> symbolicName);
+        behavior.put("getVersion", args -> new Version("1.0.0"));
+        behavior.put("getRequirements", args -> requirements);
+        return stub(BundleRevision.class, behavior);
+    }
+
+    private static Bundle bundle(String symbolicName) {
+        final Map<String, Function<Object[], Object>> behavior = new HashMap<>(4);
+        behavior.put("getSymbolicName", args -> symbolicName);
+        behavior.put("getVersion", args -> new Version("1.0.0"));
+        return stub(Bundle.class, behavior);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * {@link SubsystemIndexImpl} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class SubsystemIndexImplTest {
+    private final SubsystemIndexImpl index = new SubsystemIndexImpl();
+
+    @Test
+    public void testIndex() {
+        final Subsystem v1 = newSubsystem(1, "foo", "1.0.0", SubsystemConstants.SUBSYSTEM_TYPE_FEATURE, null);
+        final Subsystem v2 = newSubsystem(2, "foo", "2.0.0", SubsystemConstants.SUBSYSTEM_TYPE_FEATURE, null);
+        index.bindSubsystem(v1);
+        index.bindSubsystem(v2);
+
+        assertSame(v1, index.getById(1));
+        assertSame(v2, index.getByLocation("location:2"));
+        assertSame(v1, index.get("foo", new Version("1.0.0")));
+        // Highest versions come first.
+        assertEquals(2, index.getBySymbolicName("foo").size());
+        assertSame(v2, index.getBySymbolicName("foo").get(0));
+
+        index.unbindSubsystem(v2);
+        assertNull(index.getByLocation("location:2"));
+        assertEquals(Collections.singletonList(v1), index.getBySymbolicName("foo"));
+    }
+
+    @Test
+    public void testNestedSubsystems() {
+        final Region region = new Region();
+        final Subsystem nested = newSubsystem(2, "nested", "1.0.0", SubsystemConstants.SUBSYSTEM_TYPE_FEATURE, null);
+        region.register(nested);
+        final Subsystem app = newSubsystem(1, "app", "1.0.0",
+                SubsystemConstants.SUBSYSTEM_TYPE_APPLICATION, region.context);
+        index.bindSubsystem(app);
+        assertSame(nested, index.getById(2));
+
+        // Subsystems installed later in this region are indexed as well.
+        final Subsystem other = newSubsystem(3, "other", "1.0.0", SubsystemConstants.SUBSYSTEM_TYPE_FEATURE, null);
+        region.register(other);
+        assertSame(other, index.getByLocation("location:3"));
+        region.unregister(other);
+        assertNull(index.getByLocation("location:3"));
+
+        // Nested subsystems are removed with their scoped parent.
+        index.unbindSubsystem(app);
+        assertNull(index.getById(1));
+        assertNull(index.getById(2));
+    }
+
+    @Test
+    public void testSubsystemSeenFromSeveralRegions() {
+        final Region region = new Region();
+        final Subsystem shared = newSubsystem(2, "shared", "1.0.0", SubsystemConstants.SUBSYSTEM_TYPE_FEATURE, null);
+        region.register(shared);
+        index.bindSubsystem(shared);
+        final Subsystem app = newSubsystem(1, "app", "1.0.0",
+                SubsystemConstants.SUBSYSTEM_TYPE_APPLICATION, region.context);
+        index.bindSubsystem(app);
+
+        region.unregister(shared);
+        assertSame(shared, index.getById(2));
+        index.unbindSubsystem(shared);
+        assertNull(index.getById(2));
+    }
+
+    @Test
+    public void testRegionAvailableOnUpdate() {
+        final Region region = new Region();
+        final Subsystem nested = newSubsystem(2, "nested", "1.0.0", SubsystemConstants.SUBSYSTEM_TYPE_FEATURE, null);
+        region.register(nested);
+        final AtomicReference<BundleContext> context = new AtomicReference<>();
+        final Subsystem app = stub(Subsystem.class, behavior(1, "app", "1.0.0",
+                SubsystemConstants.SUBSYSTEM_TYPE_COMPOSITE, args -> context.get()));
+
+        // Region context is not available while this subsystem is installing.
+        index.bindSubsystem(app);
+        assertNull(index.getById(2));
+
+        context.set(region.context);
+        index.updatedSubsystem(app);
+        assertSame(nested, index.getById(2));
+    }
+
+    private static Subsystem newSubsystem(long id, String symbolicName, String version,
+                                          String type, BundleContext context) {
+        return stub(Subsystem.class, behavior(id, symbolicName, version, type, args -> context));
+    }
+
+    private static Map<String, Function<Object[], Object>> behavior(long id, String symbolicName, String version,
+                                                                    String type,
+                                                                    Function<Object[], Object> context) {
+        final Map<String, Function<Object[], Object>> behavior = new HashMap<>(8);
+        behavior.put("getSubsystemId", args -> id);
+        behavior.put("getLocation", args -> "location:" + id);
+        behavior.put("getSymbolicName", args -> symbolicName);
+        behavior.put("getVersion", args -> new Version(version));
+        behavior.put("getType", args -> type);
+        behavior.put("getBundleContext", context);
+        return behavior;
+    }
+
+    /**
+     * Region of a scoped subsystem, where subsystem services are registered.
+     */
+    private static final class Region {
+        final Map<ServiceReference<?>, Subsystem> services = new LinkedHashMap<>(4);
+        final Map<Subsystem, ServiceReference<?>> references = new HashMap<>(4);
+        ServiceListener listener;
+        final BundleContext context;
+
+        Region() {
+            final Map<String, Function<Object[], Object>> behavior = new HashMap<>(8);
+            behavior.put("createFilter", args -> stub(Filter.class, Collections.emptyMap()));
+            behavior.put("addServiceListener", args -> {
+                listener = (ServiceListener) args[0];
+                return null;
+            });
+            behavior.put("removeServiceListener", args -> {
+                listener = null;
+                return null;
+            });
+            behavior.put("getServiceReferences", args -> services.isEmpty() ? null
+                    : services.keySet().toArray(new ServiceReference<?>[services.size()]));
+            behavior.put("getService", args -> services.get(args[0]));
+            behavior.put("ungetService", args -> true);
+            context = stub(BundleContext.class, behavior);
+        }
+
+        void register(Subsystem subsystem) {
+            final ServiceReference<?> ref = stub(ServiceReference.class, Collections.emptyMap());
+            services.put(ref, subsystem);
+            references.put(subsystem, ref);
+            if (listener != null) {
+                listener.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, ref));
+            }
+        }
+
+        void unregister(Subsystem subsystem) {
+            final ServiceReference<?> ref = references.remove(subsystem);
+            if (listener != null) {
+                listener.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, ref));
+            }
+            services.remove(ref);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.subsystem.SubsystemDeployer;
+import io.staminaframework.runtime.subsystem.SubsystemIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.subsystem.Subsystem;
+import org.osgi.service.subsystem.SubsystemException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.jar.Manifest;
+
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.await;
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.inject;
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.stub;
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.writeSubsystem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SubsystemInstaller} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class SubsystemInstallerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private final Map<String, FakeSubsystem> installed = new ConcurrentHashMap<>();
+    private final Set<String> failingStarts = ConcurrentHashMap.newKeySet();
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private final AtomicInteger resolutions = new AtomicInteger();
+    private final AtomicInteger subsystemIds = new AtomicInteger();
+    private SubsystemInstaller installer;
+
+    @Before
+    public void setUp() throws Exception {
+        final Map<String, Function<Object[], Object>> index = new HashMap<>(2);
+        index.put("getByLocation", args -> {
+            final FakeSubsystem sub = installed.get(args[0]);
+            return sub == null ? null : sub.proxy;
+        });
+        final Map<String, Function<Object[], Object>> wiring = new HashMap<>(2);
+        wiring.put("resolveBundles", args -> {
+            resolutions.incrementAndGet();
+            return true;
+        });
+        final Map<String, String> props = new HashMap<>(4);
+        props.put("stamina.subsystem.batch.delay", "50");
+        props.put("stamina.subsystem.install.retries", "0");
+
+        installer = new SubsystemInstaller();
+        inject(installer, "logService", OsgiStubs.logService(messages));
+        inject(installer, "root", stub(Subsystem.class, Collections.emptyMap()));
+        inject(installer, "subsystemIndex", stub(SubsystemIndex.class, index));
+        inject(installer, "subsystemArchives", new SubsystemArchives());
+        inject(installer, "subsystemDeployer", (SubsystemDeployer) this::deploy);
+        inject(installer, "artifactCache", new OsgiStubs.DirectoryArtifactCache(tmp.newFolder("cache").toPath()));
+        installer.activate(OsgiStubs.bundleContext(tmp.newFolder("data"), props,
+                stub(FrameworkWiring.class, wiring)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        installer.deactivate();
+    }
+
+    private Subsystem deploy(Subsystem parent, String location, InputStream content) {
+        final Manifest man;
+        try (final InputStream in = content == null ? Files.newInputStream(Paths.get(URI.create(location))) : content) {
+            man = OsgiStubs.readSubsystemManifest(in);
+        } catch (IOException e) {
+            throw new SubsystemException(e);
+        }
+        final FakeSubsystem sub = new FakeSubsystem(subsystemIds.incrementAndGet(), location,
+                man.getMainAttributes().getValue("Subsystem-SymbolicName"),
+                man.getMainAttributes().getValue("Subsystem-Version"));
+        installed.put(location, sub);
+        events.add((content == null ? "install " : "restore ") + sub.sid);
+        return sub.proxy;
+    }
+
+    @Test
+    public void testBatchInstall() throws Exception {
+        final File a = writeSubsystem(tmp.newFile("a.esa"), "a", "1.0.0", Collections.emptyMap());
+        final File b = writeSubsystem(tmp.newFile("b.esa"), "b", "1.0.0", Collections.emptyMap());
+        installer.install(a);
+        installer.install(b);
+        await(() -> installed.size() == 2 && isActive(a) && isActive(b));
+
+        // Bundles from both subsystems are resolved at once.
+        assertEquals(1, resolutions.get());
+        assertEquals(Collections.singletonList("start a/1.0.0"), filter("start a/"));
+        assertEquals(Collections.singletonList("start b/1.0.0"), filter("start b/"));
+    }
+
+    @Test
+    public void testRollbackThenInstallOneByOne() throws Exception {
+        failingStarts.add("a/1.0.0");
+        final File a = writeSubsystem(tmp.newFile("a.esa"), "a", "1.0.0", Collections.emptyMap());
+        final File b = writeSubsystem(tmp.newFile("b.esa"), "b", "1.0.0", Collections.emptyMap());
+        installer.install(a);
+        installer.install(b);
+        await(() -> messages.stream().anyMatch(m -> m.startsWith("Giving up installing subsystem")));
+
+        // Batch is rolled back, then each artifact is installed on its own.
+        assertTrue(events.indexOf("uninstall b/1.0.0") < events.lastIndexOf("install b/1.0.0"));
+        assertTrue(isActive(b));
+        assertNull(installed.get(toLocation(a)));
+    }
+
+    @Test
+    public void testRestoreReplacedSubsystem() throws Exception {
+        final File a = writeSubsystem(tmp.newFile("a.esa"), "a", "1.0.0", Collections.emptyMap());
+        installer.install(a);
+        await(() -> isActive(a));
+        // Subsystem content is recorded once this subsystem is started.
+        await(() -> new File(tmp.getRoot(), "data/updates").isDirectory());
+
+        failingStarts.add("a/2.0.0");
+        writeSubsystem(a, "a", "2.0.0", Collections.emptyMap());
+        a.setLastModified(a.lastModified() + 2000);
+        installer.update(a);
+        await(() -> messages.stream().anyMatch(m -> m.startsWith("Giving up installing subsystem")));
+
+        assertTrue(events.contains("uninstall a/2.0.0"));
+        assertTrue(events.contains("restore a/1.0.0"));
+        assertTrue(isActive(a));
+        assertEquals(new Version("1.0.0"), installed.get(toLocation(a)).proxy.getVersion());
+    }
+
+    @Test
+    public void testUninstallAfterDeactivate() throws Exception {
+        final File a = writeSubsystem(tmp.newFile("a.esa"), "a", "1.0.0", Collections.emptyMap());
+        installer.install(a);
+        await(() -> isActive(a));
+        installer.deactivate();
+
+        installer.uninstall(a);
+        assertFalse(installed.containsKey(toLocation(a)));
+    }
+
+    private List<String> filter(String prefix) {
+        final List<String> result = new ArrayList<>(2);
+        for (final String e : events) {
+            if (e.startsWith(prefix)) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    private boolean isActive(File artifact) {
+        final FakeSubsystem sub = installed.get(toLocation(artifact));
+        return sub != null && sub.state == Subsystem.State.ACTIVE;
+    }
+
+    private static String toLocation(File artifact) {
+        try {
+            return artifact.getCanonicalFile().toURI().toURL().toExternalForm();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Subsystem stub, without any constituent.
+     */
+    private final class FakeSubsystem {
+        final String sid;
+        final Subsystem proxy;
+        volatile Subsystem.State state = Subsystem.State.INSTALLED;
+
+        FakeSubsystem(final long id, final String location, final String symbolicName, final String version) {
+            this.sid = symbolicName + "/" + version;
+            final Map<String, Function<Object[], Object>> behavior = new HashMap<>(8);
+            behavior.put("getSubsystemId", args -> id);
+            behavior.put("getLocation", args -> location);
+            behavior.put("getSymbolicName", args -> symbolicName);
+            behavior.put("getVersion", args -> new Version(version));
+            behavior.put("getState", args -> state);
+            behavior.put("getConstituents", args -> Collections.emptyList());
+            behavior.put("start", args -> {
+                events.add("start " + sid);
+                if (failingStarts.contains(sid)) {
+                    throw new SubsystemException("Failed to start " + sid);
+                }
+                state = Subsystem.State.ACTIVE;
+                return null;
+            });
+            behavior.put("stop", args -> {
+                events.add("stop " + sid);
+                state = Subsystem.State.RESOLVED;
+                return null;
+            });
+            behavior.put("uninstall", args -> {
+                events.add("uninstall " + sid);
+                state = Subsystem.State.UNINSTALLED;
+                installed.remove(location, this);
+                return null;
+            });
+            this.proxy = stub(Subsystem.class, behavior);
+        }
+    }
+}
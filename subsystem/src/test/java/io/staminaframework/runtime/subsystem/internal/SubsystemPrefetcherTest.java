@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import io.staminaframework.runtime.artifactcache.Checksums;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.repository.ContentNamespace;
+import org.osgi.service.repository.Repository;
+import org.osgi.service.repository.RepositoryContent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.bundle;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link SubsystemPrefetcher} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class SubsystemPrefetcherTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private final List<TestResource> resources = new ArrayList<>(4);
+    private final Repository repository = reqs -> {
+        final Map<Requirement, Collection<Capability>> providers = new HashMap<>(reqs.size());
+        for (final Requirement req : reqs) {
+            final Filter filter;
+            try {
+                filter = FrameworkUtil.createFilter(req.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE));
+            } catch (InvalidSyntaxException e) {
+                throw new IllegalArgumentException(e);
+            }
+            final List<Capability> caps = new ArrayList<>(2);
+            for (final TestResource res : resources) {
+                for (final Capability cap : res.getCapabilities(req.getNamespace())) {
+                    if (filter.matches(cap.getAttributes())) {
+                        caps.add(cap);
+                    }
+                }
+            }
+            providers.put(req, caps);
+        }
+        return providers;
+    };
+    private ExecutorService executor;
+    private SubsystemPrefetcher prefetcher;
+    private Path stagingDir;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        prefetcher = new SubsystemPrefetcher(executor,
+                new OsgiStubs.DirectoryArtifactCache(tmp.newFolder("cache").toPath()));
+        stagingDir = tmp.newFolder("staging").toPath();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPrefetchContent() throws Exception {
+        final TestResource a1 = new TestResource("a", "1.0.0", true);
+        final TestResource a2 = new TestResource("a", "2.0.0", true);
+        final TestResource a3 = new TestResource("a", "3.0.0", true);
+        final TestResource b = new TestResource("b", "1.0.0", true);
+        resources.addAll(Arrays.asList(a1, a2, a3, b));
+
+        final Map<String, byte[]> embedded = Collections.singletonMap("b.jar", bundle(headers("b", "1.0.0"), "b"));
+        final StagingRepository staging = prefetcher.prefetchContent(
+                archive("a;version=\"[1,3)\",b", embedded), Collections.singletonList(repository), stagingDir);
+
+        // Highest version in range is staged, embedded bundles are skipped.
+        assertEquals(1, staging.size());
+        final Collection<Capability> caps = staging.findProviders(Collections.singletonList(
+                new IdentityRequirement("a", new Version("2.0.0"), IdentityNamespace.TYPE_BUNDLE))).values()
+                .iterator().next();
+        assertEquals(1, caps.size());
+    }
+
+    @Test
+    public void testPrefetchDeployment() throws Exception {
+        resources.add(new TestResource("a", "1.0.0", true));
+        resources.add(new TestResource("c", "1.0.0", false));
+        final Manifest deployment = new Manifest();
+        deployment.getMainAttributes().putValue("Deployed-Content", "a;deployed-version=1.0.0");
+        deployment.getMainAttributes().putValue("Provision-Resource", "c;deployed-version=1.0.0");
+        final StagingRepository staging = prefetcher.prefetch(deployment,
+                Collections.singletonList(repository), stagingDir);
+        assertEquals(2, staging.size());
+    }
+
+    @Test
+    public void testIdentityMismatch() throws Exception {
+        // Without any hash, resource content is checked against its identity.
+        final TestResource c = new TestResource("c", "1.0.0", false);
+        c.content = bundle(headers("other", "1.0.0"), "c");
+        resources.add(c);
+        try {
+            prefetcher.prefetchContent(archive("c", Collections.emptyMap()),
+                    Collections.singletonList(repository), stagingDir);
+            fail("Resource with unexpected identity should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Identity mismatch for resource c/1.0.0"));
+        }
+    }
+
+    @Test
+    public void testHashMismatch() throws Exception {
+        final TestResource a = new TestResource("a", "1.0.0", true);
+        a.content = bundle(headers("a", "1.0.0"), "tampered");
+        resources.add(a);
+        try {
+            prefetcher.prefetchContent(archive("a", Collections.emptyMap()),
+                    Collections.singletonList(repository), stagingDir);
+            fail("Resource with unexpected hash should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to download resource a/1.0.0"));
+        }
+    }
+
+    private InputStream archive(String content, Map<String, byte[]> embedded) throws IOException {
+        final Manifest man = new Manifest();
+        man.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        man.getMainAttributes().putValue("Subsystem-SymbolicName", "test");
+        man.getMainAttributes().putValue("Subsystem-Content", content);
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+        try (final ZipOutputStream out = new ZipOutputStream(buf)) {
+            out.putNextEntry(new ZipEntry("OSGI-INF/SUBSYSTEM.MF"));
+            man.write(out);
+            out.closeEntry();
+            for (final Map.Entry<String, byte[]> e : embedded.entrySet()) {
+                out.putNextEntry(new ZipEntry(e.getKey()));
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        }
+        return new ByteArrayInputStream(buf.toByteArray());
+    }
+
+    private static Map<String, String> headers(String symbolicName, String version) {
+        final Map<String, String> headers = new LinkedHashMap<>(4);
+        headers.put("Bundle-ManifestVersion", "2");
+        headers.put("Bundle-SymbolicName", symbolicName);
+        headers.put("Bundle-Version", version);
+        return headers;
+    }
+
+    /**
+     * Repository resource, with a bundle as content.
+     */
+    private static final class TestResource implements Resource, RepositoryContent {
+        private final String symbolicName;
+        private final Version version;
+        private final String hash;
+        byte[] content;
+
+        TestResource(final String symbolicName, final String version, final boolean hashed) throws IOException {
+            this.symbolicName = symbolicName;
+            this.version = new Version(version);
+            this.content = bundle(headers(symbolicName, version), symbolicName);
+            // Published hash is computed from original content.
+            this.hash = hashed ? Checksums.sha256(new ByteArrayInputStream(content)) : null;
+        }
+
+        @Override
+        public List<Capability> getCapabilities(String namespace) {
+            final List<Capability> caps = new ArrayList<>(2);
+            if (namespace == null || IdentityNamespace.IDENTITY_NAMESPACE.equals(namespace)) {
+                final Map<String, Object> atts = new HashMap<>(4);
+                atts.put(IdentityNamespace.IDENTITY_NAMESPACE, symbolicName);
+                atts.put(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE, version);
+                atts.put(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE, IdentityNamespace.TYPE_BUNDLE);
+                caps.add(new TestCapability(this, IdentityNamespace.IDENTITY_NAMESPACE, atts));
+            }
+            if (hash != null && (namespace == null || ContentNamespace.CONTENT_NAMESPACE.equals(namespace))) {
+                caps.add(new TestCapability(this, ContentNamespace.CONTENT_NAMESPACE,
+                        Collections.singletonMap(ContentNamespace.CONTENT_NAMESPACE, hash)));
+            }
+            return caps;
+        }
+
+        @Override
+        public List<Requirement> getRequirements(String namespace) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(content);
+        }
+    }
+
+    private static final class TestCapability implements Capability {
+        private final Resource resource;
+        private final String namespace;
+        private final Map<String, Object> attributes;
+
+        TestCapability(final Resource resource, final String namespace, final Map<String, Object> attributes) {
+            this.resource = resource;
+            this.namespace = namespace;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public String getNamespace() {
+            return namespace;
+        }
+
+        @Override
+        public Map<String, String> getDirectives() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Resource getResource() {
+            return resource;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.runtime.subsystem.internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.resource.Resource;
+import org.osgi.service.subsystem.Subsystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.bundle;
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.stub;
+import static io.staminaframework.runtime.subsystem.internal.OsgiStubs.writeSubsystem;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SubsystemUpdater} test.
+ *
+ * @author Stamina Framework developers
+ */
+public class SubsystemUpdaterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private final List<String> updatedBundles = new CopyOnWriteArrayList<>();
+    private final List<Bundle> refreshedBundles = new CopyOnWriteArrayList<>();
+    private OsgiStubs.DirectoryArtifactCache artifactCache;
+    private SubsystemUpdater updater;
+    private File archive;
+    private Subsystem subsystem;
+
+    @Before
+    public void setUp() throws Exception {
+        final Bundle systemBundle = stub(Bundle.class, Collections.emptyMap());
+        final Map<String, Function<Object[], Object>> wiring = new HashMap<>(2);
+        wiring.put("refreshBundles", args -> {
+            for (final Object bundle : (Collection<?>) args[0]) {
+                refreshedBundles.add((Bundle) bundle);
+            }
+            for (final FrameworkListener listener : (FrameworkListener[]) args[1]) {
+                listener.frameworkEvent(new FrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, systemBundle, null));
+            }
+            return null;
+        });
+        artifactCache = new OsgiStubs.DirectoryArtifactCache(tmp.newFolder("cache").toPath());
+        updater = new SubsystemUpdater(OsgiStubs.bundleContext(tmp.newFolder("data"),
+                Collections.emptyMap(), stub(FrameworkWiring.class, wiring)), artifactCache);
+
+        archive = writeArchive("1", "1", "org.osgi.framework");
+        subsystem = newSubsystem("x", "y");
+        updater.record(subsystem, archive);
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        writeArchive("1", "1", "org.osgi.framework");
+        assertEquals(0, updater.update(subsystem, archive));
+        assertTrue(updatedBundles.isEmpty());
+    }
+
+    @Test
+    public void testPartialUpdate() throws Exception {
+        writeArchive("1", "2", "org.osgi.framework");
+        assertEquals(1, updater.update(subsystem, archive));
+        assertEquals(Collections.singletonList("y"), updatedBundles);
+        assertEquals(1, refreshedBundles.size());
+
+        // Updated content was recorded.
+        assertEquals(0, updater.update(subsystem, archive));
+    }
+
+    @Test
+    public void testRequirementsChanged() throws Exception {
+        writeArchive("1", "2", "org.osgi.framework, org.osgi.service.log");
+        assertEquals(-1, updater.update(subsystem, archive));
+        assertTrue(updatedBundles.isEmpty());
+    }
+
+    @Test
+    public void testRequirementsFormatting() throws Exception {
+        writeArchive("1", "2", " org.osgi.framework ");
+        assertEquals(1, updater.update(subsystem, archive));
+    }
+
+    @Test
+    public void testBundleAdded() throws Exception {
+        final Map<String, byte[]> bundles = new LinkedHashMap<>(4);
+        bundles.put("x.jar", bundle(headers("x", null), "1"));
+        bundles.put("y.jar", bundle(headers("y", "org.osgi.framework"), "1"));
+        bundles.put("z.jar", bundle(headers("z", null), "1"));
+        writeSubsystem(archive, "test", "1.0.0", bundles);
+        assertEquals(-1, updater.update(subsystem, archive));
+    }
+
+    @Test
+    public void testForget() throws Exception {
+        updater.forget(subsystem.getLocation());
+        writeArchive("1", "2", "org.osgi.framework");
+        assertEquals(-1, updater.update(subsystem, archive));
+    }
+
+    @Test
+    public void testOpenRecordedArchive() throws Exception {
+        final byte[] recorded = Files.readAllBytes(archive.toPath());
+        writeArchive("2", "2", "org.osgi.framework");
+        try (final InputStream in = updater.openRecordedArchive(subsystem.getLocation())) {
+            assertArrayEquals(recorded, readFully(in));
+        }
+
+        artifactCache.clear();
+        assertNull(updater.openRecordedArchive(subsystem.getLocation()));
+    }
+
+    private File writeArchive(String xPayload, String yPayload, String yImports) throws IOException {
+        final Map<String, byte[]> bundles = new LinkedHashMap<>(4);
+        bundles.put("x.jar", bundle(headers("x", null), xPayload));
+        bundles.put("y.jar", bundle(headers("y", yImports), yPayload));
+        final File file = archive == null ? tmp.newFile("test.esa") : archive;
+        return writeSubsystem(file, "test", "1.0.0", bundles);
+    }
+
+    private static Map<String, String> headers(String symbolicName, String imports) {
+        final Map<String, String> headers = new LinkedHashMap<>(4);
+        headers.put("Bundle-ManifestVersion", "2");
+        headers.put("Bundle-SymbolicName", symbolicName);
+        headers.put("Bundle-Version", "1.0.0");
+        if (imports != null) {
+            headers.put("Import-Package", imports);
+        }
+        return headers;
+    }
+
+    private Subsystem newSubsystem(String... symbolicNames) {
+        final List<Resource> constituents = new ArrayList<>(symbolicNames.length);
+        for (final String symbolicName : symbolicNames) {
+            final Map<String, Function<Object[], Object>> bundleBehavior = new HashMap<>(2);
+            bundleBehavior.put("update", args -> {
+                updatedBundles.add(symbolicName);
+                return null;
+            });
+            final Bundle bundle = stub(Bundle.class, bundleBehavior);
+
+            final Map<String, Function<Object[], Object>> revision = new HashMap<>(4);
+            revision.put("getSymbolicName", args -> symbolicName);
+            revision.put("getVersion", args -> new Version("1.0.0"));
+            revision.put("getBundle", args -> bundle);
+            constituents.add(stub(BundleRevision.class, revision));
+        }
+
+        final Map<String, Function<Object[], Object>> behavior = new HashMap<>(8);
+        behavior.put("getSubsystemId", args -> 1L);
+        behavior.put("getLocation", args -> archive.toURI().toString());
+        behavior.put("getConstituents", args -> constituents);
+        behavior.put("getParents", args -> Collections.emptyList());
+        behavior.put("getChildren", args -> Collections.emptyList());
+        return stub(Subsystem.class, behavior);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        final byte[] buf = new byte[4096];
+        for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+            out.write(buf, 0, bytesRead);
+        }
+        return out.toByteArray();
+    }
+}